@@ -0,0 +1,291 @@
+/**
+ * Copyright (c) 2001, Sergey A. Samokhodkin
+ * All rights reserved.
+ * <br>
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * <br>
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * - Redistributions in binary form
+ * must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of jregex nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific prior
+ * written permission.
+ * <br>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version 1.2_01
+ */
+
+
+package regexodus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * An Aho-Corasick automaton for a pattern that is nothing but an alternation of literals, like the ones
+ * Replacer.makeTable() builds. One pass over the target finds every literal that ends at each char, instead of
+ * the backtracking matcher trying the literals one at a time at every position.
+ * <br>
+ * The match is the one the backtracking matcher would find: the one that starts first, and of the literals that
+ * start there, the first in the pattern. The literals are numbered in that order, which is the order the branches
+ * are tried in.
+ * <br>
+ * A PatternSet also keeps one, over literals taken from its patterns, to tell which patterns may match a target;
+ * see {@link #findAll(char[], int, int, boolean, boolean[])}.
+ * <br>
+ * The transitions of the trie are kept in one open-addressing table keyed by state and char; the automaton isn't
+ * changed by a search, so it is shared by all the Matchers of a Pattern.
+ */
+class AhoCorasick {
+    //the most literals and the longest one that are put in an automaton; past that the pattern is backtracked
+    private static final int MAX_LITERALS = 1 << 17, MAX_LENGTH = 1 << 12;
+
+    //per state: where to go on a char it has no transition for, how many chars it is into a literal,
+    //the literal that ends there (-1 if none) and the nearest state down the failure links that ends one
+    private final int[] fail, depth, literal, output;
+
+    //the transition table: state << 16 | char, and the state it goes to; an empty key is -1
+    private final long[] keys;
+    private final int[] targets;
+    private final int mask;
+
+    /**
+     * The length of the longest literal.
+     */
+    final int maxLength;
+
+    /**
+     * If the literals are in an atomic group, which keeps the first literal to match at a position even if what
+     * comes after it then fails; a search that has to match up to the end can't be run on the automaton then.
+     */
+    final boolean atomic;
+
+    /**
+     * @return the automaton for a pattern that only alternates literals, or null if it does anything else
+     */
+    static AhoCorasick compile(Term root) {
+        Term term = root;
+        boolean atomic = false;
+        for (; ; ) {
+            if (term == null) return null;
+            if (term.type == Term.VOID || term.type == Term.GROUP_IN && term.memreg == 0) {
+                term = term.next;
+            } else if (term.type == Term.INDEPENDENT_IN && !atomic) {
+                //an atomic group can't change the first match if nothing follows it
+                atomic = true;
+                term = term.next;
+            } else break;
+        }
+        ArrayList<char[]> literals = literals(term, atomic);
+        return literals == null || literals.size() < 2 ? null : new AhoCorasick(literals, atomic);
+    }
+
+    //the literals of the alternation at term in the order they are tried, or null if it isn't one
+    private static ArrayList<char[]> literals(Term term, boolean atomic) {
+        ArrayList<char[]> literals = new ArrayList<char[]>();
+        //the branches still to try, the first on top, with the chars taken on the way there
+        ArrayList<Term> terms = new ArrayList<Term>();
+        ArrayList<String> prefixes = new ArrayList<String>();
+        terms.add(term);
+        prefixes.add("");
+        StringBuilder sb = new StringBuilder();
+        while (!terms.isEmpty()) {
+            term = terms.remove(terms.size() - 1);
+            sb.setLength(0);
+            sb.append(prefixes.remove(prefixes.size() - 1));
+            //past the end of the atomic group, where nothing may be matched
+            boolean closed = false;
+            walk:
+            for (; ; ) {
+                if (term == null || sb.length() > MAX_LENGTH) return null;
+                if (closed && term.type != Term.VOID && term.type != Term.GROUP_OUT && term.type != Term.SUCCESS) {
+                    return null;
+                }
+                switch (term.type) {
+                    case Term.CHAR:
+                        sb.append(term.c);
+                        break;
+                    case Term.STRING:
+                        sb.append(term.str);
+                        break;
+                    case Term.VOID:
+                        break;
+                    case Term.GROUP_IN:
+                    case Term.GROUP_OUT:
+                        if (term.memreg != 0) return null;
+                        break;
+                    case Term.INDEPENDENT_OUT:
+                        if (!atomic) return null;
+                        closed = true;
+                        break;
+                    case Term.BRANCH:
+                        if (term.failNext == null) return null;
+                        String prefix = sb.toString();
+                        terms.add(term.failNext);
+                        prefixes.add(prefix);
+                        terms.add(term.next);
+                        prefixes.add(prefix);
+                        break walk;
+                    case Term.SUCCESS:
+                        if (sb.length() == 0 || literals.size() == MAX_LITERALS) return null;
+                        char[] chars = new char[sb.length()];
+                        sb.getChars(0, chars.length, chars, 0);
+                        literals.add(chars);
+                        break walk;
+                    default:
+                        return null;
+                }
+                term = term.next;
+            }
+        }
+        return literals;
+    }
+
+    AhoCorasick(ArrayList<char[]> literals, boolean atomic) {
+        this.atomic = atomic;
+        int capacity = 1, longest = 0;
+        for (char[] chars : literals) {
+            capacity += chars.length;
+            if (chars.length > longest) longest = chars.length;
+        }
+        maxLength = longest;
+        int size = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        keys = new long[size];
+        targets = new int[size];
+        mask = size - 1;
+        Arrays.fill(keys, -1L);
+        int[] depth = new int[capacity], literal = new int[capacity];
+        //the children of each state, to go over the trie breadth first
+        int[] child = new int[capacity], sibling = new int[capacity];
+        char[] label = new char[capacity];
+        Arrays.fill(literal, -1);
+        Arrays.fill(child, -1);
+        int states = 1;
+        for (int k = 0; k < literals.size(); k++) {
+            char[] chars = literals.get(k);
+            int state = 0;
+            for (char c : chars) {
+                int to = next(state, c);
+                if (to < 0) {
+                    to = states++;
+                    put(state, c, to);
+                    depth[to] = depth[state] + 1;
+                    label[to] = c;
+                    sibling[to] = child[state];
+                    child[state] = to;
+                }
+                state = to;
+            }
+            //a literal that comes again can't be the first to match
+            if (literal[state] < 0) literal[state] = k;
+        }
+        int[] fail = new int[states], output = new int[states];
+        int[] queue = new int[states];
+        int head = 0, tail = 0;
+        output[0] = -1;
+        for (int c = child[0]; c >= 0; c = sibling[c]) {
+            output[c] = -1;
+            queue[tail++] = c;
+        }
+        while (head < tail) {
+            int state = queue[head++];
+            for (int c = child[state]; c >= 0; c = sibling[c]) {
+                int f = fail[state], to;
+                while ((to = next(f, label[c])) < 0 && f != 0) f = fail[f];
+                fail[c] = to < 0 ? 0 : to;
+                output[c] = literal[fail[c]] >= 0 ? fail[c] : output[fail[c]];
+                queue[tail++] = c;
+            }
+        }
+        this.fail = fail;
+        this.output = output;
+        this.depth = depth;
+        this.literal = literal;
+    }
+
+    private int slot(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+    }
+
+    //the state a char takes another one to, or -1 if the trie has no such edge
+    private int next(int state, char c) {
+        long key = (long) state << 16 | c;
+        for (int s = slot(key); ; s = (s + 1) & mask) {
+            long k = keys[s];
+            if (k == key) return targets[s];
+            if (k == -1L) return -1;
+        }
+    }
+
+    private void put(int state, char c, int to) {
+        long key = (long) state << 16 | c;
+        int s = slot(key);
+        while (keys[s] != -1L) s = (s + 1) & mask;
+        keys[s] = key;
+        targets[s] = to;
+    }
+
+    /**
+     * Finds the first match from i on, as the backtracking matcher would.
+     * @param anchored if the match has to start at i
+     * @param matchEnd if the match has to end at end
+     * @return the start of the match shifted 32 bits to the left, or'ed with its end; -1 if there's none
+     */
+    long find(char[] data, int i, int end, boolean anchored, boolean matchEnd) {
+        int from = i, state = 0;
+        //a match that ends at the end starts within a literal of it, and the automaton finds all those that start
+        //after where it starts
+        if (matchEnd && !anchored && end - maxLength > i) i = end - maxLength;
+        int bestStart = -1, bestLiteral = 0, bestEnd = 0;
+        //no match can start earlier than the best one once the scan is a whole literal past it
+        int stop = anchored ? Math.min(end, from + maxLength) : end;
+        for (; i < stop; i++) {
+            char c = data[i];
+            int to;
+            while ((to = next(state, c)) < 0 && state != 0) state = fail[state];
+            state = to < 0 ? 0 : to;
+            if (matchEnd && i + 1 != end) continue;
+            for (int o = literal[state] >= 0 ? state : output[state]; o > 0; o = output[o]) {
+                int start = i + 1 - depth[o];
+                if (anchored && start != from) continue;
+                if (bestStart < 0 || start < bestStart || start == bestStart && literal[o] < bestLiteral) {
+                    bestStart = start;
+                    bestLiteral = literal[o];
+                    bestEnd = i + 1;
+                    if (stop > start + maxLength) stop = start + maxLength;
+                }
+            }
+        }
+        return bestStart < 0 ? -1L : (long) bestStart << 32 | bestEnd;
+    }
+
+    /**
+     * Finds every literal that occurs from i on, for an index that only needs to know which of them are there.
+     * @param folded if the chars are case-folded before they are looked up, for literals that are folded
+     * @param found gets true at the number of each literal that is found
+     */
+    void findAll(char[] data, int i, int end, boolean folded, boolean[] found) {
+        int state = 0;
+        for (; i < end; i++) {
+            char c = folded ? Category.caseFold(data[i]) : data[i];
+            int to;
+            while ((to = next(state, c)) < 0 && state != 0) state = fail[state];
+            state = to < 0 ? 0 : to;
+            for (int o = literal[state] >= 0 ? state : output[state]; o > 0; o = output[o]) {
+                found[literal[o]] = true;
+            }
+        }
+    }
+}
@@ -108,7 +108,7 @@ class BlockSet implements UnicodeConstants {
     final void setWordChar(boolean unicode) {
         if (unicode) {
             if (!isLarge) enableLargeMode();
-            weight += Block.add(this.blocks, Category.Word.blocks, 0, BLOCK_COUNT - 1, false);
+            weight += Block.add(this.blocks, Category.Word.blocks(), 0, BLOCK_COUNT - 1, false);
             /*
             setCategory("Lu");
             setCategory("Ll");
@@ -165,7 +165,7 @@ class BlockSet implements UnicodeConstants {
 
     final void setCategory(String c) {
         if (!isLarge) enableLargeMode();
-        Block[] catBits = Category.categories.get(c).blocks;
+        Block[] catBits = Category.categories.get(c).blocks();
         weight += Block.add(this.blocks, catBits, 0, BLOCK_COUNT - 1, false);
 //System.out.println("["+this+"].setCategory("+c+"): weight="+weight);
     }
@@ -366,255 +366,3 @@ class BlockSet implements UnicodeConstants {
    }
    */
 }
-
-class Block implements UnicodeConstants {
-    private boolean isFull;
-    //private boolean[] bits;
-    private IntBitSet bits;
-    private boolean shared = false;
-
-    Block() {
-    }
-
-    Block(IntBitSet bits) {
-        this.bits = bits;
-        shared = true;
-    }
-
-    final boolean set(int c) {
-//System.out.println("Block.add("+CharacterClass.stringValue2(toBitset2(targets))+","+CharacterClass.stringValue2(toBitset2(addends))+","+from*BLOCK_SIZE+","+to*BLOCK_SIZE+","+inv+"):");
-        if (isFull) return false;
-        IntBitSet bits = this.bits;
-        if (bits == null) {
-            this.bits = bits = new IntBitSet();
-            shared = false;
-            bits.set(c);
-            return true;
-        }
-
-        if (bits.get(c)) return false;
-
-        if (shared) bits = copyBits(this);
-
-        bits.set(c);
-        return true;
-    }
-
-    final boolean get(int c) {
-        return isFull || (bits != null && bits.get(c));
-    }
-
-    static int add(Block[] targets, Block[] addends, int from, int to, boolean inv) {
-        int s = 0;
-        for (int i = from; i <= to; i++) {
-            Block addend = addends[i];
-            if (addend == null) {
-                if (!inv) continue;
-            } else if (addend.isFull && inv) continue;
-
-            Block target = targets[i];
-            if (target == null) targets[i] = target = new Block();
-            else if (target.isFull) continue;
-
-            s += add(target, addend, inv);
-        }
-        return s;
-    }
-
-    private static int add(Block target, Block addend, boolean inv) {
-        //there is provided that !target.isFull
-        IntBitSet targetbits, addbits;
-        if (addend == null) {
-            if (!inv) return 0;
-            int s = BLOCK_SIZE;
-            if ((targetbits = target.bits) != null) {
-                s -= count(targetbits, 0, BLOCK_SIZE - 1);
-            }
-            target.isFull = true;
-            target.bits = null;
-            target.shared = false;
-            return s;
-        } else if (addend.isFull) {
-            if (inv) return 0;
-            int s = BLOCK_SIZE;
-            if ((targetbits = target.bits) != null) {
-                s -= count(targetbits, 0, BLOCK_SIZE - 1);
-            }
-            target.isFull = true;
-            target.bits = null;
-            target.shared = false;
-            return s;
-        } else if ((addbits = addend.bits) == null) {
-            if (!inv) return 0;
-            int s = BLOCK_SIZE;
-            if ((targetbits = target.bits) != null) {
-                s -= count(targetbits, 0, BLOCK_SIZE - 1);
-            }
-            target.isFull = true;
-            target.bits = null;
-            target.shared = false;
-            return s;
-        } else {
-            if ((targetbits = target.bits) == null) {
-                if (!inv) {
-                    target.bits = addbits;
-                    target.shared = true;
-                    return count(addbits, 0, BLOCK_SIZE - 1);
-                } else {
-                    target.bits = targetbits = emptyBits(null);
-                    target.shared = false;
-                    return BlockSet.add(targetbits, addbits, 0, BLOCK_SIZE - 1, inv);
-                }
-            } else {
-                if (target.shared) targetbits = copyBits(target);
-                return BlockSet.add(targetbits, addbits, 0, BLOCK_SIZE - 1, inv);
-            }
-        }
-    }
-
-    static int subtract(Block[] targets, Block[] subtrahends, int from, int to, boolean inv) {
-        int s = 0;
-        for (int i = from; i <= to; i++) {
-            Block target = targets[i];
-            if (target == null || (!target.isFull && target.bits == null)) continue;
-
-            Block subtrahend = subtrahends[i];
-
-            if (subtrahend == null) {
-                if (inv) {
-                    if (target.isFull) {
-                        s -= BLOCK_SIZE;
-                    } else {
-                        s -= count(target.bits, 0, BLOCK_SIZE - 1);
-                    }
-                    target.isFull = false;
-                    target.bits = null;
-                    target.shared = false;
-                }
-            } else {
-                s += subtract(target, subtrahend, inv);
-            }
-        }
-        return s;
-    }
-
-    private static int subtract(Block target, Block subtrahend, boolean inv) {
-        IntBitSet targetbits, subbits;
-        //there is provided that target.isFull or target.bits!=null
-        if (subtrahend.isFull) {
-            if (inv) return 0;
-            int s = 0;
-            if (target.isFull) {
-                s = BLOCK_SIZE;
-            } else {
-                s = target.bits.cardinality();
-            }
-            target.isFull = false;
-            target.bits = null;
-            target.shared = false;
-            return s;
-        } else if ((subbits = subtrahend.bits) == null) {
-            if (!inv) return 0;
-            int s = 0;
-            if (target.isFull) {
-                s = BLOCK_SIZE;
-            } else {
-                s = target.bits.cardinality();
-            }
-            target.isFull = false;
-            target.bits = null;
-            target.shared = false;
-            return s;
-        } else {
-            if (target.isFull) {
-                IntBitSet bits = fullBits(target.bits);
-                int s = BlockSet.subtract(bits, subbits, inv);
-                target.isFull = false;
-                target.shared = false;
-                target.bits = bits;
-                return s;
-            } else {
-                if (target.shared) targetbits = copyBits(target);
-                else targetbits = target.bits;
-                return BlockSet.subtract(targetbits, subbits, inv);
-            }
-        }
-    }
-
-    private static IntBitSet copyBits(Block block) {
-        IntBitSet bits = block.bits.copy();
-        block.bits = bits;
-        block.shared = false;
-        return bits;
-    }
-
-    private static IntBitSet fullBits(IntBitSet bits) {
-        if (bits == null) bits = new IntBitSet();
-        bits.set(0, BLOCK_SIZE);
-        return bits;
-    }
-
-    private static IntBitSet emptyBits(IntBitSet bits) {
-        if (bits == null) bits = new IntBitSet();
-        else bits.clear();
-        return bits;
-    }
-
-    private static int count(IntBitSet arr, int from, int to) {
-        int s = 0;
-        for (int i = from; i <= to; i++) {
-            if (arr.get(i)) s++;
-        }
-        return s;
-    }
-
-    static IntBitSet[] toBitset2(Block[] blocks) {
-        int len = blocks.length;
-        IntBitSet[] result = new IntBitSet[len];
-        for (int i = 0; i < len; i++) {
-            Block block = blocks[i];
-            if (block == null) continue;
-            if (block.isFull) {
-                result[i] = FULL_BITS;
-            } else result[i] = block.bits;
-        }
-        return result;
-    }
-
-    private final static IntBitSet EMPTY_BITS = new IntBitSet();
-    private final static IntBitSet FULL_BITS = new IntBitSet();
-
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-
-        Block block = (Block) o;
-
-        if (isFull != block.isFull) return false;
-        if (shared != block.shared) return false;
-        return bits != null ? bits.equals(block.bits) : block.bits == null;
-
-    }
-
-    @Override
-    public int hashCode() {
-        int result = (isFull ? 1 : 0);
-        result = 31 * result + (bits != null ? bits.hashCode() : 0);
-        result = 31 * result + (shared ? 1 : 0);
-        return result;
-    }
-
-    @Override
-    public String toString() {
-        return "Block{" +
-                "isFull=" + isFull +
-                ", bits=" + bits +
-                ", shared=" + shared +
-                '}';
-    }
-
-    static {
-        FULL_BITS.set(0, BLOCK_SIZE-1);
-    }
-}
@@ -0,0 +1,973 @@
+/**
+ * Copyright (c) 2001, Sergey A. Samokhodkin
+ * All rights reserved.
+ * <br>
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * <br>
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * - Redistributions in binary form
+ * must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of jregex nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific prior
+ * written permission.
+ * <br>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version 1.2_01
+ */
+
+
+package regexodus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static regexodus.Program.*;
+
+/**
+ * Generates a JVM class for the program of a Pattern, so that the JIT can turn each of its terms into a few machine
+ * instructions rather than a trip through the interpreter's switch. The generated class extends {@link Compiled} and
+ * tries the raw root at one position: a run of terms becomes straight-line code that returns -1 as soon as a test
+ * fails, and the terms that have alternatives (a BRANCH and the repeats) call a method for the rest of the pattern
+ * once per alternative, the JVM stack taking the place of the backtracking stack.
+ * <br>
+ * Only programs without loops are generated (so no lazy or counted repeats of groups), whose terms are atoms,
+ * anchors, word boundaries, groups, branches and greedy repeats of an atom; anything else stays on the interpreter.
+ * The class is defined as a hidden class on Java 15 and up, which can be unloaded with its Pattern; on Java 9 to 14 it
+ * is defined in the class loader and package of this one, where it stays until they are unloaded, so each pattern
+ * gets a class name of its own. Where it can't be defined, compile() gives null.
+ */
+@GwtIncompatible
+class BytecodeCompiler {
+    private static final String SELF = "regexodus/GeneratedMatcher";
+    private static final String SUPER = "regexodus/Compiled";
+    private static final String BITSET = "regexodus/ds/IntBitSet";
+    private static final String INIT = "(Lregexodus/Program;I)V";
+    private static final String MATCH = "([CII[I)I";
+    private static final String SEARCH = "([CII[II)I";
+
+    //the locals of a generated method, LAST only being search()'s; the group outs passed so far take two each from OUTS on
+    private static final int THIS = 0, DATA = 1, I = 2, END = 3, SLOTS = 4, LAST = 5, C = 6, BASE = 7, LIMIT = 8, R = 9,
+            OUTS = 10;
+
+    //the most that a generated method can hold
+    private static final int MAX_CODE = 0xffff, MAX_LOCALS = 0xff;
+
+    private static final int ICONST_0 = 3, BIPUSH = 16, SIPUSH = 17, LDC_W = 19, ILOAD = 21, ALOAD = 25,
+            IALOAD = 46, AALOAD = 50, CALOAD = 52, ISTORE = 54, IASTORE = 79, POP = 87, DUP = 89,
+            IADD = 96, ISUB = 100, IAND = 126, ISHR = 122, IXOR = 130, IINC = 132,
+            IFEQ = 153, IFNE = 154, IFLT = 155, IF_ICMPEQ = 159, IF_ICMPNE = 160, IF_ICMPLT = 161,
+            IF_ICMPGE = 162, IF_ICMPGT = 163, IF_ICMPLE = 164, GOTO = 167, IRETURN = 172, RETURN = 177,
+            GETFIELD = 180, INVOKEVIRTUAL = 182, INVOKESPECIAL = 183, INVOKESTATIC = 184, IFNONNULL = 199;
+
+    private static final Method DEFINE_HIDDEN, DEFINE;
+    private static final Object NO_OPTIONS;
+
+    //numbers the classes defined by DEFINE, which share a package
+    private static final AtomicInteger defined = new AtomicInteger();
+
+    static {
+        Method hidden = null, define = null;
+        Object options = null;
+        try {
+            options = Array.newInstance(Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption"), 0);
+            hidden = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+                    byte[].class, boolean.class, options.getClass());
+        } catch (Exception e) {
+            //before Java 15
+        }
+        if (hidden == null) {
+            try {
+                define = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+            } catch (Exception e) {
+                //before Java 9; patterns stay interpreted
+            }
+        }
+        DEFINE_HIDDEN = hidden;
+        DEFINE = define;
+        NO_OPTIONS = options;
+    }
+
+    /**
+     * @return the generated matcher of a pattern, or null if it can't be generated or defined
+     */
+    static Compiled compile(Pattern re) {
+        if (DEFINE_HIDDEN == null && DEFINE == null) return null;
+        String self = DEFINE_HIDDEN != null ? SELF : SELF + defined.incrementAndGet();
+        byte[] bytes = new BytecodeCompiler(re.program, re.memregs, self).generate();
+        if (bytes == null) return null;
+        try {
+            Class<?> type;
+            if (DEFINE_HIDDEN != null) {
+                type = ((MethodHandles.Lookup) DEFINE_HIDDEN.invoke(MethodHandles.lookup(), bytes, true, NO_OPTIONS))
+                        .lookupClass();
+            } else type = (Class<?>) DEFINE.invoke(MethodHandles.lookup(), (Object) bytes);
+            return (Compiled) type.getDeclaredConstructor(Program.class, int.class)
+                    .newInstance(re.program, re.memregs);
+        } catch (Exception e) {
+            return null;
+        } catch (LinkageError e) {
+            return null;
+        }
+    }
+
+    private final Program program;
+    private final int[] code;
+    private final int groups;
+    //the internal name of the generated class
+    private final String self;
+
+    //per record: whether it starts a method of its own
+    private final boolean[] head;
+    //the records that start a method, the raw root first
+    private final ArrayList<Integer> heads = new ArrayList<Integer>();
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final HashMap<String, Integer> constants = new HashMap<String, Integer>();
+    private int poolCount = 1;
+
+    //the method being generated
+    private byte[] buf = new byte[256];
+    private int len, maxLocals;
+    private int[] labels = new int[16];
+    private int labelCount;
+    private int[] fixups = new int[32];
+    private int fixupCount;
+    //the group outs passed on the way to what is generated, as group, local of its in, local of its out
+    private final ArrayList<int[]> outs = new ArrayList<int[]>();
+    //set once something doesn't fit in a class file
+    private boolean overflow;
+
+    private BytecodeCompiler(Program program, int groups, String self) {
+        this.program = program;
+        this.code = program.code;
+        this.groups = groups;
+        this.self = self;
+        this.head = new boolean[code.length / WIDTH];
+    }
+
+    //the class file of the generated matcher, or null if the program can't be generated
+    private byte[] generate() {
+        if (!analyze()) return null;
+        int size = heads.size();
+        byte[][] bodies = new byte[size][];
+        int[] locals = new int[size];
+        for (int k = 0; k < size; k++) {
+            int pc = heads.get(k);
+            begin();
+            chain(pc);
+            bodies[k] = end();
+            locals[k] = maxLocals;
+        }
+
+        begin();
+        op(ALOAD, 0);
+        op(ALOAD, 1);
+        op(ILOAD, 2);
+        op(INVOKESPECIAL);
+        u2(methodRef(SUPER, "<init>", INIT));
+        op(RETURN);
+        byte[] init = end();
+
+        begin();
+        search(heads.get(0));
+        byte[] search = end();
+        if (overflow || poolCount > MAX_CODE) return null;
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            int thisClass = classRef(self), parent = classRef(SUPER), codeName = utf8("Code");
+            int[] names = new int[size];
+            for (int k = 0; k < size; k++) names[k] = utf8(methodName(heads.get(k)));
+            int initName = utf8("<init>"), initType = utf8(INIT), searchName = utf8("search"), searchType = utf8(SEARCH);
+            int matchType = utf8(MATCH);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);  //needs no stack map frames
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+            out.writeShort(0x0030);  //final, super
+            out.writeShort(thisClass);
+            out.writeShort(parent);
+            out.writeShort(0);
+            out.writeShort(0);
+            out.writeShort(size + 2);
+            method(out, 0x0001, initName, initType, codeName, init, 3);
+            method(out, 0x0000, searchName, searchType, codeName, search, OUTS);
+            for (int k = 0; k < size; k++) {
+                method(out, 0x0010, names[k], matchType, codeName, bodies[k], locals[k]);
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            return null;
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void method(DataOutputStream out, int access, int name, int type, int codeName,
+                               byte[] body, int locals) throws IOException {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(type);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + body.length);
+        out.writeShort(8);  //max stack, more than any of the sequences below pushes
+        out.writeShort(locals);
+        out.writeInt(body.length);
+        out.write(body);
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+
+    private static String methodName(int pc) {
+        return "m" + pc / WIDTH;
+    }
+
+    /**
+     * Walks the records that the raw root reaches, checking that they can all be generated and don't loop,
+     * and picks the ones that start a method: the root, the rest of the pattern after a BRANCH or a repeat,
+     * and any record that more than one other goes on to.
+     * @return false if the program has to stay on the interpreter
+     */
+    private boolean analyze() {
+        int records = head.length;
+        int[] state = new int[records];  //0 unseen, 1 on the walk, 2 done
+        int[] inline = new int[records];
+        int[] stack = new int[records], cursor = new int[records];
+        int root = program.root0;
+        if (!supported(root)) return false;
+        head[root / WIDTH] = true;
+        state[root / WIDTH] = 1;
+        stack[0] = root;
+        int top = 1;
+        while (top > 0) {
+            int pc = stack[top - 1];
+            int edge = cursor[top - 1]++;
+            int op = code[pc];
+            int to;
+            boolean call;
+            if (edge == 0 && op != Term.SUCCESS) {
+                to = code[pc + NEXT];
+                call = op == Term.BRANCH || repeats(op);
+            } else if (edge == 1 && op == Term.BRANCH) {
+                to = code[pc + FAIL];
+                call = false;
+            } else {
+                if (edge >= 1) {
+                    state[pc / WIDTH] = 2;
+                    top--;
+                }
+                continue;
+            }
+            if (to < 0) continue;
+            if (call) head[to / WIDTH] = true;
+            else inline[to / WIDTH]++;
+            int seen = state[to / WIDTH];
+            if (seen == 1) return false;  //a loop
+            if (seen == 0) {
+                if (!supported(to)) return false;
+                state[to / WIDTH] = 1;
+                stack[top] = to;
+                cursor[top] = 0;
+                top++;
+            }
+        }
+        for (int k = 0; k < records; k++) {
+            if (inline[k] > 1) head[k] = true;
+            if (head[k] && state[k] == 2) heads.add(k * WIDTH);
+        }
+        heads.remove((Integer) root);
+        heads.add(0, root);
+        return true;
+    }
+
+    private static boolean repeats(int op) {
+        return op == Term.REPEAT_0_INF || op == Term.REPEAT_MIN_INF || op == Term.REPEAT_MIN_MAX;
+    }
+
+    private static boolean atom(int op) {
+        return op == Term.CHAR || op == Term.ANY_CHAR || op == Term.ANY_CHAR_NE
+                || op == Term.BITSET || op == Term.BITSET2;
+    }
+
+    private boolean supported(int pc) {
+        int op = code[pc];
+        switch (op) {
+            case Term.CHAR: case Term.BITSET: case Term.BITSET2: case Term.ANY_CHAR: case Term.ANY_CHAR_NE:
+            case Term.STRING: case Term.STRING_I: case Term.SUCCESS: case Term.BOUNDARY: case Term.UBOUNDARY:
+            case Term.GROUP_IN: case Term.GROUP_OUT: case Term.VOID: case Term.START: case Term.END:
+            case Term.END_EOL: case Term.LINE_START: case Term.LINE_END: case Term.BRANCH:
+                return true;
+            case Term.REPEAT_0_INF: case Term.REPEAT_MIN_INF: case Term.REPEAT_MIN_MAX: {
+                //the backtracker of the repeat has to give back one char at a time down to the minimum,
+                //each time going on with the rest of the pattern
+                int back = code[pc + FAIL];
+                if (back < 0 || !atom(code[code[pc + TARGET]]) || code[back + MIN] != code[pc + MIN]) return false;
+                switch (code[back]) {
+                    case Term.BACKTRACK_0: case Term.BACKTRACK_MIN:
+                        return code[back + NEXT] == code[pc + NEXT];
+                    case Term.BACKTRACK_FIND_MIN:
+                        //only skips where the rest can't start
+                        return true;
+                }
+                return false;
+            }
+        }
+        return false;
+    }
+
+    //tries the root from each position up to LAST, skipping the ones that don't have the first char it needs
+    private void search(int root) {
+        int loop = label(), next = label(), none = label();
+        //the first term that takes a char, past the ones that don't move
+        int first = root;
+        while (first >= 0 && !atom(code[first]) && !repeats(code[first]) && code[first] != Term.STRING
+                && code[first] != Term.STRING_I && code[first] != Term.BRANCH && code[first] != Term.SUCCESS) {
+            first = code[first + NEXT];
+        }
+        mark(loop);
+        op(ILOAD, I);
+        op(ILOAD, LAST);
+        jump(IF_ICMPGT, none);
+        if (first >= 0) {
+            int op = code[first];
+            if (atom(op) && op != Term.ANY_CHAR || op == Term.STRING || op == Term.STRING_I
+                    || repeats(op) && code[first + MIN] > 0 && code[code[first + TARGET]] != Term.ANY_CHAR) {
+                op(ILOAD, I);
+                op(ILOAD, END);
+                jump(IF_ICMPGE, next);
+                read(0);
+                if (repeats(op)) {
+                    test(code[first + TARGET], next, true);
+                } else if (atom(op)) {
+                    test(first, next, false);
+                } else {
+                    op(ILOAD, C);
+                    if (op == Term.STRING_I) {
+                        op(INVOKESTATIC);
+                        u2(methodRef("regexodus/Category", "caseFold", "(C)C"));
+                    }
+                    push(program.strings[code[first + ARG]][0]);
+                    jump(IF_ICMPNE, next);
+                }
+            }
+        }
+        op(ALOAD, THIS);
+        op(ALOAD, DATA);
+        op(ILOAD, I);
+        op(ILOAD, END);
+        op(ALOAD, SLOTS);
+        op(INVOKEVIRTUAL);
+        u2(methodRef(self, methodName(root), MATCH));
+        op(DUP);
+        op(ISTORE, R);
+        jump(IFLT, next);
+        op(ALOAD, SLOTS);
+        push(groups * 3 + 2);
+        op(ILOAD, R);
+        op(IASTORE);
+        op(ILOAD, I);
+        op(IRETURN);
+        mark(next);
+        op(IINC, I);
+        u1(1);
+        jump(GOTO, loop);
+        mark(none);
+        push(-1);
+        op(IRETURN);
+    }
+
+    //generates the terms from pc on, up to one that returns
+    private void chain(int pc) {
+        int fail = label();
+        int first = pc;
+        for (; ; ) {
+            if (pc < 0) {
+                succeed();
+                break;
+            }
+            if (pc != first && head[pc / WIDTH]) {
+                call(pc);
+                jump(GOTO, fail);
+                break;
+            }
+            int op = code[pc];
+            if (op == Term.BRANCH) {
+                if (code[pc + NEXT] < 0) {
+                    succeed();
+                    break;
+                }
+                call(code[pc + NEXT]);
+                pc = code[pc + FAIL];
+                continue;
+            }
+            if (repeats(op)) {
+                repeat(pc, fail);
+                break;
+            }
+            if (op == Term.SUCCESS) {
+                int meets = label();
+                op(ALOAD, SLOTS);
+                push(groups * 3 + 1);
+                op(IALOAD);
+                jump(IFEQ, meets);
+                op(ILOAD, I);
+                op(ILOAD, END);
+                jump(IF_ICMPNE, fail);
+                mark(meets);
+                succeed();
+                break;
+            }
+            term(pc, fail);
+            pc = code[pc + NEXT];
+        }
+        if (used(fail)) {
+            mark(fail);
+            push(-1);
+            op(IRETURN);
+        }
+    }
+
+    //generates a term that goes on to its next one, jumping to fail if it doesn't meet
+    private void term(int pc, int fail) {
+        int op = code[pc];
+        switch (op) {
+            case Term.CHAR: case Term.BITSET: case Term.BITSET2: case Term.ANY_CHAR: case Term.ANY_CHAR_NE:
+                op(ILOAD, I);
+                op(ILOAD, END);
+                jump(IF_ICMPGE, fail);
+                if (op != Term.ANY_CHAR) {
+                    read(0);
+                    test(pc, fail, false);
+                }
+                op(IINC, I);
+                u1(1);
+                break;
+            case Term.STRING: case Term.STRING_I: {
+                char[] str = program.strings[code[pc + ARG]];
+                op(ILOAD, END);
+                op(ILOAD, I);
+                op(ISUB);
+                push(str.length);
+                jump(IF_ICMPLT, fail);
+                for (int k = 0; k < str.length; k++) {
+                    op(ALOAD, DATA);
+                    op(ILOAD, I);
+                    if (k > 0) {
+                        push(k);
+                        op(IADD);
+                    }
+                    op(CALOAD);
+                    if (op == Term.STRING_I) {
+                        op(INVOKESTATIC);
+                        u2(methodRef("regexodus/Category", "caseFold", "(C)C"));
+                    }
+                    push(str[k]);
+                    jump(IF_ICMPNE, fail);
+                }
+                op(ILOAD, I);
+                push(str.length);
+                op(IADD);
+                op(ISTORE, I);
+                break;
+            }
+            case Term.BOUNDARY: case Term.UBOUNDARY: {
+                //BASE counts the sides that are word chars
+                int before = label(), after = label();
+                push(0);
+                op(ISTORE, BASE);
+                op(ILOAD, I);
+                offset();
+                jump(IF_ICMPLE, before);
+                read(-1);
+                member(op == Term.BOUNDARY ? Term.BITSET : Term.BITSET2, code[pc + ARG], before);
+                op(IINC, BASE);
+                u1(1);
+                mark(before);
+                op(ILOAD, I);
+                op(ILOAD, END);
+                jump(IF_ICMPGE, after);
+                read(0);
+                member(op == Term.BOUNDARY ? Term.BITSET : Term.BITSET2, code[pc + ARG], after);
+                op(ILOAD, BASE);
+                push(1);
+                op(IXOR);
+                op(ISTORE, BASE);
+                mark(after);
+                op(ILOAD, BASE);
+                jump((code[pc + FLAGS] & INVERSE) != 0 ? IFNE : IFEQ, fail);
+                break;
+            }
+            case Term.GROUP_IN: {
+                int memreg = code[pc + ARG];
+                if (memreg > 0) {
+                    op(ALOAD, SLOTS);
+                    push(groups * 2 + memreg);
+                    op(ILOAD, I);
+                    op(IASTORE);
+                }
+                break;
+            }
+            case Term.GROUP_OUT: {
+                int memreg = code[pc + ARG];
+                if (memreg > 0) {
+                    int in = OUTS + outs.size() * 2;
+                    op(ALOAD, SLOTS);
+                    push(groups * 2 + memreg);
+                    op(IALOAD);
+                    op(ISTORE, in);
+                    op(ILOAD, I);
+                    op(ISTORE, in + 1);
+                    outs.add(new int[]{memreg, in, in + 1});
+                    maxLocals = Math.max(maxLocals, in + 2);
+                }
+                break;
+            }
+            case Term.VOID:
+                break;
+            case Term.START:
+                op(ILOAD, I);
+                offset();
+                jump(IF_ICMPNE, fail);
+                break;
+            case Term.END:
+                op(ILOAD, I);
+                op(ILOAD, END);
+                jump(IF_ICMPLT, fail);
+                break;
+            case Term.END_EOL: {
+                int meets = label(), two = label();
+                op(ILOAD, I);
+                op(ILOAD, END);
+                jump(IF_ICMPGE, meets);
+                op(ILOAD, I);
+                push(1);
+                op(IADD);
+                op(ILOAD, END);
+                jump(IF_ICMPNE, two);
+                read(0);
+                op(ILOAD, C);
+                push('\n');
+                jump(IF_ICMPEQ, meets);
+                mark(two);
+                op(ILOAD, I);
+                push(2);
+                op(IADD);
+                op(ILOAD, END);
+                jump(IF_ICMPNE, fail);
+                read(0);
+                op(ILOAD, C);
+                push('\r');
+                jump(IF_ICMPNE, fail);
+                read(1);
+                op(ILOAD, C);
+                push('\n');
+                jump(IF_ICMPNE, fail);
+                mark(meets);
+                break;
+            }
+            case Term.LINE_START: {
+                int meets = label();
+                op(ILOAD, I);
+                offset();
+                jump(IF_ICMPEQ, meets);
+                op(ILOAD, I);
+                op(ILOAD, END);
+                jump(IF_ICMPGE, fail);
+                read(-1);
+                lineBreak(meets);
+                jump(GOTO, fail);
+                mark(meets);
+                break;
+            }
+            case Term.LINE_END: {
+                int meets = label();
+                op(ILOAD, I);
+                op(ILOAD, END);
+                jump(IF_ICMPGE, meets);
+                read(0);
+                lineBreak(meets);
+                jump(GOTO, fail);
+                mark(meets);
+                break;
+            }
+            default:
+                throw new IllegalArgumentException("can't generate this kind of term:" + op);
+        }
+    }
+
+    //takes all the chars the atom of a repeat meets, then gives them back one by one, trying the rest each time
+    private void repeat(int pc, int fail) {
+        int target = code[pc + TARGET], min = code[pc + MIN], next = code[pc + NEXT];
+        int limit = END;
+        op(ILOAD, I);
+        op(ISTORE, BASE);
+        if (code[pc] == Term.REPEAT_MIN_MAX) {
+            int within = label();
+            limit = LIMIT;
+            op(ILOAD, I);
+            push(code[pc + MAX]);
+            op(IADD);
+            op(ISTORE, LIMIT);
+            op(ILOAD, END);
+            op(ILOAD, LIMIT);
+            jump(IF_ICMPGE, within);
+            op(ILOAD, END);
+            op(ISTORE, LIMIT);
+            mark(within);
+        }
+        if (code[target] == Term.ANY_CHAR) {
+            op(ILOAD, limit);
+            op(ISTORE, I);
+        } else {
+            int loop = label(), done = label();
+            mark(loop);
+            op(ILOAD, I);
+            op(ILOAD, limit);
+            jump(IF_ICMPGE, done);
+            read(0);
+            test(target, done, true);
+            op(IINC, I);
+            u1(1);
+            jump(GOTO, loop);
+            mark(done);
+        }
+        op(ILOAD, I);
+        op(ILOAD, BASE);
+        op(ISUB);
+        push(min);
+        jump(IF_ICMPLT, fail);
+        if (next < 0) {
+            succeed();
+            return;
+        }
+        int again = label();
+        mark(again);
+        call(next);
+        op(ILOAD, I);
+        op(ILOAD, BASE);
+        op(ISUB);
+        push(min);
+        jump(IF_ICMPLE, fail);
+        op(IINC, I);
+        u1(-1);
+        jump(GOTO, again);
+    }
+
+    //tests the char in C against an atom, jumping to fail if it doesn't meet;
+    //an inverted BITSET2 fails on a char of a block it doesn't have, but not when repeated, as in the interpreter
+    private void test(int pc, int fail, boolean repeated) {
+        int op = code[pc];
+        boolean inverse = (code[pc + FLAGS] & INVERSE) != 0;
+        switch (op) {
+            case Term.CHAR:
+                op(ILOAD, C);
+                push(code[pc + ARG]);
+                jump(IF_ICMPNE, fail);
+                break;
+            case Term.ANY_CHAR:
+                break;
+            case Term.ANY_CHAR_NE:
+                op(ILOAD, C);
+                push('\r');
+                jump(IF_ICMPEQ, fail);
+                op(ILOAD, C);
+                push('\n');
+                jump(IF_ICMPEQ, fail);
+                break;
+            case Term.BITSET: case Term.BITSET2:
+                if (!inverse) {
+                    member(op, code[pc + ARG], fail);
+                } else if (op == Term.BITSET2 && !repeated) {
+                    block(code[pc + ARG], fail);
+                    op(ILOAD, C);
+                    push(0xff);
+                    op(IAND);
+                    op(INVOKEVIRTUAL);
+                    u2(methodRef(BITSET, "get", "(I)Z"));
+                    jump(IFNE, fail);
+                } else {
+                    int meets = label();
+                    member(op, code[pc + ARG], meets);
+                    jump(GOTO, fail);
+                    mark(meets);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("can't generate this kind of atom:" + op);
+        }
+    }
+
+    //falls through if the char in C is in a char class, jumps to not if it isn't
+    private void member(int op, int k, int not) {
+        if (op == Term.BITSET) {
+            op(ILOAD, C);
+            push(0xff);
+            jump(IF_ICMPGT, not);
+            op(ALOAD, THIS);
+            op(GETFIELD);
+            u2(fieldRef(SUPER, "bitsets", "[L" + BITSET + ";"));
+            push(k);
+            op(AALOAD);
+            op(ILOAD, C);
+        } else {
+            block(k, not);
+            op(ILOAD, C);
+            push(0xff);
+            op(IAND);
+        }
+        op(INVOKEVIRTUAL);
+        u2(methodRef(BITSET, "get", "(I)Z"));
+        jump(IFEQ, not);
+    }
+
+    //pushes the bits of the block of the char in C, jumping to not if the class has none there
+    private void block(int k, int not) {
+        int found = label();
+        op(ALOAD, THIS);
+        op(GETFIELD);
+        u2(fieldRef(SUPER, "bitsets2", "[[L" + BITSET + ";"));
+        push(k);
+        op(AALOAD);
+        op(ILOAD, C);
+        push(8);
+        op(ISHR);
+        op(AALOAD);
+        op(DUP);
+        jump(IFNONNULL, found);
+        op(POP);
+        jump(GOTO, not);
+        mark(found);
+    }
+
+    //jumps to meets if the char in C breaks a line
+    private void lineBreak(int meets) {
+        char[] breaks = {'\n', '\r', '\u0085', '\u2028', '\u2029'};
+        for (char b : breaks) {
+            op(ILOAD, C);
+            push(b);
+            jump(IF_ICMPEQ, meets);
+        }
+    }
+
+    //loads data[i + delta] into C
+    private void read(int delta) {
+        op(ALOAD, DATA);
+        op(ILOAD, I);
+        if (delta != 0) {
+            push(delta);
+            op(IADD);
+        }
+        op(CALOAD);
+        op(ISTORE, C);
+    }
+
+    private void offset() {
+        op(ALOAD, SLOTS);
+        push(groups * 3);
+        op(IALOAD);
+    }
+
+    //tries the method of the rest of the pattern from I, returning what it matched if it did
+    private void call(int pc) {
+        if (pc < 0) {
+            succeed();
+            return;
+        }
+        int failed = label();
+        op(ALOAD, THIS);
+        op(ALOAD, DATA);
+        op(ILOAD, I);
+        op(ILOAD, END);
+        op(ALOAD, SLOTS);
+        op(INVOKEVIRTUAL);
+        u2(methodRef(self, methodName(pc), MATCH));
+        op(DUP);
+        op(ISTORE, R);
+        jump(IFLT, failed);
+        commit();
+        op(ILOAD, R);
+        op(IRETURN);
+        mark(failed);
+    }
+
+    //returns I as the end of the match
+    private void succeed() {
+        commit();
+        op(ILOAD, I);
+        op(IRETURN);
+    }
+
+    //stores the group outs passed on the way, which the match now keeps
+    private void commit() {
+        for (int[] out : outs) {
+            op(ALOAD, SLOTS);
+            push(out[0] * 2);
+            op(ILOAD, out[1]);
+            op(IASTORE);
+            op(ALOAD, SLOTS);
+            push(out[0] * 2 + 1);
+            op(ILOAD, out[2]);
+            op(IASTORE);
+        }
+    }
+
+    private void begin() {
+        outs.clear();
+        len = 0;
+        labelCount = 0;
+        fixupCount = 0;
+        maxLocals = OUTS;
+    }
+
+    //the code of the method, with its jumps resolved
+    private byte[] end() {
+        for (int k = 0; k < fixupCount; k += 2) {
+            int at = fixups[k], offset = labels[fixups[k + 1]] - at;
+            if (offset != (short) offset) overflow = true;
+            buf[at + 1] = (byte) (offset >> 8);
+            buf[at + 2] = (byte) offset;
+        }
+        if (len > MAX_CODE || maxLocals > MAX_LOCALS) overflow = true;
+        byte[] body = new byte[len];
+        System.arraycopy(buf, 0, body, 0, len);
+        return body;
+    }
+
+    private int label() {
+        if (labelCount == labels.length) {
+            int[] grown = new int[labelCount * 2];
+            System.arraycopy(labels, 0, grown, 0, labelCount);
+            labels = grown;
+        }
+        labels[labelCount] = -1;
+        return labelCount++;
+    }
+
+    private void mark(int label) {
+        labels[label] = len;
+    }
+
+    private boolean used(int label) {
+        for (int k = 1; k < fixupCount; k += 2) {
+            if (fixups[k] == label) return true;
+        }
+        return false;
+    }
+
+    private void jump(int opcode, int label) {
+        if (fixupCount == fixups.length) {
+            int[] grown = new int[fixupCount * 2];
+            System.arraycopy(fixups, 0, grown, 0, fixupCount);
+            fixups = grown;
+        }
+        fixups[fixupCount++] = len;
+        fixups[fixupCount++] = label;
+        u1(opcode);
+        u2(0);
+    }
+
+    private void op(int opcode) {
+        u1(opcode);
+    }
+
+    private void op(int opcode, int local) {
+        if (local > MAX_LOCALS) overflow = true;
+        u1(opcode);
+        u1(local);
+    }
+
+    private void push(int value) {
+        if (value >= -1 && value <= 5) {
+            u1(ICONST_0 + value);
+        } else if (value == (byte) value) {
+            u1(BIPUSH);
+            u1(value);
+        } else if (value == (short) value) {
+            u1(SIPUSH);
+            u2(value);
+        } else {
+            u1(LDC_W);
+            u2(integer(value));
+        }
+    }
+
+    private void u1(int b) {
+        if (len == buf.length) {
+            byte[] grown = new byte[len * 2];
+            System.arraycopy(buf, 0, grown, 0, len);
+            buf = grown;
+        }
+        buf[len++] = (byte) b;
+    }
+
+    private void u2(int s) {
+        u1(s >> 8);
+        u1(s);
+    }
+
+    //the constant pool; every entry is added once, when it's first asked for
+
+    private int constant(String key, int tag, int a, int b, String utf) {
+        Integer index = constants.get(key);
+        if (index != null) return index;
+        try {
+            poolOut.writeByte(tag);
+            if (utf != null) poolOut.writeUTF(utf);
+            else if (tag == 3) poolOut.writeInt(a);
+            else {
+                poolOut.writeShort(a);
+                if (b >= 0) poolOut.writeShort(b);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        constants.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private int utf8(String s) {
+        return constant("U" + s, 1, 0, 0, s);
+    }
+
+    private int integer(int value) {
+        return constant("I" + value, 3, value, -1, null);
+    }
+
+    private int classRef(String name) {
+        return constant("C" + name, 7, utf8(name), -1, null);
+    }
+
+    private int nameAndType(String name, String type) {
+        return constant("T" + name + ' ' + type, 12, utf8(name), utf8(type), null);
+    }
+
+    private int methodRef(String owner, String name, String type) {
+        return constant("M" + owner + '.' + name + type, 10, classRef(owner), nameAndType(name, type), null);
+    }
+
+    private int fieldRef(String owner, String name, String type) {
+        return constant("F" + owner + '.' + name + type, 9, classRef(owner), nameAndType(name, type), null);
+    }
+}
@@ -11,43 +11,78 @@ import java.util.LinkedHashMap;
  * Credit for the technique and much of the code goes to gagern, https://gist.github.com/gagern/89db1179766a702c564d
  * Also, the heavy amount of work that went into the Unicode DB for Node.JS (which the pre-processing stage for this
  * depends on) must be commended; that project is https://github.com/mathiasbynens/node-unicode-data
+ * <br>
+ * Each category keeps its literals as they are until it is first used, and only then decodes its ranges and builds
+ * the bitsets of its blocks, so loading this class doesn't pay for the categories a program never looks at.
  */
 public class Category {
     public final int length;
     private int n;
-    private final char[] cal;
-    final Block[] blocks;
+    private final int[] directory;
+    private final String data;
+    //the ranges, as pairs of first and last chars, and the bitsets of the blocks of 256 chars; both null until used
+    private volatile char[] cal;
+    private volatile Block[] blocks;
     private Category()
     {
         length = 0;
-        cal = new char[0];
-        blocks = new Block[0];
+        directory = new int[0];
+        data = "";
     }
     private Category(int[] directory, String data)
     {
+        this.directory = directory;
+        this.data = data;
         n = data.length();
-        int j = 0, len = 0;
-        cal = new char[n];
+        int j = 0, len = 0, first = 0;
         for (int i = 0; i < n; ++i) {
-            cal[i] = (char) (j += directory[data.charAt(i) - 32]);
-            if((i & 1) == 1) len += 1 + j - cal[i-1];
+            j += directory[data.charAt(i) - 32];
+            if((i & 1) == 1) len += 1 + j - first;
+            else first = j;
         }
         length = len;
-        blocks = makeBlocks();
+    }
+
+    private char[] cal()
+    {
+        char[] cal = this.cal;
+        if(cal == null)
+        {
+            cal = new char[n];
+            for (int i = 0, j = 0; i < n; ++i) {
+                cal[i] = (char) (j += directory[data.charAt(i) - 32]);
+            }
+            this.cal = cal;
+        }
+        return cal;
+    }
+
+    /**
+     * The bitsets of the blocks of 256 chars this category has chars in; every block is present, and blocks without
+     * any chars in this category have no bitset. Built on first use; building it again from another thread at the
+     * same time just makes an equal array.
+     */
+    Block[] blocks()
+    {
+        Block[] blocks = this.blocks;
+        if(blocks == null)
+            this.blocks = blocks = makeBlocks();
+        return blocks;
     }
 
     public char[] contents()
     {
+        char[] cal = cal();
         int k = 0;
         char[] con = new char[length];
         for (int i = 0; i < n - 1; i += 2)
-            for (char e = cal[i]; e <= cal[i+1]; ++e)
-                con[k++] = e;
+            for (int e = cal[i]; e <= cal[i+1]; ++e)
+                con[k++] = (char) e;
         return con;
     }
 
     private Block[] makeBlocks() {
-        int k = 0;
+        char[] cal = cal();
         Block[] bls = new Block[256];
         IntBitSet[] bss = new IntBitSet[256];
         int e, e2, eb, e2b;
@@ -79,18 +114,117 @@ public class Category {
         return bls;
     }
 
+    /**
+     * Checks whether a char is in this category, in constant time, by looking it up in the bitset of its block of 256
+     * chars.
+     * @param checking any char
+     * @return true if checking is in this category
+     */
     public boolean contains(char checking) {
-        for (int i = 0; i < n - 1; i += 2) {
-            if (checking >= cal[i] && checking <= cal[i + 1])
-                return true;
+        return blocks()[checking >>> 8].get(checking & 0xff);
+    }
+
+    /**
+     * Finds where a run of chars in this category ends, such as the end of a word when this is {@link #Word}.
+     * @param chars the chars to check
+     * @param start the first index to check
+     * @param end the index after the last one to check
+     * @return the index of the first char from start on that isn't in this category, or end if they all are
+     */
+    public int span(char[] chars, int start, int end)
+    {
+        Block[] blocks = blocks();
+        int i = start;
+        while (i < end && blocks[chars[i] >>> 8].get(chars[i] & 0xff))
+            i++;
+        return i;
+    }
+
+    /**
+     * Finds the first char in this category, such as the start of the next number when this is {@link #Nd}.
+     * @param chars the chars to check
+     * @param start the first index to check
+     * @param end the index after the last one to check
+     * @return the index of the first char from start on that is in this category, or -1 if there is none before end
+     */
+    public int indexIn(char[] chars, int start, int end)
+    {
+        Block[] blocks = blocks();
+        for (int i = start; i < end; i++) {
+            if (blocks[chars[i] >>> 8].get(chars[i] & 0xff))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Counts the chars in this category.
+     * @param chars the chars to check
+     * @param start the first index to check
+     * @param end the index after the last one to check
+     * @return how many chars from start up to end are in this category
+     */
+    public int count(char[] chars, int start, int end)
+    {
+        Block[] blocks = blocks();
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (blocks[chars[i] >>> 8].get(chars[i] & 0xff))
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Checks each char for being in this category, writing the results into contained.
+     * @param chars the chars to check
+     * @param start the first index to check
+     * @param end the index after the last one to check
+     * @param contained where the results go; contained[i - start] is set to whether chars[i] is in this category
+     */
+    public void contains(char[] chars, int start, int end, boolean[] contained)
+    {
+        Block[] blocks = blocks();
+        for (int i = start; i < end; i++) {
+            contained[i - start] = blocks[chars[i] >>> 8].get(chars[i] & 0xff);
+        }
+    }
+
+    /**
+     * Sorts each char into the first of several categories that contains it, as a tokenizer would, in one pass.
+     * For example, given {@code new Category[]{Category.L, Category.Nd, Category.Space}}, letters get 0, decimal digits
+     * get 1, whitespace gets 2, and anything else gets -1.
+     * @param chars the chars to classify
+     * @param start the first index to classify
+     * @param end the index after the last one to classify
+     * @param categories the categories to check, in order; the first one that contains a char wins
+     * @param classes where the results go; classes[i - start] is set to the index in categories of the first one that
+     *                contains chars[i], or -1 if none does
+     */
+    public static void classify(char[] chars, int start, int end, Category[] categories, int[] classes)
+    {
+        int count = categories.length;
+        Block[][] tables = new Block[count][];
+        for (int k = 0; k < count; k++) {
+            tables[k] = categories[k].blocks();
+        }
+        for (int i = start; i < end; i++) {
+            char c = chars[i];
+            int b = c >>> 8, cls = -1;
+            for (int k = 0; k < count; k++) {
+                if (tables[k][b].get(c & 0xff)) {
+                    cls = k;
+                    break;
+                }
+            }
+            classes[i - start] = cls;
         }
-        return false;
     }
 
     @Override
     public String toString() {
         return "Category{" +
-                cal +
+                cal() +
                 '}';
     }
 
@@ -103,8 +237,8 @@ public class Category {
 
         if (length != category.length) return false;
         if (n != category.n) return false;
-        if(category.cal == null || !Arrays.equals(cal, category.cal)) return false;
-        return Arrays.equals(blocks, category.blocks);
+        if(!Arrays.equals(cal(), category.cal())) return false;
+        return Arrays.equals(blocks(), category.blocks());
 
     }
 
@@ -112,8 +246,8 @@ public class Category {
     public int hashCode() {
         int result = length;
         result = 31 * result + n;
-        result = 31 * result + Arrays.hashCode(cal);
-        result = 31 * result + Arrays.hashCode(blocks);
+        result = 31 * result + Arrays.hashCode(cal());
+        result = 31 * result + Arrays.hashCode(blocks());
         return result;
     }
 
@@ -366,18 +500,64 @@ public class Category {
      */
     public static final Category Space=new Category(new int[]{0,1,4,6,9,10,19,27,30,48,101,2432,4001,5600},"$\"& * ' - +%(!# ) , ");
 
-    private static final char[] upper = "ABCDEFGHIJKLMNOPQRSTUVWXYZµÀÁÂÃÄÅÆÇÈÉÊËÌÍÎÏÐÑÒÓÔÕÖØÙÚÛÜÝÞĀĂĄĆĈĊČĎĐĒĔĖĘĚĜĞĠĢĤĦĨĪĬĮĲĴĶĹĻĽĿŁŃŅŇŊŌŎŐŒŔŖŘŚŜŞŠŢŤŦŨŪŬŮŰŲŴŶŸŹŻŽſƁƂƄƆƇƉƊƋƎƏƐƑƓƔƖƗƘƜƝƟƠƢƤƦƧƩƬƮƯƱƲƳƵƷƸƼǄǅǇǈǊǋǍǏǑǓǕǗǙǛǞǠǢǤǦǨǪǬǮǱǲǴǶǷǸǺǼǾȀȂȄȆȈȊȌȎȐȒȔȖȘȚȜȞȠȢȤȦȨȪȬȮȰȲȺȻȽȾɁɃɄɅɆɈɊɌɎͅͰͲͶͿΆΈΉΊΌΎΏΑΒΓΔΕΖΗΘΙΚΛΜΝΞΟΠΡΣΤΥΦΧΨΩΪΫςϏϐϑϕϖϘϚϜϞϠϢϤϦϨϪϬϮϰϱϴϵϷϹϺϽϾϿЀЁЂЃЄЅІЇЈЉЊЋЌЍЎЏАБВГДЕЖЗИЙКЛМНОПРСТУФХЦЧШЩЪЫЬЭЮЯѠѢѤѦѨѪѬѮѰѲѴѶѸѺѼѾҀҊҌҎҐҒҔҖҘҚҜҞҠҢҤҦҨҪҬҮҰҲҴҶҸҺҼҾӀӁӃӅӇӉӋӍӐӒӔӖӘӚӜӞӠӢӤӦӨӪӬӮӰӲӴӶӸӺӼӾԀԂԄԆԈԊԌԎԐԒԔԖԘԚԜԞԠԢԤԦԨԪԬԮԱԲԳԴԵԶԷԸԹԺԻԼԽԾԿՀՁՂՃՄՅՆՇՈՉՊՋՌՍՎՏՐՑՒՓՔՕՖႠႡႢႣႤႥႦႧႨႩႪႫႬႭႮႯႰႱႲႳႴႵႶႷႸႹႺႻႼႽႾႿჀჁჂჃჄჅჇჍᏸᏹᏺᏻᏼᏽᲀᲁᲂᲃᲄᲅᲆᲇᲈᲐᲑᲒᲓᲔᲕᲖᲗᲘᲙᲚᲛᲜᲝᲞᲟᲠᲡᲢᲣᲤᲥᲦᲧᲨᲩᲪᲫᲬᲭᲮᲯᲰᲱᲲᲳᲴᲵᲶᲷᲸᲹᲺᲽᲾᲿḀḂḄḆḈḊḌḎḐḒḔḖḘḚḜḞḠḢḤḦḨḪḬḮḰḲḴḶḸḺḼḾṀṂṄṆṈṊṌṎṐṒṔṖṘṚṜṞṠṢṤṦṨṪṬṮṰṲṴṶṸṺṼṾẀẂẄẆẈẊẌẎẐẒẔẛẠẢẤẦẨẪẬẮẰẲẴẶẸẺẼẾỀỂỄỆỈỊỌỎỐỒỔỖỘỚỜỞỠỢỤỦỨỪỬỮỰỲỴỶỸỺỼỾἈἉἊἋἌἍἎἏἘἙἚἛἜἝἨἩἪἫἬἭἮἯἸἹἺἻἼἽἾἿὈὉὊὋὌὍὙὛὝὟὨὩὪὫὬὭὮὯᾸᾹᾺΆιῈΈῊΉῘῙῚΊῨῩῪΎῬῸΌῺΏΩKÅℲⅠⅡⅢⅣⅤⅥⅦⅧⅨⅩⅪⅫⅬⅭⅮⅯↃⒶⒷⒸⒹⒺⒻⒼⒽⒾⒿⓀⓁⓂⓃⓄⓅⓆⓇⓈⓉⓊⓋⓌⓍⓎⓏⰀⰁⰂⰃⰄⰅⰆⰇⰈⰉⰊⰋⰌⰍⰎⰏⰐⰑⰒⰓⰔⰕⰖⰗⰘⰙⰚⰛⰜⰝⰞⰟⰠⰡⰢⰣⰤⰥⰦⰧⰨⰩⰪⰫⰬⰭⰮⱠⱢⱣⱤⱧⱩⱫⱭⱮⱯⱰⱲⱵⱾⱿⲀⲂⲄⲆⲈⲊⲌⲎⲐⲒⲔⲖⲘⲚⲜⲞⲠⲢⲤⲦⲨⲪⲬⲮⲰⲲⲴⲶⲸⲺⲼⲾⳀⳂⳄⳆⳈⳊⳌⳎⳐⳒⳔⳖⳘⳚⳜⳞⳠⳢⳫⳭⳲꙀꙂꙄꙆꙈꙊꙌꙎꙐꙒꙔꙖꙘꙚꙜꙞꙠꙢꙤꙦꙨꙪꙬꚀꚂꚄꚆꚈꚊꚌꚎꚐꚒꚔꚖꚘꚚꜢꜤꜦꜨꜪꜬꜮꜲꜴꜶꜸꜺꜼꜾꝀꝂꝄꝆꝈꝊꝌꝎꝐꝒꝔꝖꝘꝚꝜꝞꝠꝢꝤꝦꝨꝪꝬꝮꝹꝻꝽꝾꞀꞂꞄꞆꞋꞍꞐꞒꞖꞘꞚꞜꞞꞠꞢꞤꞦꞨꞪꞫꞬꞭꞮꞰꞱꞲꞳꞴꞶꞸꞺꞼꞾꟂꟄꟅꟆꟇꟉꟵꭰꭱꭲꭳꭴꭵꭶꭷꭸꭹꭺꭻꭼꭽꭾꭿꮀꮁꮂꮃꮄꮅꮆꮇꮈꮉꮊꮋꮌꮍꮎꮏꮐꮑꮒꮓꮔꮕꮖꮗꮘꮙꮚꮛꮜꮝꮞꮟꮠꮡꮢꮣꮤꮥꮦꮧꮨꮩꮪꮫꮬꮭꮮꮯꮰꮱꮲꮳꮴꮵꮶꮷꮸꮹꮺꮻꮼꮽꮾꮿＡＢＣＤＥＦＧＨＩＪＫＬＭＮＯＰＱＲＳＴＵＶＷＸＹＺẞᾈᾉᾊᾋᾌᾍᾎᾏᾘᾙᾚᾛᾜᾝᾞᾟᾨᾩᾪᾫᾬᾭᾮᾯᾼῌῼ".toCharArray();
-    private static final char[] lower = "abcdefghijklmnopqrstuvwxyzμàáâãäåæçèéêëìíîïðñòóôõöøùúûüýþāăąćĉċčďđēĕėęěĝğġģĥħĩīĭįĳĵķĺļľŀłńņňŋōŏőœŕŗřśŝşšţťŧũūŭůűųŵŷÿźżžsɓƃƅɔƈɖɗƌǝəɛƒɠɣɩɨƙɯɲɵơƣƥʀƨʃƭʈưʊʋƴƶʒƹƽǆǆǉǉǌǌǎǐǒǔǖǘǚǜǟǡǣǥǧǩǫǭǯǳǳǵƕƿǹǻǽǿȁȃȅȇȉȋȍȏȑȓȕȗșțȝȟƞȣȥȧȩȫȭȯȱȳⱥȼƚⱦɂƀʉʌɇɉɋɍɏιͱͳͷϳάέήίόύώαβγδεζηθικλμνξοπρστυφχψωϊϋσϗβθφπϙϛϝϟϡϣϥϧϩϫϭϯκρθεϸϲϻͻͼͽѐёђѓєѕіїјљњћќѝўџабвгдежзийклмнопрстуфхцчшщъыьэюяѡѣѥѧѩѫѭѯѱѳѵѷѹѻѽѿҁҋҍҏґғҕҗҙқҝҟҡңҥҧҩҫҭүұҳҵҷҹһҽҿӏӂӄӆӈӊӌӎӑӓӕӗәӛӝӟӡӣӥӧөӫӭӯӱӳӵӷӹӻӽӿԁԃԅԇԉԋԍԏԑԓԕԗԙԛԝԟԡԣԥԧԩԫԭԯաբգդեզէըթժիլխծկհձղճմյնշոչպջռսվտրցւփքօֆⴀⴁⴂⴃⴄⴅⴆⴇⴈⴉⴊⴋⴌⴍⴎⴏⴐⴑⴒⴓⴔⴕⴖⴗⴘⴙⴚⴛⴜⴝⴞⴟⴠⴡⴢⴣⴤⴥⴧⴭᏰᏱᏲᏳᏴᏵвдосттъѣꙋაბგდევზთიკლმნოპჟრსტუფქღყშჩცძწჭხჯჰჱჲჳჴჵჶჷჸჹჺჽჾჿḁḃḅḇḉḋḍḏḑḓḕḗḙḛḝḟḡḣḥḧḩḫḭḯḱḳḵḷḹḻḽḿṁṃṅṇṉṋṍṏṑṓṕṗṙṛṝṟṡṣṥṧṩṫṭṯṱṳṵṷṹṻṽṿẁẃẅẇẉẋẍẏẑẓẕṡạảấầẩẫậắằẳẵặẹẻẽếềểễệỉịọỏốồổỗộớờởỡợụủứừửữựỳỵỷỹỻỽỿἀἁἂἃἄἅἆἇἐἑἒἓἔἕἠἡἢἣἤἥἦἧἰἱἲἳἴἵἶἷὀὁὂὃὄὅὑὓὕὗὠὡὢὣὤὥὦὧᾰᾱὰάιὲέὴήῐῑὶίῠῡὺύῥὸόὼώωkåⅎⅰⅱⅲⅳⅴⅵⅶⅷⅸⅹⅺⅻⅼⅽⅾⅿↄⓐⓑⓒⓓⓔⓕⓖⓗⓘⓙⓚⓛⓜⓝⓞⓟⓠⓡⓢⓣⓤⓥⓦⓧⓨⓩⰰⰱⰲⰳⰴⰵⰶⰷⰸⰹⰺⰻⰼⰽⰾⰿⱀⱁⱂⱃⱄⱅⱆⱇⱈⱉⱊⱋⱌⱍⱎⱏⱐⱑⱒⱓⱔⱕⱖⱗⱘⱙⱚⱛⱜⱝⱞⱡɫᵽɽⱨⱪⱬɑɱɐɒⱳⱶȿɀⲁⲃⲅⲇⲉⲋⲍⲏⲑⲓⲕⲗⲙⲛⲝⲟⲡⲣⲥⲧⲩⲫⲭⲯⲱⲳⲵⲷⲹⲻⲽⲿⳁⳃⳅⳇⳉⳋⳍⳏⳑⳓⳕⳗⳙⳛⳝⳟⳡⳣⳬⳮⳳꙁꙃꙅꙇꙉꙋꙍꙏꙑꙓꙕꙗꙙꙛꙝꙟꙡꙣꙥꙧꙩꙫꙭꚁꚃꚅꚇꚉꚋꚍꚏꚑꚓꚕꚗꚙꚛꜣꜥꜧꜩꜫꜭꜯꜳꜵꜷꜹꜻꜽꜿꝁꝃꝅꝇꝉꝋꝍꝏꝑꝓꝕꝗꝙꝛꝝꝟꝡꝣꝥꝧꝩꝫꝭꝯꝺꝼᵹꝿꞁꞃꞅꞇꞌɥꞑꞓꞗꞙꞛꞝꞟꞡꞣꞥꞧꞩɦɜɡɬɪʞʇʝꭓꞵꞷꞹꞻꞽꞿꟃꞔʂᶎꟈꟊꟶᎠᎡᎢᎣᎤᎥᎦᎧᎨᎩᎪᎫᎬᎭᎮᎯᎰᎱᎲᎳᎴᎵᎶᎷᎸᎹᎺᎻᎼᎽᎾᎿᏀᏁᏂᏃᏄᏅᏆᏇᏈᏉᏊᏋᏌᏍᏎᏏᏐᏑᏒᏓᏔᏕᏖᏗᏘᏙᏚᏛᏜᏝᏞᏟᏠᏡᏢᏣᏤᏥᏦᏧᏨᏩᏪᏫᏬᏭᏮᏯａｂｃｄｅｆｇｈｉｊｋｌｍｎｏｐｑｒｓｔｕｖｗｘｙｚßᾀᾁᾂᾃᾄᾅᾆᾇᾐᾑᾒᾓᾔᾕᾖᾗᾠᾡᾢᾣᾤᾥᾦᾧᾳῃῳ".toCharArray();
-    private static final CharCharMap upperToLower = new CharCharMap(upper.length);
-    private static final CharCharMap lowerToUpper = new CharCharMap(upper.length);
+    /**
+     * The case mapping tables, built the first time a char gets its case changed or folded.
+     */
+    private static final class CaseTables {
+        private static final char[] upper = "ABCDEFGHIJKLMNOPQRSTUVWXYZµÀÁÂÃÄÅÆÇÈÉÊËÌÍÎÏÐÑÒÓÔÕÖØÙÚÛÜÝÞĀĂĄĆĈĊČĎĐĒĔĖĘĚĜĞĠĢĤĦĨĪĬĮĲĴĶĹĻĽĿŁŃŅŇŊŌŎŐŒŔŖŘŚŜŞŠŢŤŦŨŪŬŮŰŲŴŶŸŹŻŽſƁƂƄƆƇƉƊƋƎƏƐƑƓƔƖƗƘƜƝƟƠƢƤƦƧƩƬƮƯƱƲƳƵƷƸƼǄǅǇǈǊǋǍǏǑǓǕǗǙǛǞǠǢǤǦǨǪǬǮǱǲǴǶǷǸǺǼǾȀȂȄȆȈȊȌȎȐȒȔȖȘȚȜȞȠȢȤȦȨȪȬȮȰȲȺȻȽȾɁɃɄɅɆɈɊɌɎͅͰͲͶͿΆΈΉΊΌΎΏΑΒΓΔΕΖΗΘΙΚΛΜΝΞΟΠΡΣΤΥΦΧΨΩΪΫςϏϐϑϕϖϘϚϜϞϠϢϤϦϨϪϬϮϰϱϴϵϷϹϺϽϾϿЀЁЂЃЄЅІЇЈЉЊЋЌЍЎЏАБВГДЕЖЗИЙКЛМНОПРСТУФХЦЧШЩЪЫЬЭЮЯѠѢѤѦѨѪѬѮѰѲѴѶѸѺѼѾҀҊҌҎҐҒҔҖҘҚҜҞҠҢҤҦҨҪҬҮҰҲҴҶҸҺҼҾӀӁӃӅӇӉӋӍӐӒӔӖӘӚӜӞӠӢӤӦӨӪӬӮӰӲӴӶӸӺӼӾԀԂԄԆԈԊԌԎԐԒԔԖԘԚԜԞԠԢԤԦԨԪԬԮԱԲԳԴԵԶԷԸԹԺԻԼԽԾԿՀՁՂՃՄՅՆՇՈՉՊՋՌՍՎՏՐՑՒՓՔՕՖႠႡႢႣႤႥႦႧႨႩႪႫႬႭႮႯႰႱႲႳႴႵႶႷႸႹႺႻႼႽႾႿჀჁჂჃჄჅჇჍᏸᏹᏺᏻᏼᏽᲀᲁᲂᲃᲄᲅᲆᲇᲈᲐᲑᲒᲓᲔᲕᲖᲗᲘᲙᲚᲛᲜᲝᲞᲟᲠᲡᲢᲣᲤᲥᲦᲧᲨᲩᲪᲫᲬᲭᲮᲯᲰᲱᲲᲳᲴᲵᲶᲷᲸᲹᲺᲽᲾᲿḀḂḄḆḈḊḌḎḐḒḔḖḘḚḜḞḠḢḤḦḨḪḬḮḰḲḴḶḸḺḼḾṀṂṄṆṈṊṌṎṐṒṔṖṘṚṜṞṠṢṤṦṨṪṬṮṰṲṴṶṸṺṼṾẀẂẄẆẈẊẌẎẐẒẔẛẠẢẤẦẨẪẬẮẰẲẴẶẸẺẼẾỀỂỄỆỈỊỌỎỐỒỔỖỘỚỜỞỠỢỤỦỨỪỬỮỰỲỴỶỸỺỼỾἈἉἊἋἌἍἎἏἘἙἚἛἜἝἨἩἪἫἬἭἮἯἸἹἺἻἼἽἾἿὈὉὊὋὌὍὙὛὝὟὨὩὪὫὬὭὮὯᾸᾹᾺΆιῈΈῊΉῘῙῚΊῨῩῪΎῬῸΌῺΏΩKÅℲⅠⅡⅢⅣⅤⅥⅦⅧⅨⅩⅪⅫⅬⅭⅮⅯↃⒶⒷⒸⒹⒺⒻⒼⒽⒾⒿⓀⓁⓂⓃⓄⓅⓆⓇⓈⓉⓊⓋⓌⓍⓎⓏⰀⰁⰂⰃⰄⰅⰆⰇⰈⰉⰊⰋⰌⰍⰎⰏⰐⰑⰒⰓⰔⰕⰖⰗⰘⰙⰚⰛⰜⰝⰞⰟⰠⰡⰢⰣⰤⰥⰦⰧⰨⰩⰪⰫⰬⰭⰮⱠⱢⱣⱤⱧⱩⱫⱭⱮⱯⱰⱲⱵⱾⱿⲀⲂⲄⲆⲈⲊⲌⲎⲐⲒⲔⲖⲘⲚⲜⲞⲠⲢⲤⲦⲨⲪⲬⲮⲰⲲⲴⲶⲸⲺⲼⲾⳀⳂⳄⳆⳈⳊⳌⳎⳐⳒⳔⳖⳘⳚⳜⳞⳠⳢⳫⳭⳲꙀꙂꙄꙆꙈꙊꙌꙎꙐꙒꙔꙖꙘꙚꙜꙞꙠꙢꙤꙦꙨꙪꙬꚀꚂꚄꚆꚈꚊꚌꚎꚐꚒꚔꚖꚘꚚꜢꜤꜦꜨꜪꜬꜮꜲꜴꜶꜸꜺꜼꜾꝀꝂꝄꝆꝈꝊꝌꝎꝐꝒꝔꝖꝘꝚꝜꝞꝠꝢꝤꝦꝨꝪꝬꝮꝹꝻꝽꝾꞀꞂꞄꞆꞋꞍꞐꞒꞖꞘꞚꞜꞞꞠꞢꞤꞦꞨꞪꞫꞬꞭꞮꞰꞱꞲꞳꞴꞶꞸꞺꞼꞾꟂꟄꟅꟆꟇꟉꟵꭰꭱꭲꭳꭴꭵꭶꭷꭸꭹꭺꭻꭼꭽꭾꭿꮀꮁꮂꮃꮄꮅꮆꮇꮈꮉꮊꮋꮌꮍꮎꮏꮐꮑꮒꮓꮔꮕꮖꮗꮘꮙꮚꮛꮜꮝꮞꮟꮠꮡꮢꮣꮤꮥꮦꮧꮨꮩꮪꮫꮬꮭꮮꮯꮰꮱꮲꮳꮴꮵꮶꮷꮸꮹꮺꮻꮼꮽꮾꮿＡＢＣＤＥＦＧＨＩＪＫＬＭＮＯＰＱＲＳＴＵＶＷＸＹＺẞᾈᾉᾊᾋᾌᾍᾎᾏᾘᾙᾚᾛᾜᾝᾞᾟᾨᾩᾪᾫᾬᾭᾮᾯᾼῌῼ".toCharArray();
+        private static final char[] lower = "abcdefghijklmnopqrstuvwxyzμàáâãäåæçèéêëìíîïðñòóôõöøùúûüýþāăąćĉċčďđēĕėęěĝğġģĥħĩīĭįĳĵķĺļľŀłńņňŋōŏőœŕŗřśŝşšţťŧũūŭůűųŵŷÿźżžsɓƃƅɔƈɖɗƌǝəɛƒɠɣɩɨƙɯɲɵơƣƥʀƨʃƭʈưʊʋƴƶʒƹƽǆǆǉǉǌǌǎǐǒǔǖǘǚǜǟǡǣǥǧǩǫǭǯǳǳǵƕƿǹǻǽǿȁȃȅȇȉȋȍȏȑȓȕȗșțȝȟƞȣȥȧȩȫȭȯȱȳⱥȼƚⱦɂƀʉʌɇɉɋɍɏιͱͳͷϳάέήίόύώαβγδεζηθικλμνξοπρστυφχψωϊϋσϗβθφπϙϛϝϟϡϣϥϧϩϫϭϯκρθεϸϲϻͻͼͽѐёђѓєѕіїјљњћќѝўџабвгдежзийклмнопрстуфхцчшщъыьэюяѡѣѥѧѩѫѭѯѱѳѵѷѹѻѽѿҁҋҍҏґғҕҗҙқҝҟҡңҥҧҩҫҭүұҳҵҷҹһҽҿӏӂӄӆӈӊӌӎӑӓӕӗәӛӝӟӡӣӥӧөӫӭӯӱӳӵӷӹӻӽӿԁԃԅԇԉԋԍԏԑԓԕԗԙԛԝԟԡԣԥԧԩԫԭԯաբգդեզէըթժիլխծկհձղճմյնշոչպջռսվտրցւփքօֆⴀⴁⴂⴃⴄⴅⴆⴇⴈⴉⴊⴋⴌⴍⴎⴏⴐⴑⴒⴓⴔⴕⴖⴗⴘⴙⴚⴛⴜⴝⴞⴟⴠⴡⴢⴣⴤⴥⴧⴭᏰᏱᏲᏳᏴᏵвдосттъѣꙋაბგდევზთიკლმნოპჟრსტუფქღყშჩცძწჭხჯჰჱჲჳჴჵჶჷჸჹჺჽჾჿḁḃḅḇḉḋḍḏḑḓḕḗḙḛḝḟḡḣḥḧḩḫḭḯḱḳḵḷḹḻḽḿṁṃṅṇṉṋṍṏṑṓṕṗṙṛṝṟṡṣṥṧṩṫṭṯṱṳṵṷṹṻṽṿẁẃẅẇẉẋẍẏẑẓẕṡạảấầẩẫậắằẳẵặẹẻẽếềểễệỉịọỏốồổỗộớờởỡợụủứừửữựỳỵỷỹỻỽỿἀἁἂἃἄἅἆἇἐἑἒἓἔἕἠἡἢἣἤἥἦἧἰἱἲἳἴἵἶἷὀὁὂὃὄὅὑὓὕὗὠὡὢὣὤὥὦὧᾰᾱὰάιὲέὴήῐῑὶίῠῡὺύῥὸόὼώωkåⅎⅰⅱⅲⅳⅴⅵⅶⅷⅸⅹⅺⅻⅼⅽⅾⅿↄⓐⓑⓒⓓⓔⓕⓖⓗⓘⓙⓚⓛⓜⓝⓞⓟⓠⓡⓢⓣⓤⓥⓦⓧⓨⓩⰰⰱⰲⰳⰴⰵⰶⰷⰸⰹⰺⰻⰼⰽⰾⰿⱀⱁⱂⱃⱄⱅⱆⱇⱈⱉⱊⱋⱌⱍⱎⱏⱐⱑⱒⱓⱔⱕⱖⱗⱘⱙⱚⱛⱜⱝⱞⱡɫᵽɽⱨⱪⱬɑɱɐɒⱳⱶȿɀⲁⲃⲅⲇⲉⲋⲍⲏⲑⲓⲕⲗⲙⲛⲝⲟⲡⲣⲥⲧⲩⲫⲭⲯⲱⲳⲵⲷⲹⲻⲽⲿⳁⳃⳅⳇⳉⳋⳍⳏⳑⳓⳕⳗⳙⳛⳝⳟⳡⳣⳬⳮⳳꙁꙃꙅꙇꙉꙋꙍꙏꙑꙓꙕꙗꙙꙛꙝꙟꙡꙣꙥꙧꙩꙫꙭꚁꚃꚅꚇꚉꚋꚍꚏꚑꚓꚕꚗꚙꚛꜣꜥꜧꜩꜫꜭꜯꜳꜵꜷꜹꜻꜽꜿꝁꝃꝅꝇꝉꝋꝍꝏꝑꝓꝕꝗꝙꝛꝝꝟꝡꝣꝥꝧꝩꝫꝭꝯꝺꝼᵹꝿꞁꞃꞅꞇꞌɥꞑꞓꞗꞙꞛꞝꞟꞡꞣꞥꞧꞩɦɜɡɬɪʞʇʝꭓꞵꞷꞹꞻꞽꞿꟃꞔʂᶎꟈꟊꟶᎠᎡᎢᎣᎤᎥᎦᎧᎨᎩᎪᎫᎬᎭᎮᎯᎰᎱᎲᎳᎴᎵᎶᎷᎸᎹᎺᎻᎼᎽᎾᎿᏀᏁᏂᏃᏄᏅᏆᏇᏈᏉᏊᏋᏌᏍᏎᏏᏐᏑᏒᏓᏔᏕᏖᏗᏘᏙᏚᏛᏜᏝᏞᏟᏠᏡᏢᏣᏤᏥᏦᏧᏨᏩᏪᏫᏬᏭᏮᏯａｂｃｄｅｆｇｈｉｊｋｌｍｎｏｐｑｒｓｔｕｖｗｘｙｚßᾀᾁᾂᾃᾄᾅᾆᾇᾐᾑᾒᾓᾔᾕᾖᾗᾠᾡᾢᾣᾤᾥᾦᾧᾳῃῳ".toCharArray();
+        // two-level tables indexed by the high byte, then the low byte of a char; a null block maps its chars to themselves
+        static final char[][] upperToLower = new char[256][];
+        static final char[][] lowerToUpper = new char[256][];
+        // every char that caseFold() changes, in ascending order
+        static final char[] foldable;
 
-    static {
-        for (int i = upper.length - 1; i >= 0; i--) {
-            upperToLower.put(upper[i], lower[i]);
-            lowerToUpper.put(lower[i], upper[i]);
+        static {
+            //the earlier pairs win when a char has more than one counterpart
+            for (int i = upper.length - 1; i >= 0; i--) {
+                put(upperToLower, upper[i], lower[i]);
+                put(lowerToUpper, lower[i], upper[i]);
+            }
+            StringBuilder sb = new StringBuilder(upper.length);
+            //only the blocks that have a table can hold such chars
+            for (int b = 0; b < 256; b++) {
+                char[] block = upperToLower[b];
+                if (block == null) continue;
+                for (int i = 0; i < 256; i++) {
+                    if (block[i] != (b << 8 | i)) sb.append((char) (b << 8 | i));
+                }
+            }
+            foldable = sb.toString().toCharArray();
+        }
+
+        private static void put(char[][] table, char from, char to)
+        {
+            char[] block = table[from >> 8];
+            if(block == null)
+            {
+                block = new char[256];
+                for (int i = 0; i < 256; i++) {
+                    block[i] = (char) (from & 0xff00 | i);
+                }
+                table[from >> 8] = block;
+            }
+            block[from & 0xff] = to;
         }
     }
 
+    /**
+     * @return every char that {@link #caseFold(char)} changes, in ascending order; not to be modified
+     */
+    static char[] foldable() {
+        return CaseTables.foldable;
+    }
+
+    private static char lookup(char[][] table, char c)
+    {
+        char[] block = table[c >> 8];
+        return block == null ? c : block[c & 0xff];
+    }
+
     private static final char[] openers =
             new char[]{'(','<','[','{','༺','༼','᚛','⁅','⁽','₍','⌈','⌊','〈','❨','❪','❬','❮','❰','❲','❴','⟅','⟦',
                     '⟨','⟪','⟬','⟮','⦃','⦅','⦇','⦉','⦋','⦍','⦏','⦑','⦓','⦕','⦗','⧘','⧚','⧼','⸢','⸤','⸦','⸨',
@@ -404,11 +584,43 @@ public class Category {
      */
     public static char caseFold(char c)
     {
-        if(upperToLower.containsKey(c))
-        {
-            return upperToLower.get(c);
+        return lookup(CaseTables.upperToLower, c);
+    }
+
+    /**
+     * Case-folds, as with {@link #caseFold(char)}, each char of the given array from start (inclusive) to end
+     * (exclusive), in place.
+     * @param chars a char array that will be modified
+     * @param start the first index to fold
+     * @param end the index after the last one to fold
+     */
+    public static void caseFold(char[] chars, int start, int end)
+    {
+        char[][] table = CaseTables.upperToLower;
+        for (int i = start; i < end; i++) {
+            char c = chars[i];
+            char[] block = table[c >> 8];
+            if(block != null) chars[i] = block[c & 0xff];
+        }
+    }
+
+    /**
+     * Case-folds, as with {@link #caseFold(char)}, length chars of src starting at srcPos, and writes them into dest
+     * starting at destPos; src is not modified unless it is also dest.
+     * @param src the chars to fold
+     * @param srcPos the first index in src to read
+     * @param dest where the folded chars go
+     * @param destPos the first index in dest to write
+     * @param length how many chars to fold
+     */
+    public static void caseFold(char[] src, int srcPos, char[] dest, int destPos, int length)
+    {
+        char[][] table = CaseTables.upperToLower;
+        for (int i = 0; i < length; i++) {
+            char c = src[srcPos + i];
+            char[] block = table[c >> 8];
+            dest[destPos + i] = block == null ? c : block[c & 0xff];
         }
-        return c;
     }
 
     /**
@@ -424,11 +636,7 @@ public class Category {
      */
     public static char caseDown(char c)
     {
-        if(upperToLower.containsKey(c))
-        {
-            return upperToLower.get(c);
-        }
-        return c;
+        return lookup(CaseTables.upperToLower, c);
     }
 
     /**
@@ -441,11 +649,7 @@ public class Category {
      */
     public static char caseUp(char c)
     {
-        if(lowerToUpper.containsKey(c))
-        {
-            return lowerToUpper.get(c);
-        }
-        return c;
+        return lookup(CaseTables.lowerToUpper, c);
     }
 
     /**
@@ -31,7 +31,6 @@ package regexodus;
 
 import regexodus.ds.IntBitSet;
 
-import java.util.ArrayList;
 import java.util.HashMap;
 
 class CharacterClass extends Term implements UnicodeConstants {
@@ -59,12 +58,17 @@ class CharacterClass extends Term implements UnicodeConstants {
     private static final BlockSet UNONHSPACE = new BlockSet();
     private static final BlockSet UNONVSPACE = new BlockSet();
 
-    private static boolean namesInitialized = false;
-
+    /**
+     * Named classes that have been asked for so far, keyed by normalized name; each one is built on first use.
+     * Guarded by the class lock (see getNamedClass()).
+     */
     private static final HashMap<String, BlockSet> namedClasses = new HashMap<String, BlockSet>();
-    private static final ArrayList<String> unicodeBlocks = new ArrayList<String>();
-    private static final ArrayList<String> posixClasses = new ArrayList<String>();
-    private static final ArrayList<String> unicodeCategories = new ArrayList<String>();
+
+    private static final String[] posixNames = {"LOWER", "UPPER", "ASCII", "ALPHA", "DIGIT", "ALNUM", "PUNCT",
+            "GRAPH", "PRINT", "BLANK", "CNTRL", "XDIGIT", "SPACE"};
+    private static final String[] categoryNames = {"C", "Cn", "Cc", "Cf", "Co", "Cs", "L", "Lu", "Ll", "Lt", "Lm", "Lo",
+            "M", "Mn", "Me", "Mc", "N", "Nd", "Nl", "No", "Z", "Zs", "Zl", "Zp", "Zh", "Zv",
+            "P", "Pd", "Ps", "Pi", "Pe", "Pf", "Pc", "Po", "S", "Sm", "Sc", "Sk", "So", "J", "Js", "Jp", "G", "Gh", "Gv"};
 
     //modes; used in parseGroup(()
     private final static int ADD = 1;
@@ -110,163 +114,92 @@ class CharacterClass extends Term implements UnicodeConstants {
         UNONHSPACE.setPositive(false);
         UNONVSPACE.setVerticalSpace(true);
         UNONVSPACE.setPositive(false);
-
-        initPosixClasses();
-    }
-
-    private static void registerClass(String name, BlockSet cls, ArrayList<String> realm) {
-        namedClasses.put(name, cls);
-        name = name.replace("_", "").replace("-", "").toUpperCase();
-        if (!realm.contains(name)) realm.add(name);
     }
 
-    private static void initPosixClasses() {
-        BlockSet lower = new BlockSet();
-        lower.setRange('a', 'z');
-        registerClass("Lower", lower, posixClasses);
-        BlockSet upper = new BlockSet();
-        upper.setRange('A', 'Z');
-        registerClass("Upper", upper, posixClasses);
-        BlockSet ascii = new BlockSet();
-        ascii.setRange((char) 0, (char) 0x7f);
-        registerClass("ASCII", ascii, posixClasses);
-        BlockSet alpha = new BlockSet();
-        alpha.add(lower);
-        alpha.add(upper);
-        registerClass("Alpha", alpha, posixClasses);
-        BlockSet digit = new BlockSet();
-        digit.setRange('0', '9');
-        registerClass("Digit", digit, posixClasses);
-        BlockSet alnum = new BlockSet();
-        alnum.add(alpha);
-        alnum.add(digit);
-        registerClass("Alnum", alnum, posixClasses);
-        BlockSet punct = new BlockSet();
-        punct.setChars("!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~");
-        registerClass("Punct", punct, posixClasses);
-        BlockSet graph = new BlockSet();
-        graph.add(alnum);
-        graph.add(punct);
-        registerClass("Graph", graph, posixClasses);
-        registerClass("Print", graph, posixClasses);
-        BlockSet blank = new BlockSet();
-        blank.setChars(" \t");
-        registerClass("Blank", blank, posixClasses);
-        BlockSet cntrl = new BlockSet();
-        cntrl.setRange((char) 0, (char) 0x1f);
-        cntrl.setChar((char) 0x7f);
-        registerClass("Cntrl", cntrl, posixClasses);
-        BlockSet xdigit = new BlockSet();
-        xdigit.setRange('0', '9');
-        xdigit.setRange('a', 'f');
-        xdigit.setRange('A', 'F');
-        registerClass("XDigit", xdigit, posixClasses);
-        BlockSet space = new BlockSet();
-        space.setChars(" \t\n\r\f\u000b");
-        registerClass("Space", space, posixClasses);
+    private static BlockSet makePosixClass(String name) {
+        BlockSet bs = new BlockSet();
+        if (name.equals("LOWER")) bs.setRange('a', 'z');
+        else if (name.equals("UPPER")) bs.setRange('A', 'Z');
+        else if (name.equals("ASCII")) bs.setRange((char) 0, (char) 0x7f);
+        else if (name.equals("ALPHA")) {
+            bs.setRange('a', 'z');
+            bs.setRange('A', 'Z');
+        } else if (name.equals("DIGIT")) bs.setRange('0', '9');
+        else if (name.equals("ALNUM")) {
+            bs.setRange('a', 'z');
+            bs.setRange('A', 'Z');
+            bs.setRange('0', '9');
+        } else if (name.equals("PUNCT")) bs.setChars("!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~");
+        else if (name.equals("GRAPH") || name.equals("PRINT")) {
+            bs.setRange('a', 'z');
+            bs.setRange('A', 'Z');
+            bs.setRange('0', '9');
+            bs.setChars("!\"#$%&'()*+,-./:;<=>?@[\\]^_`{|}~");
+        } else if (name.equals("BLANK")) bs.setChars(" \t");
+        else if (name.equals("CNTRL")) {
+            bs.setRange((char) 0, (char) 0x1f);
+            bs.setChar((char) 0x7f);
+        } else if (name.equals("XDIGIT")) {
+            bs.setRange('0', '9');
+            bs.setRange('a', 'f');
+            bs.setRange('A', 'F');
+        } else if (name.equals("SPACE")) bs.setChars(" \t\n\r\f\u000b");
+        else return null;
+        return bs;
     }
 
-    private static void initNames() {
-        initNamedCategory("C");
-        initNamedCategory("Cn");
-        initNamedCategory("Cc");
-        initNamedCategory("Cf");
-        initNamedCategory("Co");
-        initNamedCategory("Cs");
-
-        initNamedCategory("L");
-        initNamedCategory("Lu");
-        initNamedCategory("Ll");
-        initNamedCategory("Lt");
-        initNamedCategory("Lm");
-        initNamedCategory("Lo");
-
-        initNamedCategory("M");
-        initNamedCategory("Mn");
-        initNamedCategory("Me");
-        initNamedCategory("Mc");
-
-        initNamedCategory("N");
-        initNamedCategory("Nd");
-        initNamedCategory("Nl");
-        initNamedCategory("No");
-
-        initNamedCategory("Z");
-        initNamedCategory("Zs");
-        initNamedCategory("Zl");
-        initNamedCategory("Zp");
-        initNamedCategory("Zh");
-        initNamedCategory("Zv");
-
-        initNamedCategory("P");
-        initNamedCategory("Pd");
-        initNamedCategory("Ps");
-        initNamedCategory("Pi");
-        initNamedCategory("Pe");
-        initNamedCategory("Pf");
-        initNamedCategory("Pc");
-        initNamedCategory("Po");
-
-        initNamedCategory("S");
-        initNamedCategory("Sm");
-        initNamedCategory("Sc");
-        initNamedCategory("Sk");
-        initNamedCategory("So");
-
-        initNamedCategory("J");
-        initNamedCategory("Js");
-        initNamedCategory("Jp");
-
-        initNamedCategory("G");
-        initNamedCategory("Gh");
-        initNamedCategory("Gv");
-
-        BlockSet bs = new BlockSet();
-        bs.setCategory("Cn");
-        registerClass("UNASSIGNED", bs, unicodeCategories);
-        bs = new BlockSet();
-        bs.setCategory("Cn");
-        bs.setPositive(false);
-        registerClass("ASSIGNED", bs, unicodeCategories);
-
-        for (int i = 0; i < blockDataStarts.length; i++) {
-            try {
-                initNamedBlock(blockDataNames[i], blockDataStarts[i], blockDataEnds[i]);
-            } catch (Exception e) {
-                e.printStackTrace();
+    /**
+     * Builds the class for a normalized name, or returns null if there is no such class.
+     * Only the tables this one name needs are touched, so an unused block or category costs nothing.
+     */
+    private static BlockSet makeNamedClass(String name) {
+        for (String p : posixNames) {
+            if (p.equals(name)) return makePosixClass(name);
+        }
+        for (String c : categoryNames) {
+            if (c.toUpperCase().equals(name)) {
+                BlockSet bs = new BlockSet();
+                bs.setCategory(c);
+                return bs;
             }
         }
-
-        initNamedBlock("ALL", 0, 0xffff);
-
-        namesInitialized = true;
-        //*/
+        if (name.equals("UNASSIGNED") || name.equals("ASSIGNED")) {
+            BlockSet bs = new BlockSet();
+            bs.setCategory("Cn");
+            bs.setPositive(name.equals("UNASSIGNED"));
+            return bs;
+        }
+        if (name.equals("ALL")) return makeNamedBlock(name, 0, 0xffff);
+        for (int i = 0; i < blockDataNames.length; i++) {
+            if (blockDataNames[i].equals(name)) return makeNamedBlock(name, blockDataStarts[i], blockDataEnds[i]);
+        }
+        return null;
     }
 
-    private static void initNamedBlock(String name, int first, int last) {
+    private static BlockSet makeNamedBlock(String name, int first, int last) {
         if (first < Character.MIN_VALUE || first > Character.MAX_VALUE)
             throw new IllegalArgumentException("wrong start code (" + first + ") in block " + name);
         if (last < Character.MIN_VALUE || last > Character.MAX_VALUE)
             throw new IllegalArgumentException("wrong end code (" + last + ") in block " + name);
         if (last < first) throw new IllegalArgumentException("end code < start code in block " + name);
+        BlockSet bs = new BlockSet();
+        bs.setRange((char) first, (char) last);
+        return bs;
+    }
+
+    /**
+     * Looks up a POSIX class, Unicode category or Unicode block by name, ignoring case, '_' and '-'.
+     * Synchronized so that patterns can be compiled from many threads; a BlockSet is never modified
+     * once it is in namedClasses.
+     */
+    private static synchronized BlockSet getNamedClass(String name) {
         name = name.replace("_", "").replace("-", "").toUpperCase();
         BlockSet bs = namedClasses.get(name);
         if (bs == null) {
-            bs = new BlockSet();
-            registerClass(name, bs, unicodeBlocks);
+            bs = makeNamedClass(name);
+            if (bs != null) namedClasses.put(name, bs);
         }
-        bs.setRange((char) first, (char) last);
-    }
-
-    private static void initNamedCategory(String name) {
-        BlockSet bs = new BlockSet();
-        bs.setCategory(name);
-        registerClass(name.toUpperCase(), bs, unicodeCategories);
-    }
-
-    private static BlockSet getNamedClass(String name) {
-        if (!namesInitialized) initNames();
-        return namedClasses.get(name.replace("_", "").replace("-", "").toUpperCase());
+        return bs;
     }
 /*
     static void makeICase(Term term, char c) {
@@ -280,6 +213,105 @@ class CharacterClass extends Term implements UnicodeConstants {
         BlockSet.unify(bs, term);
     }*/
 
+    /**
+     * Rewrites a term of a caseless pattern, which is tested against case-folded chars, into one that accepts
+     * exactly the raw chars whose fold the old term accepted, so the matcher can test the input as it is.
+     * Terms of other types are left alone.
+     */
+    static void foldCases(Term term) {
+        char[] foldable = Category.foldable();
+        if (term.type == CHAR) {
+            char c = term.c, only = c;
+            BlockSet bs = new BlockSet();
+            int n = 0;
+            if (Category.caseFold(c) == c) {
+                bs.setChar(c);
+                n++;
+            }
+            for (char x : foldable) {
+                if (Category.caseFold(x) == c) {
+                    bs.setChar(x);
+                    only = x;
+                    n++;
+                }
+            }
+            if (n == 1) term.c = only;
+            else BlockSet.unify(bs, term);
+            return;
+        }
+        boolean small;
+        switch (term.type) {
+            case BITSET:
+            case BOUNDARY:
+            case DIRECTION:
+                small = true;
+                break;
+            case BITSET2:
+            case UBOUNDARY:
+            case UDIRECTION:
+                small = false;
+                break;
+            default:
+                return;
+        }
+        //only the sets of BITSET and BITSET2 are inverted, the other terms use the flag for their assertion
+        boolean inv = term.inverse && (term.type == BITSET || term.type == BITSET2);
+        boolean[] wanted = new boolean[foldable.length];
+        for (int k = 0; k < foldable.length; k++) {
+            wanted[k] = accepts(term, Category.caseFold(foldable[k]), small, inv);
+        }
+        IntBitSet[] blocks;
+        IntBitSet outside = null;
+        if (small) {
+            blocks = new IntBitSet[256];
+            blocks[0] = term.bitset;
+            if (inv) {
+                //an inverted small set accepts every char above 255, which an empty block keeps doing
+                outside = new IntBitSet();
+                for (int b = 1; b < 256; b++) blocks[b] = outside;
+            }
+        } else blocks = term.bitset2.clone();
+        boolean[] copied = new boolean[256];
+        boolean large = !small;
+        int weight = term.weight;
+        for (int k = 0; k < foldable.length; k++) {
+            char x = foldable[k];
+            boolean want = wanted[k];
+            if (accepts(term, x, small, inv) == want) continue;
+            int b = x >> 8;
+            IntBitSet block = blocks[b];
+            if (!copied[b]) {
+                if (block == null) {
+                    block = new IntBitSet();
+                    //the chars of a missing block never match, even in an inverted set
+                    if (inv) block.set(0, 255);
+                } else block = block.copy();
+                blocks[b] = block;
+                copied[b] = true;
+            }
+            block.set(x & 0xff, want ^ inv);
+            if (b != 0) large = true;
+            weight += want ? 1 : -1;
+        }
+        if (large) {
+            if (small) {
+                term.bitset = null;
+                term.type = term.type == BITSET ? BITSET2 : term.type == BOUNDARY ? UBOUNDARY : UDIRECTION;
+            }
+            term.bitset2 = blocks;
+        } else {
+            term.bitset = blocks[0];
+        }
+        term.weight = weight;
+    }
+
+    //does the term accept c, as tested in Matcher.search()?
+    private static boolean accepts(Term term, char c, boolean small, boolean inv) {
+        if (small) return (c <= 255 && term.bitset.get(c)) ^ inv;
+        IntBitSet bits = term.bitset2[c >> 8];
+        return bits != null && (bits.get(c & 0xff) ^ inv);
+    }
+
     static void makeDigit(Term term, boolean inverse, boolean unicode) {
         BlockSet digit = unicode ? inverse ? UNONDIGIT : UDIGIT :
                 inverse ? NONDIGIT : DIGIT;
@@ -378,7 +410,7 @@ class CharacterClass extends Term implements UnicodeConstants {
         BlockSet bs = getNamedClass(sb.toString());
         if (bs == null) throw new PatternSyntaxException("unknown class: {" + sb + "}");
         BlockSet.unify(bs, term);
-        term.inverse = inverse;
+        term.inverse = inverse == bs.isPositive();
         return i;
     }
 
@@ -733,10 +765,8 @@ class CharacterClass extends Term implements UnicodeConstants {
         throw new PatternSyntaxException("wrong class name: " + new String(data, i, out - i));
     }
 
-    private static StringBuilder b0 = new StringBuilder(100), b2 = new StringBuilder(100);
-
     static String stringValue0(IntBitSet arr) {
-        b0.setLength(0);
+        StringBuilder b0 = new StringBuilder(100);
         int c = 0;
 
         for (; ; ) {
@@ -775,7 +805,7 @@ class CharacterClass extends Term implements UnicodeConstants {
    */
 
     static String stringValue2(IntBitSet[] arr) {
-        b2.setLength(0);
+        StringBuilder b2 = new StringBuilder(100);
         int c = 0;
         loop:
         for (; ; ) {
@@ -833,17 +863,16 @@ class CharacterClass extends Term implements UnicodeConstants {
 
     /*
     public static void main(String[] args) {
-        if (!namesInitialized) initNames();
         if (args.length == 0) {
             System.out.println("Class usage: \\p{Class},\\P{Class}");
-            printRealm(posixClasses, "Posix classes");
-            printRealm(unicodeCategories, "Unicode categories");
-            printRealm(unicodeBlocks, "Unicode blocks");
+            printRealm(posixNames, "Posix classes");
+            printRealm(categoryNames, "Unicode categories");
+            printRealm(blockDataNames, "Unicode blocks");
         } else {
             for (int i = 0; i < args.length; i++) {
                 System.out.print(args[i]);
                 System.out.print(": ");
-                System.out.println(namedClasses.containsKey(args[i]) ? "supported" : "not supported");
+                System.out.println(getNamedClass(args[i]) != null ? "supported" : "not supported");
             }
         }
     }
@@ -866,7 +895,7 @@ class CharacterClass extends Term implements UnicodeConstants {
       */
 
 
-    private static void printRealm(ArrayList<String> realm, String name) {
+    private static void printRealm(String[] realm, String name) {
         System.out.println(name + ":");
         for (String s : realm) {
             System.out.println("  " + s);
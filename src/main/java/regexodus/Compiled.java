@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2001, Sergey A. Samokhodkin
+ * All rights reserved.
+ * <br>
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * <br>
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * - Redistributions in binary form
+ * must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of jregex nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific prior
+ * written permission.
+ * <br>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version 1.2_01
+ */
+
+
+package regexodus;
+
+import regexodus.ds.IntBitSet;
+
+/**
+ * A matcher generated for one Pattern, which tries its raw program at each position in turn as straight-line code.
+ * The generated classes extend this one; see BytecodeCompiler, which can only run where classes may be defined
+ * at runtime, so nothing else refers to it.
+ * <br>
+ * The slots that search() is given hold, in this order: the in and out of every group (group 0 unused), the position
+ * every group was last entered at, the offset of the target, 1 if the match has to end at the end (0 if not),
+ * and where the match that was found ends.
+ */
+abstract class Compiled {
+    //the char classes of the program, which the generated code tests with
+    final IntBitSet[] bitsets;
+    final IntBitSet[][] bitsets2;
+
+    //how many groups the slots have room for, counting group 0
+    final int groups;
+
+    Compiled(Program program, int groups) {
+        bitsets = program.bitsets;
+        bitsets2 = program.bitsets2;
+        this.groups = groups;
+    }
+
+    //the slots search() needs, with every group unset
+    final int[] slots() {
+        int[] slots = new int[groups * 3 + 3];
+        clear(slots);
+        return slots;
+    }
+
+    final void clear(int[] slots) {
+        for (int k = groups * 2 - 1; k >= 0; k--) slots[k] = -1;
+    }
+
+    final int offsetSlot() {
+        return groups * 3;
+    }
+
+    final int matchEndSlot() {
+        return groups * 3 + 1;
+    }
+
+    final int endSlot() {
+        return groups * 3 + 2;
+    }
+
+    /**
+     * Tries the pattern at every position from i to the last, as the backtracking matcher would try its raw root there.
+     * The arguments come in the order the generated code keeps them in.
+     * @return where the first match starts, or -1 if there's none; where it ends and its groups are in the slots
+     */
+    abstract int search(char[] data, int i, int end, int[] slots, int last);
+}
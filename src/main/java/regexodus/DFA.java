@@ -0,0 +1,478 @@
+/**
+ * Copyright (c) 2001, Sergey A. Samokhodkin
+ * All rights reserved.
+ * <br>
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * <br>
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * - Redistributions in binary form
+ * must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of jregex nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific prior
+ * written permission.
+ * <br>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version 1.2_01
+ */
+
+package regexodus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A lazily built DFA over an {@link NFA} program, shared by all the Matchers of a Pattern.
+ * The states are sets of program threads, created on demand while scanning and kept in a bounded cache;
+ * when the cache has to be flushed too often during one scan, that scan gives up and the Matcher
+ * uses its backtracking search for it. A flush drops the transitions of the flushed states, so no state
+ * of an older generation stays reachable from the cache or gets linked to a new one.
+ * <br>
+ * The DFA finds where the first match to end does so, not where it starts, and not which of the matches a
+ * backtracking search would pick. That lets Matcher.search() reject a target in linear time before any backtracking
+ * is done; otherwise it answers matches() by itself when there are no groups to fill in, and it tells a search for a
+ * pattern of bounded width how far back its match may start. Anything else is still left to the backtracking search.
+ * <br>
+ * Assertions are evaluated between the char before the current position (kept in the state as context bits, see
+ * {@link NFA#contextAfter(char)}) and the char about to be consumed. Perl's "$" may look two chars ahead, so it
+ * doesn't get evaluated at once; instead the thread gets tagged with what the rest of the input has to be.
+ * <br>
+ * The DFA of a program joined from several patterns (see {@link NFA#union(NFA[])}) can also tell which of them
+ * match, in a single pass; its states keep the programs that reached their MATCH on the way in.
+ * <br>
+ * Reading the transitions takes no lock; the states never change once published, except for their transition
+ * arrays, and a missing or stale transition is just recomputed under the lock. A scan that still holds a flushed
+ * state goes on from there, since its threads are still right; only its transitions are gone.
+ */
+class DFA {
+    static final int MATCH = 0;
+    static final int NO_MATCH = -1;
+    static final int GAVE_UP = -2;
+
+    private static final int MAX_STATES = 4096;
+    private static final int MAX_CLASSES = 1024;
+    private static final int MAX_FLUSHES = 4;
+
+    //what the rest of the input has to be for a thread that passed Perl's "$"
+    private static final int TAG_NONE = 0;
+    private static final int TAG_EOL = 1;   // "", "\n" or "\r\n"
+    private static final int TAG_LF = 2;    // "\n"
+    private static final int TAG_END = 3;   // ""
+    private static final int TAG_DEAD = -1;
+
+    //mode bits
+    private static final int UNANCHORED = 1;
+    private static final int MATCH_END = 2;
+
+    private static final int[] NONE = new int[0];
+    private static final State[] FLUSHED = new State[0];
+    //the block of the chars that got no class because there were too many
+    private static final char[] OVERFLOW = new char[256];
+
+    private final NFA nfa;
+
+    //the most chars a match of the program takes, -1 if there's no bound
+    final int maxLength;
+
+    //how many programs were joined in the NFA, one for that of a single pattern
+    private final int programs;
+
+    //consuming instructions with distinct tests, used to split the chars into classes
+    private final int[] testPcs;
+
+    private final HashMap<State, State> states = new HashMap<State, State>();
+    private final HashMap<String, Integer> signatures = new HashMap<String, Integer>();
+    private final char[][] classes = new char[256][];
+    private int classCount;
+    private volatile int flushes;
+    private volatile State lastStart;
+
+    //closure workspace, used under the lock
+    private int[] marks;
+    private int mark;
+    private int[] stack = new int[16];
+    private int[] hits = new int[16];
+
+    private static final class State {
+        final int[] kernel;
+        final int ctx, mode;
+        final boolean matched;
+        //the programs that matched just before this state, by the alt of their MATCH
+        final int[] matches;
+        final int hash;
+        //the flush count when the state was made; a state of an older generation never gets a transition
+        final int generation;
+        volatile State[] next;
+        volatile int accepts; //0 - unknown, 1 - no, 2 - yes
+        volatile int[] ends; //the programs that match at the end, null until asked for
+
+        State(int[] kernel, int ctx, int mode, int[] matches, int classes, int generation) {
+            this.kernel = kernel;
+            this.ctx = ctx;
+            this.mode = mode;
+            this.matches = matches;
+            this.generation = generation;
+            matched = matches.length > 0;
+            next = new State[classes + 1];
+            hash = ((Arrays.hashCode(kernel) * 31 + ctx) * 31 + mode) * 31 + Arrays.hashCode(matches);
+        }
+
+        boolean dead() {
+            return kernel.length == 0 && (mode & UNANCHORED) == 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof State)) return false;
+            State s = (State) o;
+            return hash == s.hash && ctx == s.ctx && mode == s.mode && Arrays.equals(matches, s.matches)
+                    && Arrays.equals(kernel, s.kernel);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    DFA(NFA nfa) {
+        this.nfa = nfa;
+        maxLength = nfa.maxLength();
+        int matches = 0;
+        ArrayList<Term> seen = new ArrayList<Term>();
+        int[] tests = new int[nfa.length];
+        int n = 0;
+        for (int pc = 0; pc < nfa.length; pc++) {
+            switch (nfa.op[pc]) {
+                case NFA.MATCH:
+                    matches++;
+                    break;
+                case NFA.CHAR:
+                case NFA.BITSET:
+                case NFA.BITSET2: {
+                    Term t = nfa.terms[pc];
+                    boolean known = false;
+                    for (Term s : seen) {
+                        if (s == t) {
+                            known = true;
+                            break;
+                        }
+                    }
+                    if (!known) {
+                        seen.add(t);
+                        tests[n++] = pc;
+                    }
+                }
+            }
+        }
+        programs = matches;
+        testPcs = Arrays.copyOf(tests, n);
+        marks = new int[nfa.length * 4];
+    }
+
+    /**
+     * Finds where the first match of the program in data ends, starting at from or (when not anchored) anywhere
+     * after it. A match that only holds at the end of the region is reported there, though its "$" may stand before
+     * a last line break of up to two chars.
+     *
+     * @param offset      the start of the region, as seen by "^" and the like
+     * @param from        where the match may start
+     * @param end         the end of the region
+     * @param anchorStart if the match should start just at from
+     * @param matchEnd    if the match should end just at end
+     * @return the end of the first match, NO_MATCH, or GAVE_UP if the caller should find it out by itself
+     */
+    int scan(char[] data, int offset, int from, int end, boolean anchorStart, boolean matchEnd) {
+        int mode = (anchorStart ? 0 : UNANCHORED) | (matchEnd ? MATCH_END : 0);
+        int flushes0 = flushes;
+        State s = start(nfa.context(data, from, offset), mode);
+        for (int i = from; i < end; i++) {
+            char c = data[i];
+            char[] block = classes[c >> 8];
+            int cls = block == null ? 0 : block[c & 255];
+            State[] next = s.next;
+            State t;
+            if (cls == 0 || cls >= next.length || (t = next[cls]) == null) {
+                t = step(s, c);
+                if (t == null || flushes - flushes0 > MAX_FLUSHES) return GAVE_UP;
+            }
+            //the threads of s reached the match before the char at i
+            if (t.matched) return i;
+            if (t.dead()) return NO_MATCH;
+            s = t;
+        }
+        int accepts = s.accepts;
+        if (accepts == 0) {
+            synchronized (this) {
+                s.accepts = accepts = acceptsAtEnd(s) ? 2 : 1;
+            }
+        }
+        return accepts == 2 ? end : NO_MATCH;
+    }
+
+    /**
+     * Tells which programs of a joined NFA match in data, in one pass; see {@link NFA#union(NFA[])}.
+     *
+     * @param found       gets true at the index of each program that matches
+     * @param first       if the scan may stop after it finds any match
+     * @return MATCH if some program matches, NO_MATCH, or GAVE_UP if the caller should find it out by itself
+     */
+    int scan(char[] data, int offset, int from, int end, boolean anchorStart, boolean matchEnd,
+             boolean[] found, boolean first) {
+        int mode = (anchorStart ? 0 : UNANCHORED) | (matchEnd ? MATCH_END : 0);
+        int flushes0 = flushes;
+        int left = programs;
+        State s = start(nfa.context(data, from, offset), mode);
+        for (int i = from; i < end; i++) {
+            char c = data[i];
+            char[] block = classes[c >> 8];
+            int cls = block == null ? 0 : block[c & 255];
+            State[] next = s.next;
+            State t;
+            if (cls == 0 || cls >= next.length || (t = next[cls]) == null) {
+                t = step(s, c);
+                if (t == null || flushes - flushes0 > MAX_FLUSHES) return GAVE_UP;
+            }
+            if (t.matched) {
+                for (int k : t.matches) {
+                    if (!found[k]) {
+                        found[k] = true;
+                        left--;
+                    }
+                }
+                if (first || left == 0) return MATCH;
+            }
+            if (t.dead()) return left == programs ? NO_MATCH : MATCH;
+            s = t;
+        }
+        int[] ends = s.ends;
+        if (ends == null) s.ends = ends = endMatches(s);
+        for (int k : ends) {
+            if (!found[k]) {
+                found[k] = true;
+                left--;
+            }
+        }
+        return left == programs ? NO_MATCH : MATCH;
+    }
+
+    private State start(int ctx, int mode) {
+        State s = lastStart;
+        if (s != null && s.ctx == ctx && s.mode == mode) return s;
+        synchronized (this) {
+            int[] kernel = (mode & UNANCHORED) != 0 ? new int[0] : new int[]{nfa.start << 2};
+            return lastStart = intern(kernel, ctx, mode, NONE);
+        }
+    }
+
+    private State intern(int[] kernel, int ctx, int mode, int[] matches) {
+        State s = new State(kernel, ctx, mode, matches, classCount, flushes);
+        State known = states.get(s);
+        if (known != null) return known;
+        if (states.size() >= MAX_STATES) {
+            //let go of the whole old graph, not just of the map
+            for (State old : states.keySet()) {
+                old.next = FLUSHED;
+            }
+            states.clear();
+            lastStart = null;
+            s = new State(kernel, ctx, mode, matches, classCount, ++flushes);
+        }
+        states.put(s, s);
+        return s;
+    }
+
+    private synchronized State step(State s, char c) {
+        int cls = classOf(c);
+        if (cls <= 0) return null;
+        State[] next = s.next;
+        if (cls < next.length && next[cls] != null) return next[cls];
+
+        int[] list = closure(s, c);
+        int n = list[0];
+        int[] matches = list[1] == 0 || (s.mode & MATCH_END) != 0 ? NONE : sortedSet(Arrays.copyOf(hits, list[1]), list[1]);
+        int[] kernel = new int[n];
+        int k = 0;
+        int[] op = nfa.op, to = nfa.next;
+        boolean matchEnd = (s.mode & MATCH_END) != 0;
+        for (int j = 2; j < n + 2; j++) {
+            int pc = list[j] >> 2, tag = stepTag(list[j] & 3, c);
+            if (tag == TAG_DEAD) continue;
+            if (op[pc] == NFA.MATCH) {
+                //a match that depends on the rest of the input
+                if (!matchEnd) kernel[k++] = pc << 2 | tag;
+            } else if (nfa.accepts(pc, c)) kernel[k++] = to[pc] << 2 | tag;
+        }
+        kernel = sortedSet(kernel, k);
+        State t = intern(kernel, nfa.contextAfter(c), s.mode, matches);
+        //s was flushed before or just now, so it must not keep t
+        if (s.generation != flushes) return t;
+
+        next = s.next;
+        if (cls >= next.length) {
+            State[] grown = new State[classCount + 1];
+            System.arraycopy(next, 0, grown, 0, next.length);
+            next = grown;
+        }
+        next[cls] = t;
+        s.next = next;
+        return t;
+    }
+
+    private boolean acceptsAtEnd(State s) {
+        int[] list = closure(s, -1);
+        for (int j = 2; j < list[0] + 2; j++) {
+            if (nfa.op[list[j] >> 2] == NFA.MATCH && (list[j] & 3) != TAG_LF) return true;
+        }
+        return false;
+    }
+
+    //the programs that match at the end of the input, after the state s
+    private synchronized int[] endMatches(State s) {
+        int[] list = closure(s, -1);
+        int[] ends = new int[list[0]];
+        int n = 0;
+        for (int j = 2; j < list[0] + 2; j++) {
+            int pc = list[j] >> 2;
+            if (nfa.op[pc] == NFA.MATCH && (list[j] & 3) != TAG_LF) ends[n++] = nfa.alt[pc];
+        }
+        return sortedSet(ends, n);
+    }
+
+    /**
+     * Follows the non-consuming instructions from the threads of s, before the char c (or -1 at the end).
+     *
+     * @return an array with the number of the threads that wait for a char or that reached a match with a tag,
+     * the number of untagged matches reached, and these threads; the alt of the MATCH of those untagged matches are
+     * put in hits
+     */
+    private int[] closure(State s, int c) {
+        int[] op = nfa.op, next = nfa.next, alt = nfa.alt;
+        int[] result = new int[2 + nfa.length * 4];
+        int n = 0, h = 0;
+        if (++mark == 0) {
+            Arrays.fill(marks, 0);
+            mark = 1;
+        }
+        int sp = 0;
+        int[] kernel = s.kernel;
+        for (int j = kernel.length - 1; j >= 0; j--) {
+            sp = push(sp, kernel[j]);
+        }
+        if ((s.mode & UNANCHORED) != 0) sp = push(sp, nfa.start << 2);
+        int ctx = s.ctx;
+        while (sp > 0) {
+            int entry = stack[--sp];
+            if (marks[entry] == mark) continue;
+            marks[entry] = mark;
+            int pc = entry >> 2, tag = entry & 3;
+            switch (op[pc]) {
+                case NFA.MATCH:
+                    if (tag == TAG_NONE) {
+                        if (h == hits.length) hits = Arrays.copyOf(hits, h << 1);
+                        hits[h++] = alt[pc];
+                        //at the end of the input, an untagged match is just one more accepting thread
+                        if (c < 0) result[2 + n++] = entry;
+                    } else result[2 + n++] = entry;
+                    break;
+                case NFA.SPLIT:
+                    sp = push(sp, alt[pc] << 2 | tag);
+                    sp = push(sp, next[pc] << 2 | tag);
+                    break;
+                case NFA.JUMP:
+                case NFA.SAVE:
+                    sp = push(sp, next[pc] << 2 | tag);
+                    break;
+                case NFA.ASSERT:
+                    if (nfa.assertion(pc, ctx, c)) sp = push(sp, next[pc] << 2 | tag);
+                    break;
+                case NFA.END_EOL:
+                    sp = push(sp, next[pc] << 2 | (tag == TAG_NONE ? TAG_EOL : tag));
+                    break;
+                default:
+                    result[2 + n++] = entry;
+            }
+        }
+        result[0] = n;
+        result[1] = h;
+        return result;
+    }
+
+    private int push(int sp, int entry) {
+        if (sp == stack.length) stack = Arrays.copyOf(stack, sp << 1);
+        stack[sp] = entry;
+        return sp + 1;
+    }
+
+    private static int stepTag(int tag, char c) {
+        switch (tag) {
+            case TAG_NONE:
+                return TAG_NONE;
+            case TAG_EOL:
+                return c == '\n' ? TAG_END : c == '\r' ? TAG_LF : TAG_DEAD;
+            case TAG_LF:
+                return c == '\n' ? TAG_END : TAG_DEAD;
+            default:
+                return TAG_DEAD;
+        }
+    }
+
+    private static int[] sortedSet(int[] a, int n) {
+        Arrays.sort(a, 0, n);
+        int k = 0;
+        for (int j = 0; j < n; j++) {
+            if (k == 0 || a[k - 1] != a[j]) a[k++] = a[j];
+        }
+        return k == a.length ? a : Arrays.copyOf(a, k);
+    }
+
+    /**
+     * Chars that pass the same tests are interchangeable for the DFA. The classes are assigned a block of 256 chars
+     * at a time, when a char of the block is first seen.
+     *
+     * @return the class of c, or 0 if there are too many classes; the block of c is then left without classes, so
+     * only the scans that meet its chars give up
+     */
+    private int classOf(char c) {
+        char[] block = classes[c >> 8];
+        if (block != null) return block[c & 255];
+        block = new char[256];
+        int base = c & 0xff00;
+        StringBuilder sb = new StringBuilder(testPcs.length + nfa.predicates.length + 3);
+        for (int j = 0; j < 256; j++) {
+            char ch = (char) (base + j);
+            sb.setLength(0);
+            for (int pc : testPcs) {
+                sb.append(nfa.accepts(pc, ch) ? '1' : '0');
+            }
+            sb.append(ch == '\n' ? '1' : ch == '\r' ? '2' : '0');
+            sb.append(nfa.contextAfter(ch));
+            String sig = sb.toString();
+            Integer cls = signatures.get(sig);
+            if (cls == null) {
+                if (classCount == MAX_CLASSES) {
+                    classes[c >> 8] = OVERFLOW;
+                    return 0;
+                }
+                cls = ++classCount;
+                signatures.put(sig, cls);
+            }
+            block[j] = (char) cls.intValue();
+        }
+        classes[c >> 8] = block;
+        return block[c & 255];
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2001, Sergey A. Samokhodkin
+ * All rights reserved.
+ * <br>
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * <br>
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * - Redistributions in binary form
+ * must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of jregex nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific prior
+ * written permission.
+ * <br>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version 1.2_01
+ */
+
+package regexodus;
+
+import java.util.Arrays;
+
+/**
+ * A Horspool scanner for a literal that every match of a pattern contains, like ".com" in
+ * "[\w.]+@[\w.]+\.com". A target, or the rest of one, that doesn't contain the literal is rejected without
+ * backtracking, and when no more than reach chars can come before the literal in a match, the search starts
+ * at most that far before the next place it is found. When every match repeats one atom right up to the literal,
+ * like "[\w.]+\.log", the search instead starts where the run of that atom before the literal does, found by
+ * reading the target backwards from the literal.
+ * <br>
+ * The skip table is indexed by the low byte of a char, so chars that share it share the smallest skip.
+ */
+class Horspool {
+    //the literal; folded if the pattern is caseless
+    private final char[] literal;
+    private final boolean caseless;
+
+    //how far to move when the last char of the window is the one with that low byte
+    private final int[] skip = new int[256];
+
+    /**
+     * How many chars a match can have before the literal; -1 if that isn't bounded.
+     */
+    final int reach;
+
+    /**
+     * The atom that every match repeats right up to the literal; null if matches get there otherwise.
+     */
+    final Term run;
+
+    Horspool(char[] literal, boolean caseless, int reach, Term run) {
+        this.literal = literal;
+        this.caseless = caseless;
+        this.reach = reach;
+        this.run = run;
+        int last = literal.length - 1;
+        Arrays.fill(skip, literal.length);
+        for (int k = 0; k < last; k++) {
+            skip[literal[k] & 0xff] = last - k;
+        }
+    }
+
+    /**
+     * @return where the literal is first found in data from index from on, ending before end; -1 if it isn't
+     */
+    int find(char[] data, int from, int end) {
+        char[] literal = this.literal;
+        int last = literal.length - 1;
+        char tail = literal[last];
+        int[] skip = this.skip;
+        if (caseless) {
+            for (int i = from + last; i < end; ) {
+                char c = Category.caseFold(data[i]);
+                if (c == tail) {
+                    int k = last - 1, j = i - 1;
+                    while (k >= 0 && Category.caseFold(data[j]) == literal[k]) {
+                        k--;
+                        j--;
+                    }
+                    if (k < 0) return j + 1;
+                }
+                i += skip[c & 0xff];
+            }
+        } else {
+            for (int i = from + last; i < end; ) {
+                char c = data[i];
+                if (c == tail) {
+                    int k = last - 1, j = i - 1;
+                    while (k >= 0 && data[j] == literal[k]) {
+                        k--;
+                        j--;
+                    }
+                    if (k < 0) return j + 1;
+                }
+                i += skip[c & 0xff];
+            }
+        }
+        return -1;
+    }
+}
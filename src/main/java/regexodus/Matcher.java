@@ -100,11 +100,8 @@ public class Matcher implements MatchResult, Serializable {
      */
     public static final int ACCEPT_INCOMPLETE = 8;
 
-    //see search(ANCHOR_START|...)
-    private static Term startAnchor = new Term(Term.START);
-
-    //see search(ANCHOR_LASTMATCH|...)
-    private static Term lastMatchAnchor = new Term(Term.LAST_MATCH_END);
+    //internal option: don't hand the search over to the linear-time matcher
+    private static final int BACKTRACK_ONLY = 16;
 
     private Pattern re;
     private int[] counters;
@@ -118,14 +115,47 @@ public class Matcher implements MatchResult, Serializable {
     private int offset, end, wOffset, wEnd;
     private boolean shared;
 
-    private SearchEntry top;           //stack entry
-    private SearchEntry first;         //object pool entry
-    private SearchEntry defaultEntry;  //called when moving the window
+    //the backtracking stack, one slot per alternative: the program record to resume at, its position,
+    //its count and group length, and how long the undo log was when it was pushed;
+    //top is its height, the slot at top being the state of the running search
+    private int[] stackPcs;
+    private int[] stackIndex, stackCnt, stackRegLen, stackLog;
+    private int top;
+
+    //the undo log, three ints per saved value: a memreg index with its in and out,
+    //or -1 - a counter index with its value; popping an alternative rolls it back
+    //to the height it had when that alternative was pushed
+    private int[] undo;
+    private int undoTop;
 
     private boolean called;
 
+    //the linear-time matcher, if the pattern uses one
+    private PikeVM pike;
+
+    //the slots the generated matcher of the pattern fills, see Compiled
+    private int[] slots;
+
+    //the anchors of the last search if its match was found by the linear-time matcher,
+    //which keeps no alternatives; -1 otherwise
+    private int linearMatch = -1;
+
     private int minQueueLength;
 
+    //the most backtracking steps and milliseconds a search may take; 0 means no limit
+    private long stepLimit, timeLimit;
+
+    //how many steps pass between two looks at the clock
+    private static final int TIME_CHECK_INTERVAL = 1 << 12;
+
+    //the failures of the memoized terms: bit (i-offset)*re.memoTerms+term.memoId is set once the term was tried at i;
+    //only the words from memoFrom to memoTo may be dirty
+    private int[] memo;
+    private int memoFrom, memoTo;
+
+    //the most bits a search may use for memoizing
+    private static final long MEMO_LIMIT = 1L << 25;
+
     private CharSequence cache;
 
     //cache may be longer than the actual data
@@ -143,6 +173,8 @@ public class Matcher implements MatchResult, Serializable {
         m.called = this.called;
         m.offset = this.offset;
         m.end = this.end;
+        m.stepLimit = this.stepLimit;
+        m.timeLimit = this.timeLimit;
         return m;
     }
 
@@ -166,6 +198,11 @@ public class Matcher implements MatchResult, Serializable {
     public void setPattern(Pattern regex)
     {
         this.re = regex;
+        pike = null;
+        slots = null;
+        memo = null;
+        stepLimit = regex.getStepLimit();
+        timeLimit = regex.getTimeLimit();
 
         int memregCount, counterCount, lookaheadCount;
         if ((memregCount = regex.memregs) > 0) {
@@ -190,10 +227,17 @@ public class Matcher implements MatchResult, Serializable {
         this.counterCount = counterCount;
         this.lookaheadCount = lookaheadCount;
 
-        first = new SearchEntry();
-        defaultEntry = new SearchEntry();
         minQueueLength = regex.stringRepr.length() / 2;  // just evaluation!!!
 
+        int capacity = Math.max(8, minQueueLength);
+        stackPcs = new int[capacity];
+        stackIndex = new int[capacity];
+        stackCnt = new int[capacity];
+        stackRegLen = new int[capacity];
+        stackLog = new int[capacity];
+        undo = new int[capacity * 3];
+        top = undoTop = 0;
+
     }
     /**
      * This method allows to efficiently pass data between matchers.
@@ -625,7 +669,8 @@ public class Matcher implements MatchResult, Serializable {
      */
     public boolean proceed(int options) {
         if (called) {
-            if (top == null) {
+            if (top == 0 && linearMatch >= 0) replay();
+            if (top == 0) {
                 wOffset++;
             }
         }
@@ -639,7 +684,8 @@ public class Matcher implements MatchResult, Serializable {
         int we = wEnd;
         if (wOffset == we) { //requires special handling
             //if no variants at 'wOutside',advance pointer and clear
-            if (top == null) {
+            if (top == 0 && linearMatch >= 0) replay();
+            if (top == 0) {
                 wOffset++;
                 flush();
             }
@@ -650,10 +696,16 @@ public class Matcher implements MatchResult, Serializable {
             if (we < 0) wOffset = 0;
             else wOffset = we;
         }
-        //rflush(); //rflush() works faster on simple regexes (with a small group/branch number)
         flush();
     }
 
+    //repeats the last match by backtracking, so that its alternatives can be tried
+    private void replay() {
+        int anchors = linearMatch;
+        flush();
+        search(ANCHOR_START | (anchors & ANCHOR_END) | BACKTRACK_ONLY);
+    }
+
     private void init() {
         //wOffset=-1;
         wOffset = offset;
@@ -662,13 +714,46 @@ public class Matcher implements MatchResult, Serializable {
         flush();
     }
 
+    /**
+     * Limits the backtracking steps each search may take, that is each find(), matches() and the like.
+     * A step is a branch into alternatives, a return to an alternative that the search left behind, or a move to
+     * the next place a match could start at. A search that takes more steps throws a
+     * {@link MatchLimitExceededException}, which bounds the time a pathological pattern such as "(a+)+$" can take.
+     * Patterns that are matched in linear time never run out of steps.
+     * The default is taken from {@link Pattern#setStepLimit(long)}.
+     * @param stepLimit the most steps a search may take, or 0 for no limit
+     */
+    public void setStepLimit(long stepLimit) {
+        if (stepLimit < 0) throw new IllegalArgumentException("negative step limit: " + stepLimit);
+        this.stepLimit = stepLimit;
+    }
+
+    public long getStepLimit() {
+        return stepLimit;
+    }
+
+    /**
+     * Limits the time each search may take, that is each find(), matches() and the like; a search that takes longer
+     * throws a {@link MatchLimitExceededException}. The clock is only read every few thousand backtracking steps,
+     * so the limit can be overrun by a little.
+     * The default is taken from {@link Pattern#setTimeLimit(long)}.
+     * @param timeLimit the most milliseconds a search may take, or 0 for no limit
+     */
+    public void setTimeLimit(long timeLimit) {
+        if (timeLimit < 0) throw new IllegalArgumentException("negative time limit: " + timeLimit);
+        this.timeLimit = timeLimit;
+    }
+
+    public long getTimeLimit() {
+        return timeLimit;
+    }
+
     /**
      * Resets the internal state.
      */
     public void flush() {
-        top = null;
-        defaultEntry.reset(0);
-        first.reset(minQueueLength);
+        top = undoTop = 0;
+        linearMatch = -1;
 
         for (int i = memregs.length - 1; i >= 0; i--) {
             MemReg mr = memregs[i];
@@ -677,22 +762,6 @@ public class Matcher implements MatchResult, Serializable {
         called = false;
     }
 
-    //reverse flush
-    //may work significantly faster,
-    //need testing
-    private void rflush() {
-        SearchEntry entry = top;
-        top = null;
-        MemReg[] memregs = this.memregs;
-        int[] counters = this.counters;
-        while (entry != null) {
-            SearchEntry next = entry.sub;
-            SearchEntry.popState(entry, memregs, counters);
-            entry = next;
-        }
-        SearchEntry.popState(defaultEntry, memregs, counters);
-    }
-
     /**
      */
     public String toString() {
@@ -1162,6 +1231,7 @@ public class Matcher implements MatchResult, Serializable {
 
     public boolean search(int anchors) {
         called = true;
+        linearMatch = -1;
         final int end = this.end;
         int offset = this.offset;
         char[] data = this.data;
@@ -1175,40 +1245,152 @@ public class Matcher implements MatchResult, Serializable {
         //int memregCount=memregs.length;
         //int cntCount=counters.length;
 
-        SearchEntry defaultEntry = this.defaultEntry;
-        SearchEntry first = this.first;
-        SearchEntry top = this.top;
-        SearchEntry actual;
+        int top = this.top;
         int cnt, regLen;
         int i;
 
         final boolean matchEnd = (anchors & ANCHOR_END) > 0;
         final boolean allowIncomplete = (anchors & ACCEPT_INCOMPLETE) > 0;
 
+        long steps = 0, nextCheck = nextCheck(0);
+        final long deadline = timeLimit > 0 ? System.currentTimeMillis() + timeLimit : 0;
+        final int memoTerms = this.re.memoTerms;
+        boolean memoize = false;
+
         Pattern re = this.re;
-        Term root = re.root;
-        Term term;
-        if (top == null) {
+        Program prog = re.program;
+        int[] code = prog.code;
+        IntBitSet[] bitsets = prog.bitsets;
+        IntBitSet[][] bitsets2 = prog.bitsets2;
+        char[][] strings = prog.strings;
+        //the optimized root may give up as soon as its first atom can't be found,
+        //which would lose a partial match at the end of the input
+        int root = allowIncomplete ? prog.root0 : prog.root;
+        //an anchored pattern is only tried where its anchor meets;
+        //the anchoring search options already stop after the first try
+        final int anchor = (anchors & (ANCHOR_START | ANCHOR_LASTMATCH)) == 0 ? re.anchor : -1;
+        //where the literal every match contains was found last, if the search looks for it; -1 otherwise
+        int requiredAt = -1;
+        int pc;
+        if (top == 0) {
+            if (anchor >= 0 && wOffset <= end) {
+                int at = anchorAt(anchor, wOffset);
+                if (at > end) {
+                    //a \G that doesn't meet leaves the window where it is, as it does when tried
+                    this.wOffset = anchor == Term.LAST_MATCH_END ? wOffset : end + 1;
+                    this.top = 0;
+                    return false;
+                }
+                wOffset = at;
+            }
+            Horspool required = re.required;
+            if (required != null && wOffset <= end && (anchors & (ANCHOR_LASTMATCH | ACCEPT_INCOMPLETE)) == 0) {
+                requiredAt = required.find(data, wOffset, end);
+                if (requiredAt < 0) {
+                    //leave the window where a failed backtracking search would leave it
+                    this.wOffset = (anchors & ANCHOR_START) > 0 ? wOffset + 1 : end + 1;
+                    this.top = 0;
+                    return false;
+                }
+                if ((anchors & ANCHOR_START) == 0) wOffset = earliestStart(required, wOffset, requiredAt);
+            }
+            AhoCorasick literals = re.literals;
+            if (literals != null && wOffset <= end && (anchors & (ANCHOR_LASTMATCH | ACCEPT_INCOMPLETE | BACKTRACK_ONLY)) == 0
+                    && !(matchEnd && literals.atomic)) {
+                long found = literals.find(data, wOffset, end, (anchors & ANCHOR_START) > 0, matchEnd);
+                if (found < 0) {
+                    this.wOffset = (anchors & ANCHOR_START) > 0 ? wOffset + 1 : end + 1;
+                    this.top = 0;
+                    return false;
+                }
+                this.wOffset = memregs[0].in = (int) (found >>> 32);
+                this.wEnd = memregs[0].out = (int) found;
+                this.top = 0;
+                linearMatch = anchors;
+                return true;
+            }
+            ShiftAnd shiftAnd = re.shiftAnd;
+            DFA dfa = re.dfa;
+            if (shiftAnd != null && wOffset <= end && (anchors & ~BACKTRACK_ONLY) == 0) {
+                int found = shiftAnd.scan(data, wOffset, end);
+                if (found < 0) {
+                    this.wOffset = end + 1;
+                    this.top = 0;
+                    return false;
+                }
+                //no match ends before found, so none may start before the longest one would
+                if (found - shiftAnd.maxLength > wOffset) wOffset = found - shiftAnd.maxLength;
+            } else if (dfa != null && wOffset <= end && (anchors & (ANCHOR_LASTMATCH | ACCEPT_INCOMPLETE)) == 0) {
+                int found = dfa.scan(data, offset, wOffset, end, (anchors & ANCHOR_START) > 0, matchEnd);
+                if (found == DFA.NO_MATCH) {
+                    //leave the window where a failed backtracking search would leave it
+                    this.wOffset = (anchors & ANCHOR_START) > 0 ? wOffset + 1 : end + 1;
+                    this.top = 0;
+                    return false;
+                }
+                if (found >= 0 && anchors == (ANCHOR_START | ANCHOR_END) && memregs.length == 1) {
+                    //the whole region matches, and there are no groups to fill in
+                    this.wOffset = memregs[0].in = wOffset;
+                    this.wEnd = memregs[0].out = end;
+                    this.top = 0;
+                    linearMatch = anchors;
+                    return true;
+                }
+                //no match ends before found, so none may start before the longest one would;
+                //a match found at the end may have its "$" before a last "\r\n"
+                int maxLength = dfa.maxLength;
+                if (found >= 0 && maxLength >= 0 && (anchors & ANCHOR_START) == 0 && anchor < 0 && requiredAt < 0) {
+                    int earliest = found - maxLength - (found == end ? 2 : 0);
+                    if (earliest > wOffset) wOffset = earliest;
+                }
+            }
+            NFA linear = re.linear;
+            if (linear != null && (anchors & (ANCHOR_LASTMATCH | ACCEPT_INCOMPLETE | BACKTRACK_ONLY)) == 0) {
+                PikeVM pike = this.pike;
+                if (pike == null) this.pike = pike = new PikeVM(linear);
+                if (!pike.search(data, offset, wOffset, end, (anchors & ANCHOR_START) > 0, matchEnd)) {
+                    this.wOffset = (anchors & ANCHOR_START) > 0 ? wOffset + 1 : end + 1;
+                    this.top = 0;
+                    return false;
+                }
+                int[] slots = pike.match;
+                for (int k = memregs.length - 1; k > 0; k--) {
+                    MemReg mr = memregs[k];
+                    mr.in = slots[k * 2];
+                    mr.out = slots[k * 2 + 1];
+                }
+                this.wOffset = memregs[0].in = slots[0];
+                this.wEnd = memregs[0].out = pike.matchEnd;
+                this.top = 0;
+                linearMatch = anchors;
+                return true;
+            }
+            Compiled compiled = re.compiled;
+            if (compiled != null && memoTerms == 0 && stepLimit == 0 && timeLimit == 0
+                    && (anchors & (ANCHOR_LASTMATCH | ACCEPT_INCOMPLETE | BACKTRACK_ONLY)) == 0) {
+                return searchCompiled(compiled, anchors, wOffset, anchor, requiredAt);
+            }
+            //only a search that starts afresh knows that what it tried has failed
+            memoize = memoTerms > 0 && clearMemo();
             if ((anchors & ANCHOR_START) > 0) {
-                term = re.root0;  //raw root
-                root = startAnchor;
+                pc = prog.root0;  //raw root
+                root = prog.startAnchor;
             } else if ((anchors & ANCHOR_LASTMATCH) > 0) {
-                term = re.root0;  //raw root
-                root = lastMatchAnchor;
+                pc = prog.root0;  //raw root
+                root = prog.lastMatchAnchor;
             } else {
-                term = root;  //optimized root
+                pc = root;  //optimized root
             }
             i = wOffset;
-            actual = first;
-            SearchEntry.popState(defaultEntry, memregs, counters);
+            undo(0);
         } else {
-            top = (actual = top).sub;
-            term = actual.term;
-            i = actual.index;
-            SearchEntry.popState(actual, memregs, counters);
+            top--;
+            pc = stackPcs[top];
+            i = stackIndex[top];
+            undo(stackLog[top]);
         }
-        cnt = actual.cnt;
-        regLen = actual.regLen;
+        cnt = stackCnt[top];
+        regLen = stackRegLen[top];
 
         main:
         while (wOffset <= end) {
@@ -1216,22 +1398,22 @@ public class Matcher implements MatchResult, Serializable {
             for (; ; ) {
                 int memreg, cntreg;
                 char c;
-                if(term != null) {
-                    switch (term.type) {
+                if (pc >= 0) {
+                    switch (code[pc]) {
                         case Term.FIND: {
-                            int jump = find(data, i + term.distance, end, term.target); //don't eat the last match
+                            int jump = prog.find(data, i + code[pc + Program.DISTANCE], end, code[pc + Program.TARGET]); //don't eat the last match
                             if (jump < 0) break main; //return false
                             i += jump;
                             wOffset = i; //force window to move
-                            if (term.eat) {
+                            if ((code[pc + Program.FLAGS] & Program.EAT) != 0) {
                                 if (i == end) break;
                                 i++;
                             }
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue matchHere;
                         }
                         case Term.FINDREG: {
-                            MemReg mr = memregs[term.target.memreg];
+                            MemReg mr = memregs[code[code[pc + Program.TARGET] + Program.ARG]];
                             int sampleOff = mr.in;
                             int sampleLen = mr.out - sampleOff;
                             //if(sampleOff<0 || sampleLen<0) throw new Error("backreference used before definition: \\"+term.memreg);
@@ -1239,39 +1421,65 @@ public class Matcher implements MatchResult, Serializable {
                             if (sampleOff < 0 || sampleLen < 0) {
                                 break;
                             } else if (sampleLen == 0) {
-                                term = term.next;
+                                pc = code[pc + Program.NEXT];
                                 continue matchHere;
                             }
-                            int jump = findReg(data, i + term.distance, sampleOff, sampleLen, term.target, end); //don't eat the last match
+                            int jump = prog.findReg(data, i + code[pc + Program.DISTANCE], sampleOff, sampleLen, code[pc + Program.TARGET], end); //don't eat the last match
                             if (jump < 0) break main; //return false
                             i += jump;
                             wOffset = i; //force window to move
-                            if (term.eat) {
+                            if ((code[pc + Program.FLAGS] & Program.EAT) != 0) {
                                 i += sampleLen;
                                 if (i > end) break;
                             }
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue matchHere;
                         }
                         case Term.VOID:
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue matchHere;
 
                         case Term.CHAR:
                             //can only be 1-char-wide
                             //  \/
-                            if (i >= end || (re.caseless ? Category.caseFold(data[i]) : data[i]) != term.c)
+                            if (i >= end || data[i] != code[pc + Program.ARG])
                                 break;
                             i++;
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue matchHere;
 
+                        case Term.STRING: {
+                            char[] str = strings[code[pc + Program.ARG]];
+                            int len = str.length, k = 0, n = Math.min(len, end - i);
+                            while (k < n && data[i + k] == str[k]) k++;
+                            if (k < len) {
+                                if (i + k == end) i = end;  //the text ends inside, see ACCEPT_INCOMPLETE
+                                break;
+                            }
+                            i += len;
+                            pc = code[pc + Program.NEXT];
+                            continue matchHere;
+                        }
+
+                        case Term.STRING_I: {
+                            char[] str = strings[code[pc + Program.ARG]];
+                            int len = str.length, k = 0, n = Math.min(len, end - i);
+                            while (k < n && Category.caseFold(data[i + k]) == str[k]) k++;
+                            if (k < len) {
+                                if (i + k == end) i = end;
+                                break;
+                            }
+                            i += len;
+                            pc = code[pc + Program.NEXT];
+                            continue matchHere;
+                        }
+
                         case Term.ANY_CHAR:
                             //can only be 1-char-wide
                             //  \/
                             if (i >= end) break;
                             i++;
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue matchHere;
 
                         case Term.ANY_CHAR_NE:
@@ -1279,19 +1487,19 @@ public class Matcher implements MatchResult, Serializable {
                             //  \/
                             if (i >= end || (c = data[i]) == '\r' || c == '\n') break;
                             i++;
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue matchHere;
 
                         case Term.END:
                             if (i >= end) {  //meets
-                                term = term.next;
+                                pc = code[pc + Program.NEXT];
                                 continue matchHere;
                             }
                             break;
 
                         case Term.END_EOL:  //perl's $
                             if (i >= end) {  //meets
-                                term = term.next;
+                                pc = code[pc + Program.NEXT];
                                 continue matchHere;
                             } else {
                                 boolean matches =
@@ -1300,14 +1508,14 @@ public class Matcher implements MatchResult, Serializable {
                                                 ((i + 2) == end && data[i] == '\r' && data[i + 1] == '\n');
 
                                 if (matches) {
-                                    term = term.next;
+                                    pc = code[pc + Program.NEXT];
                                     continue matchHere;
                                 } else break;
                             }
 
                         case Term.LINE_END:
                             if (i >= end) {  //meets
-                                term = term.next;
+                                pc = code[pc + Program.NEXT];
                                 continue matchHere;
                             } else {
                      /*
@@ -1324,7 +1532,7 @@ public class Matcher implements MatchResult, Serializable {
                                         c == '\u2029' ||
                                         (i < data.length - 1 && data[i + 1] == '\n' && c == '\r') ||
                                         c == '\r') {
-                                    term = term.next;
+                                    pc = code[pc + Program.NEXT];
                                     continue matchHere;
                                 }
                             }
@@ -1332,7 +1540,7 @@ public class Matcher implements MatchResult, Serializable {
 
                         case Term.START: //Perl's "^"
                             if (i == offset) {  //meets
-                                term = term.next;
+                                pc = code[pc + Program.NEXT];
                                 continue matchHere;
                             }
                             //break;
@@ -1343,7 +1551,7 @@ public class Matcher implements MatchResult, Serializable {
                             //(see comments at the last lines of matchHere, ~line 1830)
                             //Solution: if there are some entries on the stack ("^a|b$"),
                             //try them; otherwise it's a final 'no'
-                            //if(top!=null) break;
+                            //if(top!=0) break;
                             //else break main;
 
                             //changed on 25-05-2002
@@ -1353,21 +1561,21 @@ public class Matcher implements MatchResult, Serializable {
                             //couldn't match too;
                             //otherwise we could have the following problem:
                             //"c|^a" against "abc" finds only "a"
-                            if (top != null) break;
-                            if (term != startAnchor) break;
+                            if (top != 0) break;
+                            if (pc != prog.startAnchor) break;
                             else break main;
 
                         case Term.LAST_MATCH_END:
                             if (i == wEnd // at last match end
                                     || (wEnd == -1 && i == offset)) {  //or, no match yet, but at the start
-                                term = term.next;
+                                pc = code[pc + Program.NEXT];
                                 continue matchHere;
                             }
                             break main; //return false
 
                         case Term.LINE_START:
                             if (i == offset) {  //meets
-                                term = term.next;
+                                pc = code[pc + Program.NEXT];
                                 continue matchHere;
                             } else if (i < end) {
                      /*
@@ -1385,7 +1593,7 @@ public class Matcher implements MatchResult, Serializable {
                                         c == '\u2029' ||
                                         (data[i] == '\n' && c == '\r') ||
                                         c == '\r') {
-                                    term = term.next;
+                                    pc = code[pc + Program.NEXT];
                                     continue matchHere;
                                 }
                             }
@@ -1395,55 +1603,55 @@ public class Matcher implements MatchResult, Serializable {
                             //can only be 1-char-wide
                             //  \/
                             if (i >= end) break;
-                            c = re.caseless ? Category.caseFold(data[i]) : data[i];
-                            if (!(c <= 255 && term.bitset.get(c)) ^ term.inverse) break;
+                            c = data[i];
+                            if (!(c <= 255 && bitsets[code[pc + Program.ARG]].get(c)) ^ (code[pc + Program.FLAGS] & Program.INVERSE) != 0) break;
                             i++;
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue matchHere;
                         }
                         case Term.BITSET2: {
                             //can only be 1-char-wide
                             //  \/
                             if (i >= end) break;
-                            c = re.caseless ? Category.caseFold(data[i]) : data[i];
-                            IntBitSet arr = term.bitset2[c >> 8];
-                            if (arr == null || !arr.get(c & 255) ^ term.inverse) break;
+                            c = data[i];
+                            IntBitSet arr = bitsets2[code[pc + Program.ARG]][c >> 8];
+                            if (arr == null || !arr.get(c & 255) ^ (code[pc + Program.FLAGS] & Program.INVERSE) != 0) break;
                             i++;
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue matchHere;
                         }
                         case Term.BOUNDARY: {
                             boolean ch1Meets = false, ch2Meets = false;
-                            IntBitSet bitset = term.bitset;
+                            IntBitSet bitset = bitsets[code[pc + Program.ARG]];
                             test1:
                             {
                                 int j = i - 1;
                                 //if(j<offset || j>=end) break test1;
                                 if (j < offset) break test1;
-                                c = re.caseless ? Category.caseFold(data[j]) : data[j];
+                                c = data[j];
                                 ch1Meets = (c < 256 && bitset.get(c));
                             }
                             test2:
                             {
                                 //if(i<offset || i>=end) break test2;
                                 if (i >= end) break test2;
-                                c = re.caseless ? Category.caseFold(data[i]) : data[i];
+                                c = data[i];
                                 ch2Meets = (c < 256 && bitset.get(c));
                             }
-                            if (ch1Meets ^ ch2Meets ^ term.inverse) {  //meets
-                                term = term.next;
+                            if (ch1Meets ^ ch2Meets ^ (code[pc + Program.FLAGS] & Program.INVERSE) != 0) {  //meets
+                                pc = code[pc + Program.NEXT];
                                 continue matchHere;
                             } else break;
                         }
                         case Term.UBOUNDARY: {
                             boolean ch1Meets = false, ch2Meets = false;
-                            IntBitSet[] bitset2 = term.bitset2;
+                            IntBitSet[] bitset2 = bitsets2[code[pc + Program.ARG]];
                             test1:
                             {
                                 int j = i - 1;
                                 //if(j<offset || j>=end) break test1;
                                 if (j < offset) break test1;
-                                c = re.caseless ? Category.caseFold(data[j]) : data[j];
+                                c = data[j];
                                 IntBitSet bits = bitset2[c >> 8];
                                 ch1Meets = bits != null && bits.get(c & 0xff);
                             }
@@ -1451,47 +1659,47 @@ public class Matcher implements MatchResult, Serializable {
                             {
                                 //if(i<offset || i>=end) break test2;
                                 if (i >= end) break test2;
-                                c = re.caseless ? Category.caseFold(data[i]) : data[i];
+                                c = data[i];
                                 IntBitSet bits = bitset2[c >> 8];
                                 ch2Meets = bits != null && bits.get(c & 0xff);
                             }
-                            if (ch1Meets ^ ch2Meets ^ term.inverse) {  //is boundary ^ inv
-                                term = term.next;
+                            if (ch1Meets ^ ch2Meets ^ (code[pc + Program.FLAGS] & Program.INVERSE) != 0) {  //is boundary ^ inv
+                                pc = code[pc + Program.NEXT];
                                 continue matchHere;
                             } else break;
                         }
                         case Term.DIRECTION: {
                             boolean ch1Meets = false, ch2Meets = false;
-                            IntBitSet bitset = term.bitset;
-                            boolean inv = term.inverse;
+                            IntBitSet bitset = bitsets[code[pc + Program.ARG]];
+                            boolean inv = (code[pc + Program.FLAGS] & Program.INVERSE) != 0;
                             int j = i - 1;
                             //if(j>=offset && j<end){
                             if (j >= offset) {
-                                c = re.caseless ? Category.caseFold(data[j]) : data[j];
+                                c = data[j];
                                 ch1Meets = c < 256 && bitset.get(c);
                             }
                             if (ch1Meets ^ inv) break;
 
                             //if(i>=offset && i<end){
                             if (i < end) {
-                                c = re.caseless ? Category.caseFold(data[i]) : data[i];
+                                c = data[i];
                                 ch2Meets = c < 256 && bitset.get(c);
                             }
                             if (!ch2Meets ^ inv) break;
 
 
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue matchHere;
                         }
                         case Term.UDIRECTION: {
                             boolean ch1Meets = false, ch2Meets = false;
-                            IntBitSet[] bitset2 = term.bitset2;
-                            boolean inv = term.inverse;
+                            IntBitSet[] bitset2 = bitsets2[code[pc + Program.ARG]];
+                            boolean inv = (code[pc + Program.FLAGS] & Program.INVERSE) != 0;
                             int j = i - 1;
 
                             //if(j>=offset && j<end){
                             if (j >= offset) {
-                                c = re.caseless ? Category.caseFold(data[j]) : data[j];
+                                c = data[j];
                                 IntBitSet bits = bitset2[c >> 8];
                                 ch1Meets = bits != null && bits.get(c & 0xff);
                             }
@@ -1499,36 +1707,36 @@ public class Matcher implements MatchResult, Serializable {
 
                             //if(i>=offset && i<end){
                             if (i < end) {
-                                c = re.caseless ? Category.caseFold(data[i]) : data[i];
+                                c = data[i];
                                 IntBitSet bits = bitset2[c >> 8];
                                 ch2Meets = bits != null && bits.get(c & 0xff);
                             }
                             if (!ch2Meets ^ inv) break;
 
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue matchHere;
                         }
                         case Term.REG:
                         case Term.REG_I: {
-                            if (term.memreg >= memregs.length)
+                            if (code[pc + Program.ARG] >= memregs.length)
                                 break;
-                            MemReg mr = memregs[term.memreg];
+                            MemReg mr = memregs[code[pc + Program.ARG]];
                             int sampleOffset = mr.in;
                             int sampleOutside = mr.out;
                             int rLen;
                             if (sampleOffset < 0 || (rLen = sampleOutside - sampleOffset) < 0) {
                                 break;
                             } else if (rLen == 0) {
-                                term = term.next;
+                                pc = code[pc + Program.NEXT];
                                 continue matchHere;
                             }
 
                             // don't prevent us from reaching the 'end'
                             if ((i + rLen) > end) break;
 
-                            if (compareRegions(data, sampleOffset, i, rLen, end, term)) {
+                            if (prog.compareRegions(data, sampleOffset, i, rLen, end, pc)) {
                                 i += rLen;
-                                term = term.next;
+                                pc = code[pc + Program.NEXT];
                                 continue matchHere;
                             }
                             break;
@@ -1556,65 +1764,56 @@ public class Matcher implements MatchResult, Serializable {
                         break;
                     }*/
                         case Term.REPEAT_0_INF: {
+                            if (memoize && tried((i - offset) * memoTerms + code[pc + Program.ARG])) break;
                             //i+=(cnt=repeat(data,i,end,term.target));
-                            if ((cnt = repeat(data, i, end, term.target)) <= 0) {
-                                term = term.next;
+                            if ((cnt = prog.repeat(data, i, end, code[pc + Program.TARGET])) <= 0) {
+                                pc = code[pc + Program.NEXT];
                                 continue;
                             }
                             i += cnt;
 
                             //branch out the backtracker (that is term.failNext, see Term.make*())
-                            actual.cnt = cnt;
-                            actual.term = term.failNext;
-                            actual.index = i;
-                            actual = (top = actual).on;
-                            if (actual == null) {
-                                actual = new SearchEntry();
-                                top.on = actual;
-                                actual.sub = top;
-                            }
-                            term = term.next;
+                            stackCnt[top] = cnt;
+                            stackPcs[top] = code[pc + Program.FAIL];
+                            stackIndex[top] = i;
+                            stackLog[top] = undoTop;
+                            if (++top == stackPcs.length) growStack();
+                            pc = code[pc + Program.NEXT];
                             continue;
                         }
                         case Term.REPEAT_MIN_INF: {
-                            cnt = repeat(data, i, end, term.target);
-                            if (cnt < term.minCount) break;
+                            if (memoize && tried((i - offset) * memoTerms + code[pc + Program.ARG])) break;
+                            cnt = prog.repeat(data, i, end, code[pc + Program.TARGET]);
+                            if (cnt < code[pc + Program.MIN]) break;
                             i += cnt;
 
                             //branch out the backtracker (that is term.failNext, see Term.make*())
-                            actual.cnt = cnt;
-                            actual.term = term.failNext;
-                            actual.index = i;
-                            actual = (top = actual).on;
-                            if (actual == null) {
-                                actual = new SearchEntry();
-                                top.on = actual;
-                                actual.sub = top;
-                            }
-                            term = term.next;
+                            stackCnt[top] = cnt;
+                            stackPcs[top] = code[pc + Program.FAIL];
+                            stackIndex[top] = i;
+                            stackLog[top] = undoTop;
+                            if (++top == stackPcs.length) growStack();
+                            pc = code[pc + Program.NEXT];
                             continue;
                         }
                         case Term.REPEAT_MIN_MAX: {
-                            int out2 = i + term.maxCount;
-                            cnt = repeat(data, i, end < out2 ? end : out2, term.target);
-                            if (cnt < term.minCount) break;
+                            if (memoize && tried((i - offset) * memoTerms + code[pc + Program.ARG])) break;
+                            int out2 = i + code[pc + Program.MAX];
+                            cnt = prog.repeat(data, i, end < out2 ? end : out2, code[pc + Program.TARGET]);
+                            if (cnt < code[pc + Program.MIN]) break;
                             i += cnt;
 
                             //branch out the backtracker (that is term.failNext, see Term.make*())
-                            actual.cnt = cnt;
-                            actual.term = term.failNext;
-                            actual.index = i;
-                            actual = (top = actual).on;
-                            if (actual == null) {
-                                actual = new SearchEntry();
-                                top.on = actual;
-                                actual.sub = top;
-                            }
-                            term = term.next;
+                            stackCnt[top] = cnt;
+                            stackPcs[top] = code[pc + Program.FAIL];
+                            stackIndex[top] = i;
+                            stackLog[top] = undoTop;
+                            if (++top == stackPcs.length) growStack();
+                            pc = code[pc + Program.NEXT];
                             continue;
                         }
                         case Term.REPEAT_REG_MIN_INF: {
-                            MemReg mr = memregs[term.memreg];
+                            MemReg mr = memregs[code[pc + Program.ARG]];
                             int sampleOffset = mr.in;
                             int sampleOutside = mr.out;
                   /*@since 1.2*/
@@ -1622,34 +1821,30 @@ public class Matcher implements MatchResult, Serializable {
                             if (sampleOffset < 0 || (bitset = sampleOutside - sampleOffset) < 0) {
                                 break;
                             } else if (bitset == 0) {
-                                term = term.next;
+                                pc = code[pc + Program.NEXT];
                                 continue matchHere;
                             }
 
                             cnt = 0;
 
-                            while (compareRegions(data, i, sampleOffset, bitset, end, term)) {
+                            while (prog.compareRegions(data, i, sampleOffset, bitset, end, pc)) {
                                 cnt++;
                                 i += bitset;
                             }
 
-                            if (cnt < term.minCount) break;
-
-                            actual.cnt = cnt;
-                            actual.term = term.failNext;
-                            actual.index = i;
-                            actual.regLen = bitset;
-                            actual = (top = actual).on;
-                            if (actual == null) {
-                                actual = new SearchEntry();
-                                top.on = actual;
-                                actual.sub = top;
-                            }
-                            term = term.next;
+                            if (cnt < code[pc + Program.MIN]) break;
+
+                            stackCnt[top] = cnt;
+                            stackPcs[top] = code[pc + Program.FAIL];
+                            stackIndex[top] = i;
+                            stackRegLen[top] = bitset;
+                            stackLog[top] = undoTop;
+                            if (++top == stackPcs.length) growStack();
+                            pc = code[pc + Program.NEXT];
                             continue;
                         }
                         case Term.REPEAT_REG_MIN_MAX: {
-                            MemReg mr = memregs[term.memreg];
+                            MemReg mr = memregs[code[pc + Program.ARG]];
                             int sampleOffset = mr.in;
                             int sampleOutside = mr.out;
                   /*@since 1.2*/
@@ -1657,122 +1852,115 @@ public class Matcher implements MatchResult, Serializable {
                             if (sampleOffset < 0 || (bitset = sampleOutside - sampleOffset) < 0) {
                                 break;
                             } else if (bitset == 0) {
-                                term = term.next;
+                                pc = code[pc + Program.NEXT];
                                 continue matchHere;
                             }
 
                             cnt = 0;
-                            int countBack = term.maxCount;
-                            while (countBack > 0 && compareRegions(data, i, sampleOffset, bitset, end, term)) {
+                            int countBack = code[pc + Program.MAX];
+                            while (countBack > 0 && prog.compareRegions(data, i, sampleOffset, bitset, end, pc)) {
                                 cnt++;
                                 i += bitset;
                                 countBack--;
                             }
 
-                            if (cnt < term.minCount) break;
-
-                            actual.cnt = cnt;
-                            actual.term = term.failNext;
-                            actual.index = i;
-                            actual.regLen = bitset;
-                            actual = (top = actual).on;
-                            if (actual == null) {
-                                actual = new SearchEntry();
-                                top.on = actual;
-                                actual.sub = top;
-                            }
-                            term = term.next;
+                            if (cnt < code[pc + Program.MIN]) break;
+
+                            stackCnt[top] = cnt;
+                            stackPcs[top] = code[pc + Program.FAIL];
+                            stackIndex[top] = i;
+                            stackRegLen[top] = bitset;
+                            stackLog[top] = undoTop;
+                            if (++top == stackPcs.length) growStack();
+                            pc = code[pc + Program.NEXT];
                             continue;
                         }
                         case Term.BACKTRACK_0:
-                            cnt = actual.cnt;
+                            cnt = stackCnt[top];
+                            //skip the positions the rest of the pattern already failed at
+                            if (memoize) while (cnt > 0 && tried((i - 1 - offset) * memoTerms + code[pc + Program.ARG])) {
+                                cnt--;
+                                i--;
+                            }
                             if (cnt > 0) {
                                 cnt--;
                                 i--;
-                                actual.cnt = cnt;
-                                actual.index = i;
-                                actual.term = term;
-                                actual = (top = actual).on;
-                                if (actual == null) {
-                                    actual = new SearchEntry();
-                                    top.on = actual;
-                                    actual.sub = top;
-                                }
-                                term = term.next;
+                                stackCnt[top] = cnt;
+                                stackIndex[top] = i;
+                                stackPcs[top] = pc;
+                                stackLog[top] = undoTop;
+                                if (++top == stackPcs.length) growStack();
+                                pc = code[pc + Program.NEXT];
                                 continue;
                             } else break;
 
                         case Term.BACKTRACK_MIN:
-                            cnt = actual.cnt;
-                            if (cnt > term.minCount) {
+                            cnt = stackCnt[top];
+                            if (memoize) while (cnt > code[pc + Program.MIN] && tried((i - 1 - offset) * memoTerms + code[pc + Program.ARG])) {
                                 cnt--;
                                 i--;
-                                actual.cnt = cnt;
-                                actual.index = i;
-                                actual.term = term;
-                                actual = (top = actual).on;
-                                if (actual == null) {
-                                    actual = new SearchEntry();
-                                    top.on = actual;
-                                    actual.sub = top;
-                                }
-                                term = term.next;
+                            }
+                            if (cnt > code[pc + Program.MIN]) {
+                                cnt--;
+                                i--;
+                                stackCnt[top] = cnt;
+                                stackIndex[top] = i;
+                                stackPcs[top] = pc;
+                                stackLog[top] = undoTop;
+                                if (++top == stackPcs.length) growStack();
+                                pc = code[pc + Program.NEXT];
                                 continue;
                             } else break;
 
                         case Term.BACKTRACK_FIND_MIN: {
-                            cnt = actual.cnt;
+                            cnt = stackCnt[top];
                             int minCnt;
-                            if (cnt > (minCnt = term.minCount)) {
-                                int start = i + term.distance;
+                            if (cnt > (minCnt = code[pc + Program.MIN])) {
+                                int start = i + code[pc + Program.DISTANCE];
                                 if (start > end) {
                                     int exceed = start - end;
                                     cnt -= exceed;
                                     if (cnt <= minCnt) break;
                                     i -= exceed;
                                 }
-                                int back = findBack(data, i + term.distance, cnt - minCnt, term.target);
+                                int back = prog.findBack(data, i + code[pc + Program.DISTANCE], cnt - minCnt, code[pc + Program.TARGET], end);
                                 if (back < 0) break;
 
                                 //cnt-=back;
                                 //i-=back;
                                 if ((cnt -= back) <= minCnt) {
                                     i -= back;
-                                    if (term.eat) i++;
-                                    term = term.next;
+                                    if ((code[pc + Program.FLAGS] & Program.EAT) != 0) i++;
+                                    pc = code[pc + Program.NEXT];
                                     continue;
                                 }
                                 i -= back;
 
-                                actual.cnt = cnt;
-                                actual.index = i;
+                                stackCnt[top] = cnt;
+                                stackIndex[top] = i;
 
-                                if (term.eat) i++;
+                                if ((code[pc + Program.FLAGS] & Program.EAT) != 0) i++;
 
-                                actual.term = term;
-                                actual = (top = actual).on;
-                                if (actual == null) {
-                                    actual = new SearchEntry();
-                                    top.on = actual;
-                                    actual.sub = top;
-                                }
-                                term = term.next;
+                                stackPcs[top] = pc;
+                                stackLog[top] = undoTop;
+                                if (++top == stackPcs.length) growStack();
+                                pc = code[pc + Program.NEXT];
                                 continue;
                             } else break;
                         }
 
                         case Term.BACKTRACK_FINDREG_MIN: {
-                            cnt = actual.cnt;
+                            cnt = stackCnt[top];
                             int minCnt;
-                            if (cnt > (minCnt = term.minCount)) {
-                                int start = i + term.distance;
+                            if (cnt > (minCnt = code[pc + Program.MIN])) {
+                                int start = i + code[pc + Program.DISTANCE];
                                 if (start > end) {
                                     int exceed = start - end;
                                     cnt -= exceed;
                                     if (cnt <= minCnt) break;
                                     i -= exceed;
                                 }
-                                MemReg mr = memregs[term.target.memreg];
+                                MemReg mr = memregs[code[code[pc + Program.TARGET] + Program.ARG]];
                                 int sampleOff = mr.in;
                                 int sampleLen = mr.out - sampleOff;
                      /*@since 1.2*/
@@ -1782,236 +1970,204 @@ public class Matcher implements MatchResult, Serializable {
                                     //treat as usual BACKTRACK_MIN
                                     cnt--;
                                     i--;
-                                    actual.cnt = cnt;
-                                    actual.index = i;
-                                    actual.term = term;
-                                    actual = (top = actual).on;
-                                    if (actual == null) {
-                                        actual = new SearchEntry();
-                                        top.on = actual;
-                                        actual.sub = top;
-                                    }
-                                    term = term.next;
+                                    stackCnt[top] = cnt;
+                                    stackIndex[top] = i;
+                                    stackPcs[top] = pc;
+                                    stackLog[top] = undoTop;
+                                    if (++top == stackPcs.length) growStack();
+                                    pc = code[pc + Program.NEXT];
                                     continue;
                                 } else if (sampleLen == 0) {
                                     back = -1;
                                 } else {
-                                    back = findBackReg(data, i + term.distance, sampleOff, sampleLen, cnt - minCnt, term.target, end);
+                                    back = prog.findBackReg(data, i + code[pc + Program.DISTANCE], sampleOff, sampleLen, cnt - minCnt, code[pc + Program.TARGET], end);
                                     if (back < 0) break;
                                 }
                                 cnt -= back;
                                 i -= back;
-                                actual.cnt = cnt;
-                                actual.index = i;
+                                stackCnt[top] = cnt;
+                                stackIndex[top] = i;
 
-                                if (term.eat) i += sampleLen;
+                                if ((code[pc + Program.FLAGS] & Program.EAT) != 0) i += sampleLen;
 
-                                actual.term = term;
-                                actual = (top = actual).on;
-                                if (actual == null) {
-                                    actual = new SearchEntry();
-                                    top.on = actual;
-                                    actual.sub = top;
-                                }
-                                term = term.next;
+                                stackPcs[top] = pc;
+                                stackLog[top] = undoTop;
+                                if (++top == stackPcs.length) growStack();
+                                pc = code[pc + Program.NEXT];
                                 continue;
                             } else break;
                         }
 
                         case Term.BACKTRACK_REG_MIN:
-                            cnt = actual.cnt;
-                            if (cnt > term.minCount) {
-                                regLen = actual.regLen;
+                            cnt = stackCnt[top];
+                            if (cnt > code[pc + Program.MIN]) {
+                                regLen = stackRegLen[top];
                                 cnt--;
                                 i -= regLen;
-                                actual.cnt = cnt;
-                                actual.index = i;
-                                actual.term = term;
-                                //actual.regLen=regLen;
-                                actual = (top = actual).on;
-                                if (actual == null) {
-                                    actual = new SearchEntry();
-                                    top.on = actual;
-                                    actual.sub = top;
-                                }
-                                term = term.next;
+                                stackCnt[top] = cnt;
+                                stackIndex[top] = i;
+                                stackPcs[top] = pc;
+                                //stackRegLen[top]=regLen;
+                                stackLog[top] = undoTop;
+                                if (++top == stackPcs.length) growStack();
+                                pc = code[pc + Program.NEXT];
                                 continue;
                             } else break;
 
                         case Term.GROUP_IN: {
-                            memreg = term.memreg;
+                            memreg = code[pc + Program.ARG];
                             //memreg=0 is a regex itself; we don't need to handle it
                             //because regex bounds already are in wOffset and wEnd
                             if (memreg > 0) {
                                 memregs[memreg].tmp = i; //assume
                             }
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue;
                         }
                         case Term.GROUP_OUT:
-                            memreg = term.memreg;
+                            memreg = code[pc + Program.ARG];
                             //see above
                             if (memreg > 0) {
                                 MemReg mr = memregs[memreg];
-                                SearchEntry.saveMemregState((top != null) ? top : defaultEntry, memreg, mr);
+                                //log it in place; a call here is not reliably inlined into search()
+                                int[] undo = this.undo;
+                                int u = undoTop;
+                                if (u + 3 > undo.length) this.undo = undo = Arrays.copyOf(undo, undo.length << 1);
+                                undo[u] = memreg;
+                                undo[u + 1] = mr.in;
+                                undo[u + 2] = mr.out;
+                                undoTop = u + 3;
                                 mr.in = mr.tmp; //commit
                                 mr.out = i;
                             }
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue;
 
                         case Term.PLOOKBEHIND_IN: {
-                            int tmp = i - term.distance;
+                            int tmp = i - code[pc + Program.DISTANCE];
                             if (tmp < offset) break;
-                            LAEntry le = lookaheads[term.lookaheadId];
+                            LAEntry le = lookaheads[code[pc + Program.ARG]];
                             le.index = i;
                             i = tmp;
-                            le.actual = actual;
                             le.top = top;
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue;
                         }
                         case Term.INDEPENDENT_IN:
                         case Term.PLOOKAHEAD_IN: {
-                            LAEntry le = lookaheads[term.lookaheadId];
+                            LAEntry le = lookaheads[code[pc + Program.ARG]];
                             le.index = i;
-                            le.actual = actual;
                             le.top = top;
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue;
                         }
                         case Term.LOOKBEHIND_CONDITION_OUT:
                         case Term.LOOKAHEAD_CONDITION_OUT:
                         case Term.PLOOKAHEAD_OUT:
                         case Term.PLOOKBEHIND_OUT: {
-                            LAEntry le = lookaheads[term.lookaheadId];
+                            LAEntry le = lookaheads[code[pc + Program.ARG]];
                             i = le.index;
-                            actual = le.actual;
                             top = le.top;
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue;
                         }
                         case Term.INDEPENDENT_OUT: {
-                            LAEntry le = lookaheads[term.lookaheadId];
-                            actual = le.actual;
+                            LAEntry le = lookaheads[code[pc + Program.ARG]];
                             top = le.top;
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue;
                         }
                         case Term.NLOOKBEHIND_IN: {
-                            int tmp = i - term.distance;
+                            int tmp = i - code[pc + Program.DISTANCE];
                             if (tmp < offset) {
-                                term = term.failNext;
+                                pc = code[pc + Program.FAIL];
                                 continue;
                             }
-                            LAEntry le = lookaheads[term.lookaheadId];
-                            le.actual = actual;
+                            LAEntry le = lookaheads[code[pc + Program.ARG]];
                             le.top = top;
 
-                            actual.term = term.failNext;
-                            actual.index = i;
+                            stackPcs[top] = code[pc + Program.FAIL];
+                            stackIndex[top] = i;
                             i = tmp;
-                            actual = (top = actual).on;
-                            if (actual == null) {
-                                actual = new SearchEntry();
-                                top.on = actual;
-                                actual.sub = top;
-                            }
-                            term = term.next;
+                            stackLog[top] = undoTop;
+                            if (++top == stackPcs.length) growStack();
+                            pc = code[pc + Program.NEXT];
                             continue;
                         }
                         case Term.NLOOKAHEAD_IN: {
-                            LAEntry le = lookaheads[term.lookaheadId];
-                            le.actual = actual;
+                            LAEntry le = lookaheads[code[pc + Program.ARG]];
                             le.top = top;
 
-                            actual.term = term.failNext;
-                            actual.index = i;
-                            actual = (top = actual).on;
-                            if (actual == null) {
-                                actual = new SearchEntry();
-                                top.on = actual;
-                                actual.sub = top;
-                            }
+                            stackPcs[top] = code[pc + Program.FAIL];
+                            stackIndex[top] = i;
+                            stackLog[top] = undoTop;
+                            if (++top == stackPcs.length) growStack();
 
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue;
                         }
                         case Term.NLOOKBEHIND_OUT:
                         case Term.NLOOKAHEAD_OUT: {
-                            LAEntry le = lookaheads[term.lookaheadId];
-                            actual = le.actual;
+                            LAEntry le = lookaheads[code[pc + Program.ARG]];
                             top = le.top;
                             break;
                         }
                         case Term.LOOKBEHIND_CONDITION_IN: {
-                            int tmp = i - term.distance;
+                            int tmp = i - code[pc + Program.DISTANCE];
                             if (tmp < offset) {
-                                term = term.failNext;
+                                pc = code[pc + Program.FAIL];
                                 continue;
                             }
-                            LAEntry le = lookaheads[term.lookaheadId];
+                            LAEntry le = lookaheads[code[pc + Program.ARG]];
                             le.index = i;
-                            le.actual = actual;
                             le.top = top;
 
-                            actual.term = term.failNext;
-                            actual.index = i;
-                            actual = (top = actual).on;
-                            if (actual == null) {
-                                actual = new SearchEntry();
-                                top.on = actual;
-                                actual.sub = top;
-                            }
+                            stackPcs[top] = code[pc + Program.FAIL];
+                            stackIndex[top] = i;
+                            stackLog[top] = undoTop;
+                            if (++top == stackPcs.length) growStack();
 
                             i = tmp;
 
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue;
                         }
                         case Term.LOOKAHEAD_CONDITION_IN: {
-                            LAEntry le = lookaheads[term.lookaheadId];
+                            LAEntry le = lookaheads[code[pc + Program.ARG]];
                             le.index = i;
-                            le.actual = actual;
                             le.top = top;
 
-                            actual.term = term.failNext;
-                            actual.index = i;
-                            actual = (top = actual).on;
-                            if (actual == null) {
-                                actual = new SearchEntry();
-                                top.on = actual;
-                                actual.sub = top;
-                            }
+                            stackPcs[top] = code[pc + Program.FAIL];
+                            stackIndex[top] = i;
+                            stackLog[top] = undoTop;
+                            if (++top == stackPcs.length) growStack();
 
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue;
                         }
                         case Term.MEMREG_CONDITION: {
-                            MemReg mr = memregs[term.memreg];
+                            MemReg mr = memregs[code[pc + Program.ARG]];
                             int sampleOffset = mr.in;
                             int sampleOutside = mr.out;
                             if (sampleOffset >= 0 && sampleOutside >= 0 && sampleOutside >= sampleOffset) {
-                                term = term.next;
+                                pc = code[pc + Program.NEXT];
                             } else {
-                                term = term.failNext;
+                                pc = code[pc + Program.FAIL];
                             }
                             continue;
                         }
                         case Term.BRANCH_STORE_CNT_AUX1:
-                            actual.regLen = regLen;
+                            stackRegLen[top] = regLen;
                         case Term.BRANCH_STORE_CNT:
-                            actual.cnt = cnt;
+                            stackCnt[top] = cnt;
                         case Term.BRANCH:
-                            actual.term = term.failNext;
-                            actual.index = i;
-                            actual = (top = actual).on;
-                            if (actual == null) {
-                                actual = new SearchEntry();
-                                top.on = actual;
-                                actual.sub = top;
-                            }
-                            term = term.next;
+                            if (++steps >= nextCheck) nextCheck = checkLimits(steps, deadline);
+                            if (memoize && tried((i - offset) * memoTerms + code[pc + Program.ARG])) break;
+                            stackPcs[top] = code[pc + Program.FAIL];
+                            stackIndex[top] = i;
+                            stackLog[top] = undoTop;
+                            if (++top == stackPcs.length) growStack();
+                            pc = code[pc + Program.NEXT];
                             continue;
 
                         case Term.SUCCESS:
@@ -2024,54 +2180,59 @@ public class Matcher implements MatchResult, Serializable {
 
                         case Term.CNT_SET_0:
                             cnt = 0;
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue;
 
                         case Term.CNT_INC:
                             cnt++;
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue;
 
                         case Term.CNT_GT_EQ:
-                            if (cnt >= term.maxCount) {
-                                term = term.next;
+                            if (cnt >= code[pc + Program.MAX]) {
+                                pc = code[pc + Program.NEXT];
                                 continue;
                             } else break;
 
                         case Term.READ_CNT_LT:
-                            cnt = actual.cnt;
-                            if (cnt < term.maxCount) {
-                                term = term.next;
+                            cnt = stackCnt[top];
+                            if (cnt < code[pc + Program.MAX]) {
+                                pc = code[pc + Program.NEXT];
                                 continue;
                             } else break;
 
                         case Term.CRSTORE_CRINC: {
-                            int cntvalue = counters[cntreg = term.cntreg];
-                            SearchEntry.saveCntState((top != null) ? top : defaultEntry, cntreg, cntvalue);
+                            int cntvalue = counters[cntreg = code[pc + Program.ARG]];
+                            int[] undo = this.undo;
+                            int u = undoTop;
+                            if (u + 3 > undo.length) this.undo = undo = Arrays.copyOf(undo, undo.length << 1);
+                            undo[u] = -1 - cntreg;
+                            undo[u + 1] = cntvalue;
+                            undoTop = u + 3;
                             counters[cntreg] = ++cntvalue;
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue;
                         }
                         case Term.CR_SET_0:
-                            counters[term.cntreg] = 0;
+                            counters[code[pc + Program.ARG]] = 0;
 
-                            term = term.next;
+                            pc = code[pc + Program.NEXT];
                             continue;
 
                         case Term.CR_LT:
-                            if (counters[term.cntreg] < term.maxCount) {
-                                term = term.next;
+                            if (counters[code[pc + Program.ARG]] < code[pc + Program.MAX]) {
+                                pc = code[pc + Program.NEXT];
                                 continue;
                             } else break;
 
                         case Term.CR_GT_EQ:
-                            if (counters[term.cntreg] >= term.maxCount) {
-                                term = term.next;
+                            if (counters[code[pc + Program.ARG]] >= code[pc + Program.MAX]) {
+                                pc = code[pc + Program.NEXT];
                                 continue;
                             } else break;
 
                         default:
-                            throw new Error("unknown term type: " + term.type);
+                            throw new Error("unknown term type: " + code[pc]);
                     }
                 }
                 else
@@ -2096,25 +2257,41 @@ public class Matcher implements MatchResult, Serializable {
 
                     return true;
                 }
-                if (top == null) {
+                if (top == 0) {
                     break;
                 }
 
                 //pop the stack
-                top = (actual = top).sub;
-                term = actual.term;
-                i = actual.index;
-                if (actual.isState) {
-                    SearchEntry.popState(actual, memregs, counters);
+                if (++steps >= nextCheck) nextCheck = checkLimits(steps, deadline);
+                top--;
+                pc = stackPcs[top];
+                i = stackIndex[top];
+                if (undoTop > stackLog[top]) {
+                    undo(stackLog[top]);
                 }
             }
 
-            if (defaultEntry.isState) SearchEntry.popState(defaultEntry, memregs, counters);
+            if (undoTop > 0) undo(0);
 
-            term = root;
+            pc = root;
             //wOffset++;
             //i=wOffset;
+            if (++steps >= nextCheck) nextCheck = checkLimits(steps, deadline);
             i = ++wOffset;
+            if (anchor >= 0 && (i = anchorAt(anchor, wOffset)) != wOffset) {
+                if (anchor == Term.LAST_MATCH_END) break;
+                wOffset = i;
+            }
+            //a match from here on needs the literal to be found again
+            if (requiredAt >= 0 && wOffset > requiredAt && wOffset <= end) {
+                Horspool required = re.required;
+                requiredAt = required.find(data, wOffset, end);
+                if (requiredAt < 0) {
+                    wOffset = end + 1;
+                    break;
+                }
+                i = wOffset = earliestStart(required, wOffset, requiredAt);
+            }
         }
         this.wOffset = wOffset;
         this.top = top;
@@ -2122,69 +2299,146 @@ public class Matcher implements MatchResult, Serializable {
         return false;
     }
 
-    private static boolean compareRegions(char[] arr, int off1, int off2, int len, int out, Term opts) {
-        if(opts.mode_reverse)
-        {
-            return compareRegionsReverse(arr, off1, off2, len, out, opts.mode_insensitive || opts.mode_upper, opts.mode_bracket);
-        }
-        else
-        {
-            return compareRegionsForward(arr, off1, off2, len, out, opts.mode_insensitive || opts.mode_upper, opts.mode_bracket);
-        }
-    }
-    private static boolean compareRegionsForward(char[] arr, int off1, int off2, int len, int out,
-                                                 boolean insensitive, boolean bracket) {
-        int p1 = off1 + len - 1;
-        int p2 = off2 + len - 1;
-        if (p1 >= out || p2 >= out) {
-            return false;
-        }
-        char a, b;
-        for (int c = len; c > 0; c--, p1--, p2--) {
-            a = arr[p1];
-            b = arr[p2];
-            if(insensitive)
-            {
-                a = Category.caseFold(a);
-                b = Category.caseFold(b);
+    //runs the generated matcher from wOffset on, moving along as the backtracking loop of search() does
+    private boolean searchCompiled(Compiled compiled, int anchors, int wOffset, int anchor, int requiredAt) {
+        final int end = this.end;
+        char[] data = this.data;
+        int[] slots = this.slots;
+        if (slots == null) this.slots = slots = compiled.slots();
+        else compiled.clear(slots);
+        slots[compiled.offsetSlot()] = offset;
+        slots[compiled.matchEndSlot()] = (anchors & ANCHOR_END) > 0 ? 1 : 0;
+        while (wOffset <= end) {
+            //the starts it tries at once: one where an anchor has to meet, else up to where the literal has to be found again
+            int last = (anchors & ANCHOR_START) > 0 || anchor >= 0 ? wOffset : requiredAt >= 0 ? requiredAt : end;
+            int start = compiled.search(data, wOffset, end, slots, last);
+            if (start >= 0) {
+                MemReg[] memregs = this.memregs;
+                for (int k = memregs.length - 1; k > 0; k--) {
+                    MemReg mr = memregs[k];
+                    mr.in = slots[k * 2];
+                    mr.out = slots[k * 2 + 1];
+                }
+                this.wOffset = memregs[0].in = start;
+                this.wEnd = memregs[0].out = slots[compiled.endSlot()];
+                this.top = 0;
+                linearMatch = anchors;
+                return true;
             }
-            if(bracket)
-            {
-                b = Category.matchBracket(b);
+            wOffset = last + 1;
+            if ((anchors & ANCHOR_START) > 0) break;
+            int i;
+            if (anchor >= 0 && (i = anchorAt(anchor, wOffset)) != wOffset) {
+                if (anchor == Term.LAST_MATCH_END) break;
+                wOffset = i;
             }
-            if (a != b) {
-                return false;
+            if (requiredAt >= 0 && wOffset > requiredAt && wOffset <= end) {
+                Horspool required = re.required;
+                requiredAt = required.find(data, wOffset, end);
+                if (requiredAt < 0) {
+                    wOffset = end + 1;
+                    break;
+                }
+                wOffset = earliestStart(required, wOffset, requiredAt);
             }
         }
-        return true;
+        this.wOffset = wOffset;
+        this.top = 0;
+        return false;
     }
-    private static boolean compareRegionsReverse(char[] arr, int off1, int off2, int len, int out,
-                                                 boolean insensitive, boolean bracket) {
-        int p1 = off1 + len - 1;
-        int p2 = off2;
-        if (p1 >= out || p2 >= out) {
-            return false;
-        }
-        char a, b;
-        for (int c = len; c > 0 && p2 < out; c--, p1--, p2++) {
-            a = arr[p1];
-            b = arr[p2];
-            if(insensitive)
-            {
-                a = Category.caseFold(a);
-                b = Category.caseFold(b);
-            }
-            if(bracket)
-            {
-                b = Category.matchBracket(b);
+
+    //the first position from i on where an anchor (START, LINE_START or LAST_MATCH_END) meets; end + 1 if none;
+    //a \G isn't looked for past i, because a search that is resumed moves it along with the last match
+    private int anchorAt(int anchor, int i) {
+        switch (anchor) {
+            case Term.START:
+                return i <= offset ? offset : end + 1;
+            case Term.LAST_MATCH_END:
+                return i == (wEnd == -1 ? offset : wEnd) ? i : end + 1;
+            default: {
+                if (i <= offset) return offset;
+                char[] data = this.data;
+                for (int end = this.end; i < end; i++) {
+                    char c = data[i - 1];
+                    if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') return i;
+                }
+                return end + 1;
             }
-            if (a != b) {
-                return false;
+        }
+    }
+
+    //doubles the backtracking stack when a push fills it
+    private void growStack() {
+        int capacity = stackPcs.length << 1;
+        stackPcs = Arrays.copyOf(stackPcs, capacity);
+        stackIndex = Arrays.copyOf(stackIndex, capacity);
+        stackCnt = Arrays.copyOf(stackCnt, capacity);
+        stackRegLen = Arrays.copyOf(stackRegLen, capacity);
+        stackLog = Arrays.copyOf(stackLog, capacity);
+    }
+
+    //rolls the memregs and counters back to how they were when the undo log was mark long
+    private void undo(int mark) {
+        int[] undo = this.undo;
+        for (int u = undoTop - 3; u >= mark; u -= 3) {
+            int reg = undo[u];
+            if (reg >= 0) {
+                MemReg mr = memregs[reg];
+                mr.in = undo[u + 1];
+                mr.out = undo[u + 2];
+            } else {
+                counters[-1 - reg] = undo[u + 1];
             }
         }
+        undoTop = mark;
+    }
+
+    //readies the memo for a search; false if the target is too long to memoize
+    private boolean clearMemo() {
+        long bits = (long) (end - offset + 1) * re.memoTerms;
+        if (bits > MEMO_LIMIT) return false;
+        int words = (int) ((bits + 31) >> 5);
+        int[] memo = this.memo;
+        if (memo == null || memo.length < words) {
+            this.memo = new int[words];
+        } else if (memoFrom < memoTo) {
+            Arrays.fill(memo, memoFrom, memoTo, 0);
+        }
+        memoFrom = Integer.MAX_VALUE;
+        memoTo = 0;
         return true;
     }
 
+    //marks a bit of the memo, telling if it was marked already
+    private boolean tried(int bit) {
+        int[] memo = this.memo;
+        int w = bit >> 5, mask = 1 << bit;
+        if ((memo[w] & mask) != 0) return true;
+        memo[w] |= mask;
+        if (w < memoFrom) memoFrom = w;
+        if (w >= memoTo) memoTo = w + 1;
+        return false;
+    }
+
+    //the step count at which search() has to check its limits next
+    private long nextCheck(long steps) {
+        long next = timeLimit > 0 ? steps + TIME_CHECK_INTERVAL : Long.MAX_VALUE;
+        return stepLimit > 0 && stepLimit < next ? stepLimit + 1 : next;
+    }
+
+    private long checkLimits(long steps, long deadline) {
+        if (stepLimit > 0 && steps > stepLimit)
+            exceeded("the search took more than " + stepLimit + " steps", steps);
+        if (deadline != 0 && System.currentTimeMillis() > deadline)
+            exceeded("the search took more than " + timeLimit + " ms", steps);
+        return nextCheck(steps);
+    }
+
+    private void exceeded(String message, long steps) {
+        flush();
+        throw new MatchLimitExceededException(message, steps);
+    }
+
     private static boolean compareRegionsI(char[] arr, int off1, int off2, int len, int out) {
         int p1 = off1 + len - 1;
         int p2 = off2 + len - 1;
@@ -2202,199 +2456,43 @@ public class Matcher implements MatchResult, Serializable {
         return true;
     }
 
-    //repeat while matches
-    private static int repeat(char[] data, int off, int out, Term term) {
-        switch (term.type) {
-            case Term.CHAR: {
-                char c = term.c;
-                int i = off;
-                while (i < out) {
-                    if (data[i] != c) break;
-                    i++;
-                }
-                return i - off;
-            }
-            case Term.ANY_CHAR: {
-                return out - off;
-            }
-            case Term.ANY_CHAR_NE: {
-                int i = off;
-                char c;
-                while (i < out) {
-                    if ((c = data[i]) == '\r' || c == '\n') break;
-                    i++;
-                }
-                return i - off;
-            }
-            case Term.BITSET: {
-                IntBitSet arr = term.bitset;
-                int i = off;
-                char c;
-                if (term.inverse) while (i < out) {
-                    if ((c = data[i]) <= 255 && arr.get(c)) break;
-                    else i++;
-                }
-                else while (i < out) {
-                    if ((c = data[i]) <= 255 && arr.get(c)) i++;
-                    else break;
-                }
-                return i - off;
-            }
-            case Term.BITSET2: {
-                int i = off;
-                IntBitSet[] bitset2 = term.bitset2;
-                char c;
-                if (term.inverse) while (i < out) {
-                    IntBitSet arr = bitset2[(c = data[i]) >> 8];
-                    if (arr != null && arr.get(c & 0xff)) break;
-                    else i++;
-                }
-                else while (i < out) {
-                    IntBitSet arr = bitset2[(c = data[i]) >> 8];
-                    if (arr != null && arr.get(c & 0xff)) i++;
-                    else break;
-                }
-                return i - off;
-            }
-        }
-        throw new Error("this kind of term can't be quantified:" + term.type);
-    }
-
-    //repeat while doesn't match
-    private static int find(char[] data, int off, int out, Term term) {
-        if (off >= out) return -1;
-        switch (term.type) {
-            case Term.CHAR: {
-                char c = term.c;
-                int i = off;
-                while (i < out) {
-                    if (data[i] == c) break;
-                    i++;
-                }
-                return i - off;
-            }
-            case Term.BITSET: {
-                IntBitSet arr = term.bitset;
-                int i = off;
-                char c;
-                if (!term.inverse) while (i < out) {
-                    if ((c = data[i]) <= 255 && arr.get(c)) break;
-                    else i++;
-                }
-                else while (i < out) {
-                    if ((c = data[i]) <= 255 && arr.get(c)) i++;
-                    else break;
-                }
-                return i - off;
-            }
-            case Term.BITSET2: {
-                int i = off;
-                IntBitSet[] bitset2 = term.bitset2;
-                char c;
-                if (!term.inverse) while (i < out) {
-                    IntBitSet arr = bitset2[(c = data[i]) >> 8];
-                    if (arr != null && arr.get(c & 0xff)) break;
-                    else i++;
-                }
-                else while (i < out) {
-                    IntBitSet arr = bitset2[(c = data[i]) >> 8];
-                    if (arr != null && arr.get(c & 0xff)) i++;
-                    else break;
-                }
-                return i - off;
-            }
-        }
-        throw new IllegalArgumentException("can't seek this kind of term:" + term.type);
+    /**
+     * @return the earliest a match can start from index from on, when the literal every match needs is found
+     * at index at next; see Horspool
+     */
+    private int earliestStart(Horspool required, int from, int at) {
+        if (required.reach >= 0 && at - required.reach > from) from = at - required.reach;
+        //every match before the literal is a run of the one atom, so it starts where the run does
+        if (required.run != null) from = at - repeatBack(data, at, from, required.run);
+        return from;
     }
 
-
-    private static int findReg(char[] data, int off, int regOff, int regLen, Term term, int out) {
-        if (off >= out) return -1;
+    //repeat back from off while matches, down to min at the farthest
+    private static int repeatBack(char[] data, int off, int min, Term term) {
         int i = off;
-        if (term.type == Term.REG || term.type == Term.REG_I) {
-            while (i < out) {
-                if (compareRegions(data, i, regOff, regLen, out, term)) break;
-                i++;
-            }
-        } else throw new IllegalArgumentException("wrong findReg() target:" + term.type);
-        return off - i;
-    }
-
-    private static int findBack(char[] data, int off, int maxCount, Term term) {
+        char c;
         switch (term.type) {
-            case Term.CHAR: {
-                char c = term.c;
-                int i = off;
-                int iMin = off - maxCount;
-                for (; ; ) {
-                    if (data[--i] == c) break;
-                    if (i <= iMin) return -1;
-                }
-                return off - i;
-            }
-            case Term.BITSET: {
-                IntBitSet arr = term.bitset;
-                int i = off;
-                char c;
-                int iMin = off - maxCount;
-                if (!term.inverse) for (; ; ) {
-                    if ((c = data[--i]) <= 255 && arr.get(c)) break;
-                    if (i <= iMin) return -1;
-                }
-                else for (; ; ) {
-                    if ((c = data[--i]) > 255 || !arr.get(c)) break;
-                    if (i <= iMin) return -1;
-                }
-                return off - i;
-            }
+            case Term.CHAR:
+                while (i > min && data[i - 1] == term.c) i--;
+                break;
+            case Term.ANY_CHAR:
+                i = min;
+                break;
+            case Term.ANY_CHAR_NE:
+                while (i > min && (c = data[i - 1]) != '\r' && c != '\n') i--;
+                break;
+            case Term.BITSET:
+                while (i > min && ((c = data[i - 1]) <= 255 && term.bitset.get(c)) != term.inverse) i--;
+                break;
             case Term.BITSET2: {
                 IntBitSet[] bitset2 = term.bitset2;
-                int i = off;
-                char c;
-                int iMin = off - maxCount;
-                if (!term.inverse) for (; ; ) {
-                    IntBitSet arr = bitset2[(c = data[--i]) >> 8];
-                    if (arr != null && arr.get(c & 0xff)) break;
-                    if (i <= iMin) return -1;
-                }
-                else for (; ; ) {
-                    IntBitSet arr = bitset2[(c = data[--i]) >> 8];
-                    if (arr == null || arr.get(c & 0xff)) break;
-                    if (i <= iMin) return -1;
-                }
-                return off - i;
+                IntBitSet arr;
+                while (i > min && ((arr = bitset2[(c = data[i - 1]) >> 8]) != null && arr.get(c & 0xff)) != term.inverse) i--;
+                break;
             }
+            default:
+                throw new Error("this kind of term can't be quantified:" + term.type);
         }
-        throw new IllegalArgumentException("can't find this kind of term:" + term.type);
-    }
-
-    private static int findBackReg(char[] data, int off, int regOff, int regLen, int maxCount, Term term, int out) {
-        //assume that the cases when regLen==0 or maxCount==0 are handled by caller
-        int i = off;
-        int iMin = off - maxCount;
-        if (term.type == Term.REG || term.type == Term.REG_I) {
-         /*@since 1.2*/
-            char first = data[regOff];
-            regOff++;
-            regLen--;
-            for (; ; ) {
-                i--;
-                if (data[i] == first && compareRegions(data, i + 1, regOff, regLen, out, term)) break;
-                if (i <= iMin) return -1;
-            }
-        }/* else if (term.type == Term.REG_I) {
-            char c, firstChar = Category.caseFold(data[regOff]);
-            regOff++;
-            regLen--;
-            for (; ; ) {
-                i--;
-                if (((c = Category.caseFold(data[i])) == firstChar) && compareRegionsI(data, i + 1, regOff, regLen, out))
-                    break;
-                if (i <= iMin) return -1;
-            }
-            return off - i;
-        }*/
-        else throw new IllegalArgumentException("wrong findBackReg() target type :" + term.type);
         return off - i;
     }
 
@@ -2458,10 +2556,8 @@ public class Matcher implements MatchResult, Serializable {
         // Probably incorrect - comparing Object[] arrays with Arrays.equals
         if (!Arrays.equals(lookaheads, matcher.lookaheads)) return false;
         if (!Arrays.equals(data, matcher.data)) return false;
-        if (top != null ? !top.equals(matcher.top) : matcher.top != null) return false;
-        if (first != null ? !first.equals(matcher.first) : matcher.first != null) return false;
-        if (defaultEntry != null ? !defaultEntry.equals(matcher.defaultEntry) : matcher.defaultEntry != null)
-            return false;
+        if (top != matcher.top) return false;
+        if (undoTop != matcher.undoTop) return false;
         if (cache != null ? !cache.equals(matcher.cache) : matcher.cache != null) return false;
         return prefixBounds != null ? prefixBounds.equals(matcher.prefixBounds) : matcher.prefixBounds == null && (suffixBounds != null ? suffixBounds.equals(matcher.suffixBounds) : matcher.suffixBounds == null && (targetBounds != null ? targetBounds.equals(matcher.targetBounds) : matcher.targetBounds == null));
 
@@ -2482,9 +2578,8 @@ public class Matcher implements MatchResult, Serializable {
         result = 31 * result + wOffset;
         result = 31 * result + wEnd;
         result = 31 * result + (shared ? 1 : 0);
-        result = 31 * result + (top != null ? top.hashCode() : 0);
-        result = 31 * result + (first != null ? first.hashCode() : 0);
-        result = 31 * result + (defaultEntry != null ? defaultEntry.hashCode() : 0);
+        result = 31 * result + top;
+        result = 31 * result + undoTop;
         result = 31 * result + (called ? 1 : 0);
         result = 31 * result + minQueueLength;
         result = 31 * result + (cache != null ? cache.hashCode() : 0);
@@ -2583,147 +2678,6 @@ public class Matcher implements MatchResult, Serializable {
 
 }
 
-class SearchEntry implements Serializable {
-    private static final long serialVersionUID = -3628346657932720807L;
-
-    Term term;
-    int index;
-    int cnt;
-    int regLen;
-
-    boolean isState;
-
-    SearchEntry sub, on;
-
-    private static class MState {
-        int index, in, out;
-        MState next, prev;
-    }
-
-    private static class CState {
-        int index, value;
-        CState next, prev;
-    }
-
-    private MState mHead, mCurrent;
-    private CState cHead, cCurrent;
-
-    static void saveMemregState(SearchEntry entry, int memreg, MemReg mr) {
-        entry.isState = true;
-        MState current = entry.mCurrent;
-        if (current == null) {
-            MState head = entry.mHead;
-            if (head == null) entry.mHead = entry.mCurrent = current = new MState();
-            else current = head;
-        } else {
-            MState next = current.next;
-            if (next == null) {
-                current.next = next = new MState();
-                next.prev = current;
-            }
-            current = next;
-        }
-        current.index = memreg;
-        current.in = mr.in;
-        current.out = mr.out;
-        entry.mCurrent = current;
-    }
-
-    static void saveCntState(SearchEntry entry, int cntreg, int value) {
-        entry.isState = true;
-        CState current = entry.cCurrent;
-        if (current == null) {
-            CState head = entry.cHead;
-            if (head == null) entry.cHead = entry.cCurrent = current = new CState();
-            else current = head;
-        } else {
-            CState next = current.next;
-            if (next == null) {
-                current.next = next = new CState();
-                next.prev = current;
-            }
-            current = next;
-        }
-        current.index = cntreg;
-        current.value = value;
-        entry.cCurrent = current;
-    }
-
-    static void popState(SearchEntry entry, MemReg[] memregs, int[] counters) {
-        MState ms = entry.mCurrent;
-        while (ms != null) {
-            MemReg mr = memregs[ms.index];
-            mr.in = ms.in;
-            mr.out = ms.out;
-            ms = ms.prev;
-        }
-        CState cs = entry.cCurrent;
-        while (cs != null) {
-            counters[cs.index] = cs.value;
-            cs = cs.prev;
-        }
-        entry.mCurrent = null;
-        entry.cCurrent = null;
-        entry.isState = false;
-    }
-
-    final void reset(int restQueue) {
-        term = null;
-        index = cnt = regLen = 0;
-
-        mCurrent = null;
-        cCurrent = null;
-        isState = false;
-
-        SearchEntry on = this.on;
-        if (on != null) {
-            if (restQueue > 0) on.reset(restQueue - 1);
-            else {
-                this.on = null;
-                on.sub = null;
-            }
-        }
-    }
-
-    @Override
-    public boolean equals(Object o) {
-        if (this == o) return true;
-        if (o == null || getClass() != o.getClass()) return false;
-
-        SearchEntry that = (SearchEntry) o;
-
-        if (index != that.index) return false;
-        if (cnt != that.cnt) return false;
-        if (regLen != that.regLen) return false;
-        if (isState != that.isState) return false;
-        if (term != null ? !term.equals(that.term) : that.term != null) return false;
-        if (sub != null ? !sub.equals(that.sub) : that.sub != null) return false;
-        if (on != null ? !on.equals(that.on) : that.on != null) return false;
-        if (mHead != null ? !mHead.equals(that.mHead) : that.mHead != null) return false;
-        return mCurrent != null ? mCurrent.equals(that.mCurrent) : that.mCurrent == null && (cHead != null ? cHead.equals(that.cHead) : that.cHead == null && (cCurrent != null ? cCurrent.equals(that.cCurrent) : that.cCurrent == null));
-
-    }
-
-    @Override
-    public int hashCode() {
-        int result = term != null ? term.hashCode() : 0;
-        result = 31 * result + index;
-        result = 31 * result + cnt;
-        result = 31 * result + regLen;
-        result = 31 * result + (isState ? 1 : 0);
-        result = 31 * result + (mHead != null ? mHead.hashCode() : 0);
-        result = 31 * result + (mCurrent != null ? mCurrent.hashCode() : 0);
-        result = 31 * result + (cHead != null ? cHead.hashCode() : 0);
-        result = 31 * result + (cCurrent != null ? cCurrent.hashCode() : 0);
-        return result;
-    }
-
-    @Override
-    public String toString() {
-        return "SearchEntry{???}";
-    }
-}
-
 class MemReg implements Serializable {
     private static final long serialVersionUID = -3628346657932720807L;
 
@@ -2774,8 +2728,7 @@ class MemReg implements Serializable {
 
 class LAEntry implements Serializable {
     private static final long serialVersionUID = -3628346657932720807L;
-    int index;
-    SearchEntry top, actual;
+    int index, top;
 
     @Override
     public boolean equals(Object o) {
@@ -2784,15 +2737,14 @@ class LAEntry implements Serializable {
 
         LAEntry laEntry = (LAEntry) o;
 
-        return index == laEntry.index && (top != null ? top.equals(laEntry.top) : laEntry.top == null && (actual != null ? actual.equals(laEntry.actual) : laEntry.actual == null));
+        return index == laEntry.index && top == laEntry.top;
 
     }
 
     @Override
     public int hashCode() {
         int result = index;
-        result = 31 * result + (top != null ? top.hashCode() : 0);
-        result = 31 * result + (actual != null ? actual.hashCode() : 0);
+        result = 31 * result + top;
         return result;
     }
 
@@ -2801,7 +2753,6 @@ class LAEntry implements Serializable {
         return "LAEntry{" +
                 "index=" + index +
                 ", top=" + top +
-                ", actual=" + actual +
                 '}';
     }
 }
@@ -0,0 +1,564 @@
+/**
+ * Copyright (c) 2001, Sergey A. Samokhodkin
+ * All rights reserved.
+ * <br>
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * <br>
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * - Redistributions in binary form
+ * must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of jregex nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific prior
+ * written permission.
+ * <br>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version 1.2_01
+ */
+
+package regexodus;
+
+import regexodus.ds.IntBitSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * A Thompson-style program built from the Term graph of a Pattern, for the automaton-based engines.
+ * Only the patterns that need no backtracking memory can be translated: backreferences, lookarounds, conditionals,
+ * independent groups and counted group iterations make {@link #compile(Pattern)} return null.
+ * <br>
+ * Each instruction is an op plus its successor(s); consuming instructions and assertions keep a copy of the test of
+ * the Term they came from, so the character tests are exactly the ones the backtracking matcher performs.
+ */
+class NFA {
+    //consuming ops
+    static final int CHAR = 0;
+    static final int BITSET = 1;
+    static final int BITSET2 = 2;
+    static final int ANY_CHAR = 3;
+    static final int ANY_CHAR_NE = 4;
+
+    //non-consuming ops
+    static final int SPLIT = 5;   //try next, then alt
+    static final int JUMP = 6;
+    static final int SAVE = 7;    //alt holds the capture slot
+    static final int ASSERT = 8;  //zero-width test of the term, see assertion()
+    static final int END_EOL = 9; //Perl's "$", which may look two chars ahead
+    static final int MATCH = 10;
+
+    //context bits describing the char before the current position
+    static final int AT_START = 1;
+    static final int AFTER_EOL = 2;
+    private static final int FIRST_PREDICATE = 2;
+
+    //limits on the program size; longer programs are left to the backtracking matcher
+    private static final int MAX_REPEAT = 1000;
+    private static final int MAX_LENGTH = 10000;
+
+    int[] op = new int[16];
+    int[] next = new int[16];
+    int[] alt = new int[16];
+    Term[] terms = new Term[16];
+    int length;
+    int start;
+
+    //groups, as pairs of save slots
+    final int groups;
+
+    //terms whose bitset is tested against the previous char (word boundaries and the like)
+    Term[] predicates = new Term[0];
+
+    private NFA(Pattern re) {
+        groups = re.memregs;
+    }
+
+    /**
+     * Translates the term graph of a compiled pattern.
+     *
+     * @return the program, or null if the pattern uses constructs that need backtracking
+     */
+    static NFA compile(Pattern re) {
+        NFA nfa = new NFA(re);
+        if (!nfa.build(re.root0)) return null;
+        return nfa;
+    }
+
+    private NFA(int groups) {
+        this.groups = groups;
+    }
+
+    /**
+     * Joins the programs of several patterns into one that runs all of them at once, for a DFA that tells which of
+     * them match. The MATCH instruction of each program keeps the index of the program in alt.
+     * <br>
+     * Programs that would take the joined one over its limits, or that test too many predicates, are left out; their
+     * entries in programs are set to null.
+     *
+     * @param programs the programs to join; null entries are skipped
+     * @return the joined program, or null if none of the programs could be joined
+     */
+    static NFA union(NFA[] programs) {
+        NFA nfa = new NFA(0);
+        ArrayList<Term> preds = new ArrayList<Term>();
+        //the first instruction of each program, to be chained with splits at the end
+        int[] starts = new int[programs.length];
+        int count = 0;
+        for (int k = 0; k < programs.length; k++) {
+            NFA p = programs[k];
+            if (p == null) continue;
+            //where the predicates of p go in the joined program
+            int[] bits = new int[p.predicates.length];
+            int added = preds.size();
+            for (int j = 0; j < bits.length; j++) {
+                Term t = p.predicates[j];
+                int q = 0;
+                while (q < preds.size() && !samePredicate(preds.get(q), t)) q++;
+                if (q == preds.size()) preds.add(t);
+                bits[j] = q + FIRST_PREDICATE;
+            }
+            if (preds.size() > 30 - FIRST_PREDICATE || nfa.length + p.length + 1 > MAX_LENGTH * 4) {
+                while (preds.size() > added) preds.remove(preds.size() - 1);
+                programs[k] = null;
+                continue;
+            }
+            int base = nfa.length;
+            for (int pc = 0; pc < p.length; pc++) {
+                int op = p.op[pc], alt = p.alt[pc];
+                int at = nfa.add(op, p.terms[pc]);
+                nfa.next[at] = p.next[pc] < 0 ? -1 : p.next[pc] + base;
+                if (op == SPLIT) alt += base;
+                else if (op == ASSERT && alt >= FIRST_PREDICATE) alt = bits[alt - FIRST_PREDICATE];
+                else if (op == MATCH) alt = k;
+                nfa.alt[at] = alt;
+            }
+            starts[count++] = p.start + base;
+        }
+        if (count == 0) return null;
+        int start = starts[count - 1];
+        for (int j = count - 2; j >= 0; j--) {
+            int split = nfa.add(SPLIT, null);
+            nfa.next[split] = starts[j];
+            nfa.alt[split] = start;
+            start = split;
+        }
+        nfa.start = start;
+        nfa.predicates = preds.toArray(new Term[preds.size()]);
+        return nfa;
+    }
+
+    //do the predicates hold for the same chars? their terms may still differ in what the assertion does with that
+    private static boolean samePredicate(Term a, Term b) {
+        if (a == b) return true;
+        boolean unicode = a.type == Term.UBOUNDARY || a.type == Term.UDIRECTION;
+        if (unicode != (b.type == Term.UBOUNDARY || b.type == Term.UDIRECTION)) return false;
+        return unicode ? Arrays.equals(a.bitset2, b.bitset2) : a.bitset.equals(b.bitset);
+    }
+
+    private int add(int type, Term term) {
+        int pc = length;
+        if (pc == op.length) {
+            int cap = pc << 1;
+            op = copy(op, cap);
+            next = copy(next, cap);
+            alt = copy(alt, cap);
+            Term[] t = new Term[cap];
+            System.arraycopy(terms, 0, t, 0, pc);
+            terms = t;
+        }
+        op[pc] = type;
+        next[pc] = -1;
+        alt[pc] = -1;
+        terms[pc] = term;
+        length++;
+        return pc;
+    }
+
+    private static int[] copy(int[] a, int cap) {
+        int[] b = new int[cap];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    private boolean build(Term root) {
+        IdentityHashMap<Term, Integer> pcs = new IdentityHashMap<Term, Integer>();
+        ArrayList<Term> pending = new ArrayList<Term>();
+        ArrayList<Term> preds = new ArrayList<Term>();
+        int match = add(MATCH, null);
+        start = entry(root, match, pcs, pending);
+        while (!pending.isEmpty()) {
+            Term term = pending.remove(pending.size() - 1);
+            int pc = pcs.get(term);
+            switch (term.type) {
+                case Term.CHAR:
+                case Term.BITSET:
+                case Term.BITSET2:
+                case Term.ANY_CHAR:
+                case Term.ANY_CHAR_NE:
+                    op[pc] = consumer(term);
+                    link(pc, entry(term.next, match, pcs, pending));
+                    break;
+                case Term.STRING:
+                case Term.STRING_I: {
+                    //an instruction per char, built backwards
+                    int tail = entry(term.next, match, pcs, pending);
+                    char[] str = term.str;
+                    boolean folded = term.type == Term.STRING_I;
+                    for (int k = str.length - 1; k > 0; k--) {
+                        Term t = literal(str[k], folded);
+                        int body = add(consumer(t), t);
+                        next[body] = tail;
+                        tail = body;
+                    }
+                    Term t = literal(str[0], folded);
+                    op[pc] = consumer(t);
+                    terms[pc] = t;
+                    next[pc] = tail;
+                    break;
+                }
+                case Term.VOID:
+                    op[pc] = JUMP;
+                    link(pc, entry(term.next, match, pcs, pending));
+                    break;
+                case Term.GROUP_IN:
+                case Term.GROUP_OUT:
+                    if (term.memreg > 0) {
+                        op[pc] = SAVE;
+                        alt[pc] = term.memreg * 2 + (term.type == Term.GROUP_IN ? 0 : 1);
+                    } else op[pc] = JUMP;
+                    link(pc, entry(term.next, match, pcs, pending));
+                    break;
+                case Term.BRANCH:
+                    int first = entry(term.next, match, pcs, pending);
+                    int second = entry(term.failNext, match, pcs, pending);
+                    op[pc] = SPLIT;
+                    next[pc] = first;
+                    alt[pc] = second;
+                    break;
+                case Term.REPEAT_0_INF:
+                case Term.REPEAT_MIN_INF:
+                case Term.REPEAT_MIN_MAX: {
+                    int min = term.type == Term.REPEAT_0_INF ? 0 : term.minCount;
+                    int max = term.type == Term.REPEAT_MIN_MAX ? term.maxCount : -1;
+                    if (min > MAX_REPEAT || max > MAX_REPEAT) return false;
+                    int exit = entry(term.next, match, pcs, pending);
+                    //built backwards: the optional part, then the mandatory chain in front of it
+                    int tail = exit;
+                    if (max < 0) {
+                        int loop = add(SPLIT, null), body = add(consumer(term.target), term.target);
+                        next[loop] = body;
+                        alt[loop] = exit;
+                        next[body] = loop;
+                        tail = loop;
+                    } else for (int n = max - min; n > 0; n--) {
+                        int split = add(SPLIT, null), body = add(consumer(term.target), term.target);
+                        next[split] = body;
+                        alt[split] = exit;
+                        next[body] = tail;
+                        tail = split;
+                    }
+                    for (int n = 0; n < min; n++) {
+                        int body = add(consumer(term.target), term.target);
+                        next[body] = tail;
+                        tail = body;
+                    }
+                    op[pc] = JUMP;
+                    next[pc] = tail;
+                    break;
+                }
+                case Term.BOUNDARY:
+                case Term.UBOUNDARY:
+                case Term.DIRECTION:
+                case Term.UDIRECTION: {
+                    int k = 0;
+                    while (k < preds.size() && preds.get(k) != term) k++;
+                    if (k == preds.size()) {
+                        if (k >= 30 - FIRST_PREDICATE) return false;
+                        preds.add(term);
+                    }
+                    //the bit of the predicate in the context
+                    alt[pc] = k + FIRST_PREDICATE;
+                    op[pc] = ASSERT;
+                    link(pc, entry(term.next, match, pcs, pending));
+                    break;
+                }
+                case Term.START:
+                case Term.END:
+                case Term.LINE_START:
+                case Term.LINE_END:
+                    op[pc] = ASSERT;
+                    link(pc, entry(term.next, match, pcs, pending));
+                    break;
+                case Term.END_EOL:
+                    op[pc] = END_EOL;
+                    link(pc, entry(term.next, match, pcs, pending));
+                    break;
+                default:
+                    return false;
+            }
+            if (length > MAX_LENGTH) return false;
+        }
+        //keep only the tests, not the graph they link to; a term tested in several places stays one copy
+        IdentityHashMap<Term, Term> copies = new IdentityHashMap<Term, Term>();
+        for (int pc = 0; pc < length; pc++) {
+            switch (op[pc]) {
+                case CHAR:
+                case BITSET:
+                case BITSET2:
+                case ASSERT:
+                    terms[pc] = detach(terms[pc], copies);
+                    break;
+                default:
+                    terms[pc] = null;
+            }
+        }
+        predicates = new Term[preds.size()];
+        for (int k = 0; k < predicates.length; k++) {
+            predicates[k] = detach(preds.get(k), copies);
+        }
+        return true;
+    }
+
+    private static Term detach(Term term, IdentityHashMap<Term, Term> copies) {
+        Term copy = copies.get(term);
+        if (copy == null) copies.put(term, copy = term.detached());
+        return copy;
+    }
+
+    /**
+     * The most chars a match of the program can take, or -1 if a loop lets it take any number.
+     */
+    int maxLength() {
+        int[] depth = new int[length];  //the most chars from the instruction to a MATCH
+        int[] state = new int[length];  //0 unvisited, 1 on the path, 2 done
+        int[] path = new int[length], edge = new int[length];
+        int top = 0;
+        path[0] = start;
+        state[start] = 1;
+        while (top >= 0) {
+            int pc = path[top];
+            int to = -1;
+            if (op[pc] != MATCH) {
+                if (edge[pc] == 0) to = next[pc];
+                else if (edge[pc] == 1 && op[pc] == SPLIT) to = alt[pc];
+            }
+            if (edge[pc] < (op[pc] == MATCH ? 0 : op[pc] == SPLIT ? 2 : 1)) {
+                edge[pc]++;
+                if (to < 0) continue;
+                if (state[to] == 1) return -1;
+                if (state[to] == 0) {
+                    path[++top] = to;
+                    state[to] = 1;
+                }
+                continue;
+            }
+            int d = 0;
+            if (op[pc] != MATCH) {
+                if (next[pc] >= 0) d = depth[next[pc]];
+                if (op[pc] == SPLIT && alt[pc] >= 0 && depth[alt[pc]] > d) d = depth[alt[pc]];
+                if (op[pc] <= ANY_CHAR_NE) d++;
+            }
+            depth[pc] = d;
+            state[pc] = 2;
+            top--;
+        }
+        return depth[start];
+    }
+
+    /**
+     * Does some loop of the program hold more than one choice, as nested or alternated quantifiers do?
+     * Those are the patterns on which a backtracking search may take exponential time.
+     */
+    boolean hasAmbiguousLoops() {
+        //Tarjan's strongly connected components, without recursion
+        int length = this.length;
+        int[] index = new int[length], low = new int[length], edge = new int[length];
+        int[] path = new int[length], component = new int[length];
+        boolean[] onPath = new boolean[length];
+        int counter = 0, depth = 0, size = 0;
+        for (int root = 0; root < length; root++) {
+            if (index[root] != 0) continue;
+            path[depth++] = root;
+            index[root] = low[root] = ++counter;
+            component[size++] = root;
+            onPath[root] = true;
+            while (depth > 0) {
+                int pc = path[depth - 1];
+                int to = -1;
+                if (op[pc] != MATCH) {
+                    if (edge[pc] == 0) to = next[pc];
+                    else if (edge[pc] == 1 && op[pc] == SPLIT) to = alt[pc];
+                }
+                if (to >= 0) {
+                    edge[pc]++;
+                    if (index[to] == 0) {
+                        path[depth++] = to;
+                        index[to] = low[to] = ++counter;
+                        component[size++] = to;
+                        onPath[to] = true;
+                    } else if (onPath[to] && index[to] < low[pc]) low[pc] = index[to];
+                    continue;
+                }
+                depth--;
+                if (depth > 0) {
+                    int parent = path[depth - 1];
+                    if (low[pc] < low[parent]) low[parent] = low[pc];
+                }
+                if (low[pc] == index[pc]) {
+                    int splits = 0;
+                    int member;
+                    do {
+                        member = component[--size];
+                        onPath[member] = false;
+                        if (op[member] == SPLIT) splits++;
+                    } while (member != pc);
+                    if (splits > 1) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    //the arrays may get reallocated by entry(), so they are read only after it returns
+    private void link(int pc, int to) {
+        next[pc] = to;
+    }
+
+    private int entry(Term term, int match, IdentityHashMap<Term, Integer> pcs, ArrayList<Term> pending) {
+        if (term == null || term.type == Term.SUCCESS) return match;
+        Integer pc = pcs.get(term);
+        if (pc != null) return pc;
+        int p = add(JUMP, term);
+        pcs.put(term, p);
+        pending.add(term);
+        return p;
+    }
+
+    //a term for one char of a literal, accepting every char that folds to it if the literal is folded
+    private static Term literal(char c, boolean folded) {
+        Term t = new Term(Term.CHAR);
+        t.c = c;
+        if (folded) CharacterClass.foldCases(t);
+        return t;
+    }
+
+    private static int consumer(Term term) {
+        switch (term.type) {
+            case Term.CHAR:
+                return CHAR;
+            case Term.BITSET:
+                return BITSET;
+            case Term.BITSET2:
+                return BITSET2;
+            case Term.ANY_CHAR:
+                return ANY_CHAR;
+            default:
+                return ANY_CHAR_NE;
+        }
+    }
+
+    /**
+     * Does the consuming instruction at pc accept c? Mirrors the tests in Matcher.search().
+     */
+    final boolean accepts(int pc, char c) {
+        Term term = terms[pc];
+        switch (op[pc]) {
+            case CHAR:
+                return c == term.c;
+            case BITSET:
+                return (c <= 255 && term.bitset.get(c)) ^ term.inverse;
+            case BITSET2: {
+                IntBitSet arr = term.bitset2[c >> 8];
+                return arr != null && (arr.get(c & 255) ^ term.inverse);
+            }
+            case ANY_CHAR:
+                return true;
+            case ANY_CHAR_NE:
+                return c != '\r' && c != '\n';
+        }
+        return false;
+    }
+
+    static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * The context bits for a position that follows the char c.
+     */
+    final int contextAfter(char c) {
+        int ctx = isLineTerminator(c) ? AFTER_EOL : 0;
+        Term[] predicates = this.predicates;
+        for (int k = 0; k < predicates.length; k++) {
+            if (meets(predicates[k], c)) ctx |= 1 << (k + FIRST_PREDICATE);
+        }
+        return ctx;
+    }
+
+    /**
+     * The context bits for the position i of the region starting at offset.
+     */
+    final int context(char[] data, int i, int offset) {
+        return i <= offset ? AT_START : contextAfter(data[i - 1]);
+    }
+
+    private boolean meets(Term term, char c) {
+        if (term.type == Term.BOUNDARY || term.type == Term.DIRECTION)
+            return c < 256 && term.bitset.get(c);
+        IntBitSet bits = term.bitset2[c >> 8];
+        return bits != null && bits.get(c & 0xff);
+    }
+
+    /**
+     * Evaluates the ASSERT instruction at pc between the chars described by ctx and the char c (-1 at the end).
+     * Mirrors the tests in Matcher.search().
+     */
+    final boolean assertion(int pc, int ctx, int c) {
+        Term term = terms[pc];
+        switch (term.type) {
+            case Term.START:
+                return (ctx & AT_START) != 0;
+            case Term.END:
+                return c < 0;
+            case Term.LINE_START:
+                return (ctx & AT_START) != 0 || (c >= 0 && (ctx & AFTER_EOL) != 0);
+            case Term.LINE_END:
+                return c < 0 || isLineTerminator((char) c);
+            case Term.BOUNDARY:
+            case Term.UBOUNDARY: {
+                boolean ch1Meets = (ctx & (1 << alt[pc])) != 0;
+                boolean ch2Meets = c >= 0 && meets(term, (char) c);
+                return ch1Meets ^ ch2Meets ^ term.inverse;
+            }
+            case Term.DIRECTION:
+            case Term.UDIRECTION: {
+                boolean inv = term.inverse;
+                if (((ctx & (1 << alt[pc])) != 0) ^ inv) return false;
+                boolean ch2Meets = c >= 0 && meets(term, (char) c);
+                return !(!ch2Meets ^ inv);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Does Perl's "$" hold at the position i, given the region ends at end?
+     */
+    static boolean endOfLine(char[] data, int i, int end) {
+        return i >= end ||
+                ((i + 1) == end && data[i] == '\n') ||
+                ((i + 2) == end && data[i] == '\r' && data[i + 1] == '\n');
+    }
+}
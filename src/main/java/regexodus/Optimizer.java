@@ -29,13 +29,434 @@
 
 package regexodus;
 
+import regexodus.ds.IntBitSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
 class Optimizer {
     private static final int THRESHOLD = 20;
 
+    //a set of first chars is only looked for when there's no atom to find, so a wider one still pays
+    private static final int FIRST_CHARS_THRESHOLD = 64;
+
+    //how many of the longest literals are checked for being in every match
+    private static final int REQUIRED_CANDIDATES = 16;
+
+    //the shortest literal that is worth indexing, and the most of them a pattern may need to be indexed
+    private static final int MIN_ATOM = 2;
+    private static final int MAX_ATOMS = 256;
+
+    //a reach past this is taken as unbounded
+    private static final int MAX_REACH = 1 << 20;
+
     static Optimizer find(Term entry) {
         return find(entry, 0);
     }
 
+    /**
+     * Like {@link #find(Term)}, but for the very first term of a pattern, where no group has been captured yet,
+     * so a backreference can't be used as the atom to look for.
+     */
+    static Optimizer findFirst(Term entry) {
+        Optimizer opt = find(entry, 0);
+        if (opt == null || opt.atom.type == Term.REG || opt.atom.type == Term.REG_I) return null;
+        return opt;
+    }
+
+    /**
+     * Builds a set of every char that a match starting at entry can begin with. Patterns that
+     * {@link #findFirst(Term)} finds no single atom for, like "(?:GET|POST) /" or "\s*(foo|bar)", can
+     * still skip the positions where none of those chars is.
+     * @return a BITSET or BITSET2 term accepting those chars, or null if a match may be empty, may begin with
+     * more than FIRST_CHARS_THRESHOLD chars, or begins with something else than a set of chars
+     */
+    static Term findFirstChars(Term entry) {
+        IntBitSet[] blocks = new IntBitSet[256];
+        IdentityHashMap<Term, Boolean> seen = new IdentityHashMap<Term, Boolean>();
+        ArrayList<Term> pending = new ArrayList<Term>();
+        pending.add(entry);
+        while (!pending.isEmpty()) {
+            Term term = pending.remove(pending.size() - 1);
+            //the end of the chain is where a match succeeds
+            if (term == null) return null;
+            if (seen.put(term, Boolean.TRUE) != null) continue;
+            int type = term.type;
+            switch (type) {
+                case Term.CHAR:
+                case Term.STRING:
+                case Term.STRING_I:
+                case Term.BITSET:
+                case Term.BITSET2:
+                    if (!addChars(term, blocks)) return null;
+                    continue;
+                case Term.REPEAT_0_INF:
+                case Term.REPEAT_MIN_INF:
+                case Term.REPEAT_MIN_MAX:
+                    if (!addChars(term.target, blocks)) return null;
+                    if (type == Term.REPEAT_0_INF || term.minCount == 0) pending.add(term.next);
+                    continue;
+                //a positive lookahead or an atomic group begins where it is, as does what follows it
+                case Term.PLOOKAHEAD_IN:
+                case Term.PLOOKAHEAD_OUT:
+                case Term.INDEPENDENT_IN:
+                case Term.INDEPENDENT_OUT:
+                    pending.add(term.next);
+                    continue;
+            }
+            //the assertions, groups, branches and counters don't consume anything
+            if (type >= Term.FIRST_TRANSPARENT && type <= Term.BRANCH_STORE_CNT_AUX1) {
+                pending.add(term.next);
+                if (term.failNext != null) pending.add(term.failNext);
+                continue;
+            }
+            return null;
+        }
+        int weight = 0;
+        boolean large = false;
+        for (int b = 0; b < 256; b++) {
+            if (blocks[b] == null) continue;
+            weight += blocks[b].cardinality();
+            if (b > 0) large = true;
+        }
+        if (weight == 0 || weight > FIRST_CHARS_THRESHOLD) return null;
+        Term set = new Term(large ? Term.BITSET2 : Term.BITSET);
+        if (large) set.bitset2 = blocks;
+        else set.bitset = blocks[0];
+        set.weight = weight;
+        return set;
+    }
+
+    /**
+     * Puts a search for the chars found by {@link #findFirstChars(Term)} in front of theFirst.
+     * @return the term to start a match at, or null if there are no such chars
+     */
+    static Term makeFirstChars(Term theFirst) {
+        Term chars = findFirstChars(theFirst);
+        return chars == null ? null : new Find(chars, 0, theFirst);
+    }
+
+    //adds the chars the atom can begin with; false if it isn't a plain set of chars
+    private static boolean addChars(Term atom, IntBitSet[] blocks) {
+        switch (atom.type) {
+            case Term.CHAR:
+                addChar(atom.c, blocks);
+                return true;
+            case Term.STRING:
+                addChar(atom.str[0], blocks);
+                return true;
+            case Term.STRING_I: {
+                //the literal is kept folded, so it begins with any char that folds to its first one
+                Term cases = new Term(Term.CHAR);
+                cases.c = atom.str[0];
+                CharacterClass.foldCases(cases);
+                return addChars(cases, blocks);
+            }
+            case Term.BITSET:
+                if (atom.inverse) return false;
+                block(blocks, 0).or(atom.bitset);
+                return true;
+            case Term.BITSET2:
+                if (atom.inverse) return false;
+                for (int b = 0; b < 256; b++) {
+                    if (atom.bitset2[b] != null) block(blocks, b).or(atom.bitset2[b]);
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void addChar(char c, IntBitSet[] blocks) {
+        block(blocks, c >> 8).set(c & 0xff);
+    }
+
+    private static IntBitSet block(IntBitSet[] blocks, int b) {
+        IntBitSet block = blocks[b];
+        if (block == null) blocks[b] = block = new IntBitSet();
+        return block;
+    }
+
+    /**
+     * Finds the longest literal that every match contains, so that a {@link Horspool} scanner can rule out the
+     * targets, or the rest of them, where it isn't. A literal in a lookbehind is passed over, as it may lie before
+     * the start of a match.
+     * @return the scanner for the literal, or null if no literal is in every match
+     */
+    static Horspool findRequired(Term root) {
+        Term literal = requiredLiteral(root);
+        if (literal == null) return null;
+        char[] chars = literal.type == Term.CHAR ? new char[]{literal.c} : literal.str;
+        return new Horspool(chars, literal.type == Term.STRING_I, reach(root, literal), findRun(root, literal));
+    }
+
+    //the widest literal out of a lookbehind that every match contains; null if there's none
+    private static Term requiredLiteral(Term root) {
+        final IdentityHashMap<Term, Integer> order = walk(root, null, false);
+        ArrayList<Term> terms = new ArrayList<Term>(order.keySet());
+        IdentityHashMap<Term, Boolean> behind = lookbehinds(terms);
+        ArrayList<Term> literals = new ArrayList<Term>();
+        for (Term term : terms) {
+            if (isLiteral(term) && !behind.containsKey(term))
+                literals.add(term);
+        }
+        Collections.sort(literals, new Comparator<Term>() {
+            @Override
+            public int compare(Term a, Term b) {
+                //the widest first, and the same one whichever way the terms are hashed
+                int wider = width(b) - width(a);
+                return wider != 0 ? wider : order.get(a) - order.get(b);
+            }
+        });
+        for (int k = 0; k < literals.size() && k < REQUIRED_CANDIDATES; k++) {
+            Term literal = literals.get(k);
+            if (walk(root, literal, true) != null) return literal;
+        }
+        return null;
+    }
+
+    /**
+     * Finds literals that every match contains at least one of, so that an index over many patterns can rule out a
+     * pattern when none of them is in a target. That is the required literal when there is one of at least
+     * MIN_ATOM chars; otherwise, the first literal that long on each way through the pattern.
+     * @return the literals, case-folded, or null if a match may go without any of them
+     */
+    static ArrayList<char[]> findAtoms(Term root) {
+        ArrayList<Term> atoms = new ArrayList<Term>();
+        Term required = requiredLiteral(root);
+        if (required != null && width(required) >= MIN_ATOM) atoms.add(required);
+        else {
+            IdentityHashMap<Term, Boolean> behind = lookbehinds(new ArrayList<Term>(walk(root, null, false).keySet()));
+            IdentityHashMap<Term, Boolean> seen = new IdentityHashMap<Term, Boolean>();
+            ArrayList<Term> pending = new ArrayList<Term>();
+            pending.add(root);
+            while (!pending.isEmpty()) {
+                Term term = pending.remove(pending.size() - 1);
+                if (term == null || term.type == Term.SUCCESS) return null;
+                if (seen.put(term, Boolean.TRUE) != null) continue;
+                if (isLiteral(term) && width(term) >= MIN_ATOM && !behind.containsKey(term)) {
+                    if (atoms.size() == MAX_ATOMS) return null;
+                    atoms.add(term);
+                    continue;
+                }
+                if (term.type == Term.NLOOKAHEAD_OUT || term.type == Term.NLOOKBEHIND_OUT) continue;
+                pending.add(term.next);
+                if (term.failNext != null || goesOnFailing(term.type)) pending.add(term.failNext);
+            }
+        }
+        ArrayList<char[]> folded = new ArrayList<char[]>(atoms.size());
+        for (Term atom : atoms) {
+            char[] chars = new char[atom.str.length];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = Category.caseFold(atom.str[i]);
+            }
+            folded.add(chars);
+        }
+        return folded;
+    }
+
+    private static boolean isLiteral(Term term) {
+        return term.type == Term.CHAR || term.type == Term.STRING || term.type == Term.STRING_I;
+    }
+
+    //the terms inside the lookbehinds among terms
+    private static IdentityHashMap<Term, Boolean> lookbehinds(ArrayList<Term> terms) {
+        IdentityHashMap<Term, Boolean> behind = new IdentityHashMap<Term, Boolean>();
+        for (Term term : terms) {
+            int type = term.type;
+            if (type == Term.PLOOKBEHIND_IN || type == Term.NLOOKBEHIND_IN || type == Term.LOOKBEHIND_CONDITION_IN)
+                markBehind(term, behind);
+        }
+        return behind;
+    }
+
+    /**
+     * @return the atom of the repetition that a match starts with, if it leads straight to the literal,
+     * like [\w.] in "([\w.]+)\.log"; null if there's something else on the way
+     */
+    private static Term findRun(Term root, Term literal) {
+        Term term = root;
+        while (term != null && (term.type == Term.GROUP_IN || term.type == Term.VOID)) term = term.next;
+        if (term == null) return null;
+        switch (term.type) {
+            case Term.REPEAT_0_INF: case Term.REPEAT_MIN_INF: case Term.REPEAT_MIN_MAX:
+                break;
+            default:
+                return null;
+        }
+        Term run = term.target;
+        switch (run.type) {
+            case Term.CHAR: case Term.ANY_CHAR: case Term.ANY_CHAR_NE: case Term.BITSET: case Term.BITSET2:
+                break;
+            default:
+                return null;
+        }
+        term = term.next;
+        while (term != null && (term.type == Term.GROUP_IN || term.type == Term.GROUP_OUT || term.type == Term.VOID))
+            term = term.next;
+        return term == literal ? run.detached() : null;
+    }
+
+    /**
+     * The terms the matcher can get to from root without passing the term to avoid, following next and failNext;
+     * the end of a negative lookaround only fails, so it leads nowhere.
+     * @return the terms, numbered in the order they are found, or null if required is set and a match can end
+     * without passing the term to avoid
+     */
+    private static IdentityHashMap<Term, Integer> walk(Term root, Term avoid, boolean required) {
+        IdentityHashMap<Term, Integer> seen = new IdentityHashMap<Term, Integer>();
+        ArrayList<Term> pending = new ArrayList<Term>();
+        pending.add(root);
+        while (!pending.isEmpty()) {
+            Term term = pending.remove(pending.size() - 1);
+            if (term == null || term.type == Term.SUCCESS) {
+                if (required) return null;
+                continue;
+            }
+            if (term == avoid || seen.containsKey(term)) continue;
+            seen.put(term, seen.size());
+            if (term.type == Term.NLOOKAHEAD_OUT || term.type == Term.NLOOKBEHIND_OUT) continue;
+            pending.add(term.next);
+            if (term.failNext != null || goesOnFailing(term.type)) pending.add(term.failNext);
+        }
+        return seen;
+    }
+
+    //whether the matcher goes on to failNext of a term of that type, so a null one there ends the match
+    private static boolean goesOnFailing(int type) {
+        switch (type) {
+            case Term.BRANCH: case Term.BRANCH_STORE_CNT: case Term.BRANCH_STORE_CNT_AUX1:
+            case Term.NLOOKAHEAD_IN: case Term.NLOOKBEHIND_IN:
+            case Term.MEMREG_CONDITION: case Term.LOOKAHEAD_CONDITION_IN: case Term.LOOKBEHIND_CONDITION_IN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    //marks the terms inside a lookbehind
+    private static void markBehind(Term in, IdentityHashMap<Term, Boolean> behind) {
+        ArrayList<Term> pending = new ArrayList<Term>();
+        pending.add(in.next);
+        while (!pending.isEmpty()) {
+            Term term = pending.remove(pending.size() - 1);
+            if (term == null || behind.put(term, Boolean.TRUE) != null) continue;
+            int type = term.type;
+            if (term.lookaheadId == in.lookaheadId && (type == Term.PLOOKBEHIND_OUT || type == Term.NLOOKBEHIND_OUT
+                    || type == Term.LOOKBEHIND_CONDITION_OUT)) continue;
+            pending.add(term.next);
+            if (term.failNext != null) pending.add(term.failNext);
+        }
+    }
+
+    /**
+     * @return the most chars a match can take before it gets to the literal; -1 if that isn't bounded
+     */
+    private static int reach(Term root, Term literal) {
+        //the terms between the root and the literal, numbered
+        IdentityHashMap<Term, Integer> on = walk(root, literal, false);
+        on.put(literal, on.size());
+        IdentityHashMap<Term, Integer> ids = new IdentityHashMap<Term, Integer>();
+        ArrayList<Term> terms = new ArrayList<Term>(on.keySet());
+        for (int k = 0; k < terms.size(); k++) ids.put(terms.get(k), k);
+        int n = terms.size();
+        int[][] preds = new int[n][];
+        int[] predCount = new int[n];
+        for (Term term : terms) {
+            if (term == literal) continue;
+            for (Term link : new Term[]{term.next, term.failNext}) {
+                Integer to = link == null ? null : ids.get(link);
+                if (to == null) continue;
+                int[] p = preds[to];
+                if (p == null) preds[to] = p = new int[2];
+                else if (predCount[to] == p.length) preds[to] = p = Arrays.copyOf(p, p.length * 2);
+                p[predCount[to]++] = ids.get(term);
+            }
+        }
+        //only the terms that lead to the literal count
+        boolean[] leads = new boolean[n];
+        int[] stack = new int[n];
+        int size = 0;
+        stack[size++] = ids.get(literal);
+        leads[stack[0]] = true;
+        while (size > 0) {
+            int t = stack[--size];
+            for (int k = 0; k < predCount[t]; k++) {
+                int p = preds[t][k];
+                if (!leads[p]) {
+                    leads[p] = true;
+                    stack[size++] = p;
+                }
+            }
+        }
+        //the longest way through them, taking them in topological order; a loop among them is unbounded
+        int[] inDegree = new int[n];
+        for (int t = 0; t < n; t++) {
+            if (!leads[t]) continue;
+            for (int k = 0; k < predCount[t]; k++) {
+                if (leads[preds[t][k]]) inDegree[t]++;
+            }
+        }
+        long[] dist = new long[n];
+        size = 0;
+        for (int t = 0; t < n; t++) {
+            if (leads[t] && inDegree[t] == 0) stack[size++] = t;
+        }
+        int done = 0;
+        int target = ids.get(literal);
+        while (size > 0) {
+            int t = stack[--size];
+            done++;
+            if (t == target) continue;
+            Term term = terms.get(t);
+            int w = width(term);
+            if (w < 0) return -1;
+            for (Term link : new Term[]{term.next, term.failNext}) {
+                Integer to = link == null ? null : ids.get(link);
+                if (to == null || !leads[to]) continue;
+                dist[to] = Math.max(dist[to], dist[t] + w);
+                if (--inDegree[to] == 0) stack[size++] = to;
+            }
+        }
+        for (int t = 0; t < n; t++) {
+            if (leads[t]) done--;
+        }
+        if (done < 0 || dist[target] > MAX_REACH) return -1;
+        return (int) dist[target];
+    }
+
+    //how many chars the term takes at most; -1 if that isn't bounded
+    private static int width(Term term) {
+        switch (term.type) {
+            case Term.CHAR:
+            case Term.BITSET:
+            case Term.BITSET2:
+            case Term.ANY_CHAR:
+            case Term.ANY_CHAR_NE:
+                return 1;
+            case Term.STRING:
+            case Term.STRING_I:
+                return term.str.length;
+            case Term.REPEAT_MIN_MAX: {
+                int w = width(term.target);
+                long max = (long) w * term.maxCount;
+                return w < 0 || max > MAX_REACH ? -1 : (int) max;
+            }
+            case Term.REPEAT_0_INF:
+            case Term.REPEAT_MIN_INF:
+            case Term.REPEAT_REG_MIN_INF:
+            case Term.REPEAT_REG_MIN_MAX:
+            case Term.REG:
+            case Term.REG_I:
+                return -1;
+            default:
+                return 0;
+        }
+    }
+
     private static Optimizer find(Term term, int dist) {
 //System.out.println("term="+term+", dist="+dist);
         if (term == null) return null;
@@ -43,9 +464,10 @@ class Optimizer {
         int type = term.type;
         switch (type) {
             case Term.CHAR:
+            case Term.STRING:
+            case Term.STRING_I:
             case Term.REG:
             case Term.REG_I:
-            case Term.GROUP_IN:
                 return new Optimizer(term, dist);
             case Term.BITSET:
             case Term.BITSET2:
@@ -118,6 +540,8 @@ class Find extends Term {
     Find(Term target, int distance, Term theFirst) {
         switch (target.type) {
             case Term.CHAR:
+            case Term.STRING:
+            case Term.STRING_I:
             case Term.BITSET:
             case Term.BITSET2:
                 type = Term.FIND;
@@ -132,7 +556,8 @@ class Find extends Term {
         }
         this.target = target;
         this.distance = distance;
-        if (target == theFirst) {
+        //a found literal is matched again, as eating it would only skip one char
+        if (target == theFirst && target.str == null) {
             next = target.next;
             eat = true; //eat the next
         } else {
@@ -147,6 +572,8 @@ class FindBack extends Term {
         this.minCount = minCount;
         switch (target.type) {
             case Term.CHAR:
+            case Term.STRING:
+            case Term.STRING_I:
             case Term.BITSET:
             case Term.BITSET2:
                 type = Term.BACKTRACK_FIND_MIN;
@@ -163,7 +590,7 @@ class FindBack extends Term {
         this.target = target;
         this.distance = distance;
         Term next = backtrack.next;
-        if (target == next) {
+        if (target == next && target.str == null) {
             this.next = next.next;
             this.eat = true;
         } else {
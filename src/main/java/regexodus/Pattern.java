@@ -30,10 +30,15 @@
 package regexodus;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OptionalDataException;
 import java.io.Reader;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * A handle for a precompiled regular expression; core operations should be identical to java.util.regex.Pattern .
@@ -68,11 +73,15 @@ import java.util.HashMap;
  * <li><b>REFlags.DOTALL</b> - forces "." to match eols('\r' and '\n' in ASCII);</li>
  * <li><b>REFlags.IGNORE_SPACES</b> - literal spaces in expression are ignored for better readability;</li>
  * <li><b>REFlags.UNICODE</b> - the predefined classes('\w','\d',etc) are referenced to Unicode;</li>
- * <li><b>REFlags.XML_SCHEMA</b> - permits XML Schema regular expressions syntax extensions.</li>
+ * <li><b>REFlags.XML_SCHEMA</b> - permits XML Schema regular expressions syntax extensions;</li>
+ * <li><b>REFlags.LINEAR</b> - matches in time linear in the length of the text, when the expression allows it.</li>
+ * <li><b>REFlags.MEMOIZE</b> - makes the backtracking search remember where it failed, when the expression allows it.</li>
  * </ul>
  * <br>
  * <b>Multithreading</b><br>
- * Pattern instances are not thread-safe, and neither are Matcher objects.
+ * Patterns can be compiled from any number of threads at once, and {@link #compileAll(String[], int)} compiles a
+ * whole list of them in parallel. A built Pattern, and everything it compiled along with it, can be shared by any
+ * number of threads; each thread should get its own Matcher from it, since Matcher objects are not thread-safe.
  * <br>
  * <b>Special Syntax</b>
  * <br>
@@ -253,6 +262,9 @@ public class Pattern implements Serializable, REFlags {
     // tree entry
     transient Term root, root0;
 
+    // the tree lowered to the program the backtracking matcher runs
+    transient Program program;
+
     // required number of memory slots
     int memregs;
 
@@ -262,15 +274,73 @@ public class Pattern implements Serializable, REFlags {
     // number of lookahead groups
     int lookaheads;
 
-    private int flags;
+    int flags;
 
     HashMap<String, Integer> namedGroupMap;
 
     boolean caseless = false;
 
+    // the program the automata below run, which PatternSet joins too; null if the pattern needs backtracking memory
+    transient NFA nfa;
+
+    // the automaton used to reject a target without backtracking; null if the pattern needs backtracking memory
+    transient DFA dfa;
+
+    // the program run in linear time instead of backtracking; null if the backtracking search is used
+    transient NFA linear;
+
+    // the bit-parallel scanner that finds where to start searching; null if the pattern doesn't fit in one
+    transient ShiftAnd shiftAnd;
+
+    // how many terms the backtracking search remembers the failures of; 0 if it doesn't memoize
+    transient int memoTerms;
+
+    // the scanner for a literal that every match contains; null if there's none
+    transient Horspool required;
+
+    // the anchor every match starts at (Term.START, Term.LINE_START or Term.LAST_MATCH_END); -1 if there's none
+    transient int anchor = -1;
+
+    // the automaton that finds the match of a pattern that only alternates literals; null for any other pattern
+    transient AhoCorasick literals;
+
+    // the generated class that runs the program; null if the pattern is interpreted, see compileToBytecode()
+    transient Compiled compiled;
+
+    // the limits given to new matchers; 0 means no limit
+    private long stepLimit, timeLimit;
+
     protected Pattern() throws PatternSyntaxException {
     }
 
+    /**
+     * Makes a Pattern that shares the compiled state of another, but has its own flags and limits from then on;
+     * used for the patterns {@link PatternCache} hands out.
+     */
+    Pattern(Pattern other) {
+        stringRepr = other.stringRepr;
+        root = other.root;
+        root0 = other.root0;
+        program = other.program;
+        memregs = other.memregs;
+        counters = other.counters;
+        lookaheads = other.lookaheads;
+        flags = other.flags;
+        namedGroupMap = other.namedGroupMap;
+        caseless = other.caseless;
+        nfa = other.nfa;
+        dfa = other.dfa;
+        linear = other.linear;
+        shiftAnd = other.shiftAnd;
+        memoTerms = other.memoTerms;
+        required = other.required;
+        anchor = other.anchor;
+        literals = other.literals;
+        compiled = other.compiled;
+        stepLimit = other.stepLimit;
+        timeLimit = other.timeLimit;
+    }
+
     /**
      * Compiles an expression with default flags.
      *
@@ -373,6 +443,52 @@ public class Pattern implements Serializable, REFlags {
         return flags;
     }
 
+    /**
+     * Sets the default for {@link Matcher#setStepLimit(long)} in the matchers made from this Pattern afterwards.
+     * @param stepLimit the most backtracking steps a search may take, or 0 for no limit
+     */
+    public void setStepLimit(long stepLimit)
+    {
+        if (stepLimit < 0) throw new IllegalArgumentException("negative step limit: " + stepLimit);
+        this.stepLimit = stepLimit;
+    }
+
+    public long getStepLimit()
+    {
+        return stepLimit;
+    }
+
+    /**
+     * Sets the default for {@link Matcher#setTimeLimit(long)} in the matchers made from this Pattern afterwards.
+     * @param timeLimit the most milliseconds a search may take, or 0 for no limit
+     */
+    public void setTimeLimit(long timeLimit)
+    {
+        if (timeLimit < 0) throw new IllegalArgumentException("negative time limit: " + timeLimit);
+        this.timeLimit = timeLimit;
+    }
+
+    public long getTimeLimit()
+    {
+        return timeLimit;
+    }
+
+    /**
+     * Generates a JVM class that runs this pattern, which the matchers made from it use from then on wherever they can;
+     * worth it for a pattern that searches a lot of text. Only patterns without backreferences, lookarounds, lazy
+     * quantifiers or repeated groups can be generated, and only on a JVM that lets classes be defined at runtime
+     * (Java 9 and up); otherwise this changes nothing and the matchers go on interpreting the pattern.
+     * Matchers with a step or time limit, and searches that resume a match or accept a partial one, always interpret it.
+     * Setting the flags compiles the pattern again, so this has to be called again after that.
+     * @return true if the matchers use the generated class
+     */
+    @GwtIncompatible
+    public boolean compileToBytecode()
+    {
+        if (compiled == null) compiled = BytecodeCompiler.compile(this);
+        return compiled != null;
+    }
+
     //java.util.regex.* compatibility
 
     /**
@@ -384,7 +500,7 @@ public class Pattern implements Serializable, REFlags {
      * @throws PatternSyntaxException when there is a syntax error in the Pattern
      */
     public static Pattern compile(String regex) throws PatternSyntaxException{
-        return new Pattern(regex, DEFAULT);
+        return PatternCache.get(regex, DEFAULT);
     }
     //java.util.regex.* compatibility
 
@@ -401,7 +517,7 @@ public class Pattern implements Serializable, REFlags {
      * @throws PatternSyntaxException when there is a syntax error in the Pattern
      */
     public static Pattern compile(String regex,int flags) throws PatternSyntaxException{
-        return new Pattern(regex, flags);
+        return PatternCache.get(regex, flags);
     }
     //java.util.regex.* compatibility
     /**
@@ -429,7 +545,113 @@ public class Pattern implements Serializable, REFlags {
      * @throws PatternSyntaxException when there is a syntax error in the Pattern
      */
     public static Pattern compile(String regex,String flags) throws PatternSyntaxException{
-        return new Pattern(regex, flags);
+        return PatternCache.get(regex, parseFlags(flags));
+    }
+
+    /**
+     * Sets how many compiled patterns the compile() methods keep, so that compiling a regex they have seen before,
+     * with the same flags, only copies the earlier result; the least recently used patterns are dropped first.
+     * Constructing a Pattern with new always compiles it. The cache holds 1024 patterns unless this is called.
+     * @param patterns the most patterns to keep, or 0 to turn the cache off and drop what it holds
+     */
+    public static void setCacheSize(int patterns)
+    {
+        PatternCache.setCapacity(patterns);
+    }
+
+    /**
+     * Gets the limit given to {@link #setCacheSize(int)}, 1024 by default. The limit is kept per stripe: the cache is
+     * split into 16 stripes by the hash of the regex, each keeping at most a 16th of the limit rounded up. So the cache
+     * can hold up to the limit rounded up to a multiple of 16, and a stripe can drop a pattern before the whole cache
+     * is full.
+     * @return the most patterns the cache was set to keep, or 0 if it is off
+     */
+    public static int getCacheSize()
+    {
+        return PatternCache.getCapacity();
+    }
+
+    /**
+     * Compiles every regex in a list with the same flags, spreading the work over the threads of a ForkJoinPool; this
+     * is meant for programs that load thousands of patterns at startup. Each Pattern is the same as
+     * {@link #compile(String, int)} would make.
+     * @param regexes the regular expressions to compile
+     * @param flags integer flags that are constructed via bitwise OR from the flag constants in REFlags.
+     * @param pool the pool whose threads compile the patterns
+     * @return the compiled patterns, in the same order as regexes
+     * @throws PatternSyntaxException the error of the first regex in the list that doesn't compile
+     */
+    @GwtIncompatible
+    public static Pattern[] compileAll(String[] regexes, int flags, ForkJoinPool pool) throws PatternSyntaxException {
+        Pattern[] patterns = new Pattern[regexes.length];
+        PatternSyntaxException[] errors = new PatternSyntaxException[regexes.length];
+        pool.invoke(new CompileTask(regexes, flags, patterns, errors, 0, regexes.length));
+        for (PatternSyntaxException e : errors) {
+            if (e != null) throw e;
+        }
+        return patterns;
+    }
+
+    /**
+     * Compiles every regex in a list with the same flags, using a ForkJoinPool with a thread per processor that is
+     * made on the first call and kept for the later ones, so calling this again and again doesn't start up new
+     * threads each time.
+     * @param regexes the regular expressions to compile
+     * @param flags integer flags that are constructed via bitwise OR from the flag constants in REFlags.
+     * @return the compiled patterns, in the same order as regexes
+     * @throws PatternSyntaxException the error of the first regex in the list that doesn't compile
+     * @see #compileAll(String[], int, ForkJoinPool)
+     */
+    @GwtIncompatible
+    public static Pattern[] compileAll(String[] regexes, int flags) throws PatternSyntaxException {
+        return compileAll(regexes, flags, CompilePool.POOL);
+    }
+
+    //holds the pool of compileAll(String[], int), which is only made when the class is first used; its threads are
+    //daemons, so it never keeps a program from exiting
+    @GwtIncompatible
+    private static class CompilePool {
+        static final ForkJoinPool POOL = new ForkJoinPool();
+    }
+
+    @GwtIncompatible
+    private static class CompileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        //a range this short is compiled by one task rather than split further
+        private static final int BATCH = 16;
+
+        private final String[] regexes;
+        private final int flags;
+        private final Pattern[] patterns;
+        private final PatternSyntaxException[] errors;
+        private final int start, end;
+
+        CompileTask(String[] regexes, int flags, Pattern[] patterns, PatternSyntaxException[] errors,
+                    int start, int end) {
+            this.regexes = regexes;
+            this.flags = flags;
+            this.patterns = patterns;
+            this.errors = errors;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= BATCH) {
+                for (int i = start; i < end; i++) {
+                    try {
+                        patterns[i] = new Pattern(regexes[i], flags);
+                    } catch (PatternSyntaxException e) {
+                        errors[i] = e;
+                    }
+                }
+                return;
+            }
+            int mid = (start + end) >>> 1;
+            invokeAll(new CompileTask(regexes, flags, patterns, errors, start, mid),
+                    new CompileTask(regexes, flags, patterns, errors, mid, end));
+        }
     }
 
 
@@ -438,6 +660,22 @@ public class Pattern implements Serializable, REFlags {
         this.flags = flags;
         caseless = (flags & IGNORE_CASE) == IGNORE_CASE;
         Term.makeTree(regex, new int[]{flags}, this);
+        prepare();
+    }
+
+    /**
+     * Builds the automata and scanners that the matchers use alongside the program, from the term tree; done after
+     * parsing a regex and after loading an encoded pattern. A class generated for the old program is let go of, see
+     * {@link #compileToBytecode()}.
+     */
+    void prepare() {
+        compiled = null;
+        literals = AhoCorasick.compile(root0);
+        nfa = NFA.compile(this);
+        dfa = nfa == null ? null : new DFA(nfa);
+        linear = nfa != null && ((flags & LINEAR) != 0 || nfa.hasAmbiguousLoops()) ? nfa : null;
+        if ((flags & MEMOIZE) == 0 && linear == null) memoTerms = 0;
+        shiftAnd = nfa == null ? null : ShiftAnd.compile(nfa);
     }
 
     /**
@@ -876,4 +1114,55 @@ public class Pattern implements Serializable, REFlags {
     {
         return new Pattern(ser.substring(0, ser.length() - 1), ser.charAt(ser.length() - 1) >>> 1);
     }
+
+    /**
+     * Encodes this compiled pattern, so that {@link #fromBytes(byte[])} can load it later, possibly in another process,
+     * without parsing and optimizing the regex again. Unlike {@link #serializeToString()}, which only keeps the regex
+     * and flags, this keeps the compiled terms with their bitsets, counters and named groups. The encoding is versioned;
+     * a later version of the library that can't load it throws rather than making a wrong pattern. The step and time
+     * limits and the class made by {@link #compileToBytecode()} aren't part of it.
+     * @return the encoded pattern
+     */
+    public byte[] toBytes()
+    {
+        return PatternCodec.encode(this);
+    }
+
+    /**
+     * Loads a pattern encoded by {@link #toBytes()}.
+     * @param bytes the encoded pattern
+     * @return a Pattern that matches the same as the one that was encoded
+     * @throws IllegalArgumentException if bytes isn't a pattern encoded by a compatible version of the library
+     */
+    public static Pattern fromBytes(byte[] bytes)
+    {
+        Pattern p = new Pattern();
+        PatternCodec.decode(bytes, p);
+        return p;
+    }
+
+    @GwtIncompatible
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(program == null ? null : toBytes());
+    }
+
+    @GwtIncompatible
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        Object encoded;
+        try {
+            encoded = in.readObject();
+        } catch (OptionalDataException e) {
+            //written before the terms were, with nothing after the fields
+            encoded = null;
+        }
+        if (encoded instanceof byte[]) {
+            try {
+                PatternCodec.decode((byte[]) encoded, this);
+            } catch (IllegalArgumentException e) {
+                internalCompile(stringRepr, flags);
+            }
+        } else if (stringRepr != null) internalCompile(stringRepr, flags);
+    }
 }
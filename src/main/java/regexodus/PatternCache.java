@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2001, Sergey A. Samokhodkin
+ * All rights reserved.
+ * <br>
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * <br>
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * - Redistributions in binary form
+ * must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of jregex nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific prior
+ * written permission.
+ * <br>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version 1.2_01
+ */
+
+
+package regexodus;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The process-wide cache behind {@link Pattern#compile(String, int)}, so that code which compiles the same regex over
+ * and over (as ported String.matches() or replaceAll() calls do) parses it once. The compiled Patterns are kept by
+ * (regex, flags) in a fixed number of stripes, each a small LRU map under its own lock, so threads looking up
+ * different regexes rarely wait for each other; a regex is compiled outside of any lock. The cache holds about
+ * {@link #getCapacity()} patterns (rounded up to a multiple of the stripe count), the least recently used of a stripe
+ * being dropped first.
+ * <br>
+ * Callers never get the cached Pattern itself, only a copy sharing its compiled state, so setting the flags or the
+ * limits of one doesn't change any other.
+ */
+final class PatternCache {
+    private static final int STRIPES = 16;
+
+    private static final Stripe[] stripes = new Stripe[STRIPES];
+    private static volatile int capacity;
+
+    static {
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe();
+        setCapacity(1024);
+    }
+
+    private PatternCache() {
+    }
+
+    private static final class Key {
+        final String regex;
+        final int flags;
+
+        Key(String regex, int flags) {
+            this.regex = regex;
+            this.flags = flags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return flags == key.flags && regex.equals(key.regex);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * regex.hashCode() + flags;
+        }
+    }
+
+    private static final class Stripe extends LinkedHashMap<Key, Pattern> {
+        private static final long serialVersionUID = 1L;
+        int limit;
+
+        Stripe() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Pattern> eldest) {
+            return size() > limit;
+        }
+    }
+
+    private static Stripe stripe(Key key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return stripes[(h ^ h >>> 8) & (STRIPES - 1)];
+    }
+
+    /**
+     * Returns a Pattern for regex compiled with flags, compiling it only if it isn't in the cache.
+     * @throws PatternSyntaxException if regex doesn't compile; failures aren't cached
+     */
+    static Pattern get(String regex, int flags) throws PatternSyntaxException {
+        if (capacity == 0) return new Pattern(regex, flags);
+        Key key = new Key(regex, flags);
+        Stripe stripe = stripe(key);
+        Pattern p;
+        synchronized (stripe) {
+            p = stripe.get(key);
+        }
+        if (p == null) {
+            p = new Pattern(regex, flags);
+            synchronized (stripe) {
+                //another thread may have compiled it meanwhile; keep the one that got in first
+                Pattern other = stripe.get(key);
+                if (other == null) stripe.put(key, p);
+                else p = other;
+            }
+        }
+        return new Pattern(p);
+    }
+
+    static int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets how many patterns the cache holds at most, dropping the least recently used ones if it holds more.
+     * @param patterns the most patterns to keep, or 0 to not cache at all
+     */
+    static void setCapacity(int patterns) {
+        if (patterns < 0) throw new IllegalArgumentException("negative capacity: " + patterns);
+        capacity = patterns;
+        int limit = (patterns + STRIPES - 1) / STRIPES;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.limit = limit;
+                while (stripe.size() > limit) {
+                    stripe.remove(stripe.keySet().iterator().next());
+                }
+            }
+        }
+    }
+
+    static int size() {
+        int n = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                n += stripe.size();
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,303 @@
+/**
+ * Copyright (c) 2001, Sergey A. Samokhodkin
+ * All rights reserved.
+ * <br>
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * <br>
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * - Redistributions in binary form
+ * must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of jregex nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific prior
+ * written permission.
+ * <br>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version 1.2_01
+ */
+
+
+package regexodus;
+
+import regexodus.ds.IntBitSet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The binary form of a compiled Pattern, see {@link Pattern#toBytes()}: its term graph as the parser and optimizer
+ * left it, with the bitsets, counters and group names, so that loading it skips parsing and optimizing and only
+ * lowers the terms to the program and automata again.
+ * <br>
+ * The encoding starts with "RX" and a version number; every number after that is a zigzag varint. The bitsets are
+ * stored once each and the terms refer to them, as they refer to each other, by index plus one (0 is null).
+ */
+final class PatternCodec {
+    static final int VERSION = 1;
+
+    private static final int INVERSE = 1, EAT = 2, INSENSITIVE = 4, REVERSE = 8, BRACKET = 16, UPPER = 32;
+
+    private byte[] buf;
+    private int pos;
+
+    private PatternCodec(byte[] buf) {
+        this.buf = buf;
+    }
+
+    static byte[] encode(Pattern re) {
+        if (re.root == null || re.root0 == null) throw new IllegalStateException("the pattern isn't compiled");
+        PatternCodec w = new PatternCodec(new byte[256]);
+        w.writeByte('R');
+        w.writeByte('X');
+        w.writeInt(VERSION);
+        w.writeString(re.stringRepr);
+        w.writeInt(re.flags);
+        w.writeInt(re.memregs);
+        w.writeInt(re.counters);
+        w.writeInt(re.lookaheads);
+        w.writeInt(re.memoTerms);
+        w.writeInt(re.anchor);
+
+        HashMap<String, Integer> groups = re.namedGroupMap;
+        w.writeInt(groups == null ? -1 : groups.size());
+        if (groups != null) {
+            for (Map.Entry<String, Integer> e : groups.entrySet()) {
+                w.writeString(e.getKey());
+                w.writeInt(e.getValue());
+            }
+        }
+
+        ArrayList<Term> terms = Term.reachable(re.root0, re.root);
+        IdentityHashMap<Term, Integer> termIds = new IdentityHashMap<Term, Integer>();
+        for (Term term : terms) termIds.put(term, termIds.size() + 1);
+        IdentityHashMap<IntBitSet, Integer> bitsetIds = new IdentityHashMap<IntBitSet, Integer>();
+        ArrayList<IntBitSet> bitsets = new ArrayList<IntBitSet>();
+        for (Term term : terms) {
+            collect(term.bitset, bitsetIds, bitsets);
+            if (term.bitset2 != null) {
+                for (IntBitSet block : term.bitset2) collect(block, bitsetIds, bitsets);
+            }
+        }
+        w.writeInt(bitsets.size());
+        for (IntBitSet bits : bitsets) {
+            int[] words = new int[8];
+            for (int b = 0; b < 256; b++) {
+                if (bits.get(b)) words[b >> 5] |= 1 << (b & 31);
+            }
+            for (int word : words) w.writeInt(word);
+        }
+
+        w.writeInt(terms.size());
+        for (Term term : terms) {
+            w.writeInt(term.type);
+            w.writeInt((term.inverse ? INVERSE : 0) | (term.eat ? EAT : 0) | (term.mode_insensitive ? INSENSITIVE : 0)
+                    | (term.mode_reverse ? REVERSE : 0) | (term.mode_bracket ? BRACKET : 0) | (term.mode_upper ? UPPER : 0));
+            w.writeInt(term.c);
+            w.writeChars(term.str);
+            w.writeInt(term.distance);
+            w.writeInt(id(term.bitset, bitsetIds));
+            if (term.bitset2 == null) w.writeInt(-1);
+            else {
+                w.writeInt(term.bitset2.length);
+                for (IntBitSet block : term.bitset2) w.writeInt(id(block, bitsetIds));
+            }
+            w.writeInt(term.weight);
+            w.writeInt(term.memreg);
+            w.writeInt(term.minCount);
+            w.writeInt(term.maxCount);
+            w.writeInt(term.cntreg);
+            w.writeInt(term.lookaheadId);
+            w.writeInt(term.memoId);
+            w.writeInt(id(term.next, termIds));
+            w.writeInt(id(term.failNext, termIds));
+            w.writeInt(id(term.target, termIds));
+        }
+        w.writeInt(termIds.get(re.root));
+        w.writeInt(termIds.get(re.root0));
+
+        byte[] result = new byte[w.pos];
+        System.arraycopy(w.buf, 0, result, 0, w.pos);
+        return result;
+    }
+
+    /**
+     * Loads an encoded pattern into re, replacing what it held, and lowers its terms again.
+     * @throws IllegalArgumentException if the bytes aren't an encoding of this version
+     */
+    static void decode(byte[] bytes, Pattern re) throws IllegalArgumentException {
+        PatternCodec r = new PatternCodec(bytes);
+        if (bytes.length < 3 || r.readByte() != 'R' || r.readByte() != 'X')
+            throw new IllegalArgumentException("not an encoded pattern");
+        int version = r.readInt();
+        if (version != VERSION) throw new IllegalArgumentException("unsupported pattern encoding version: " + version);
+        try {
+            String stringRepr = r.readString();
+            int flags = r.readInt();
+            int memregs = r.readInt(), counters = r.readInt(), lookaheads = r.readInt();
+            int memoTerms = r.readInt(), anchor = r.readInt();
+
+            HashMap<String, Integer> groups = null;
+            int n = r.readCount();
+            if (n >= 0) {
+                groups = new HashMap<String, Integer>();
+                for (int i = 0; i < n; i++) groups.put(r.readString(), r.readInt());
+            }
+
+            IntBitSet[] bitsets = new IntBitSet[r.readCount()];
+            for (int i = 0; i < bitsets.length; i++) {
+                int[] words = new int[8];
+                for (int k = 0; k < 8; k++) words[k] = r.readInt();
+                bitsets[i] = new IntBitSet(words);
+            }
+
+            Term[] terms = new Term[r.readCount()];
+            for (int i = 0; i < terms.length; i++) terms[i] = new Term();
+            for (Term term : terms) {
+                term.type = r.readInt();
+                int bits = r.readInt();
+                term.inverse = (bits & INVERSE) != 0;
+                term.eat = (bits & EAT) != 0;
+                term.mode_insensitive = (bits & INSENSITIVE) != 0;
+                term.mode_reverse = (bits & REVERSE) != 0;
+                term.mode_bracket = (bits & BRACKET) != 0;
+                term.mode_upper = (bits & UPPER) != 0;
+                term.c = (char) r.readInt();
+                term.str = r.readChars();
+                term.distance = r.readInt();
+                term.bitset = get(bitsets, r.readInt());
+                int blocks = r.readCount();
+                if (blocks >= 0) {
+                    term.bitset2 = new IntBitSet[blocks];
+                    for (int b = 0; b < blocks; b++) term.bitset2[b] = get(bitsets, r.readInt());
+                }
+                term.weight = r.readInt();
+                term.memreg = r.readInt();
+                term.minCount = r.readInt();
+                term.maxCount = r.readInt();
+                term.cntreg = r.readInt();
+                term.lookaheadId = r.readInt();
+                term.memoId = r.readInt();
+                term.next = get(terms, r.readInt());
+                term.failNext = get(terms, r.readInt());
+                term.target = get(terms, r.readInt());
+            }
+            Term root = get(terms, r.readInt()), root0 = get(terms, r.readInt());
+            if (root == null || root0 == null || r.pos != bytes.length)
+                throw new IllegalArgumentException("malformed pattern encoding");
+
+            re.stringRepr = stringRepr;
+            re.flags = flags;
+            re.caseless = (flags & REFlags.IGNORE_CASE) != 0;
+            re.memregs = memregs;
+            re.counters = counters;
+            re.lookaheads = lookaheads;
+            re.namedGroupMap = groups;
+            re.root = root;
+            re.root0 = root0;
+            re.memoTerms = memoTerms;
+            re.anchor = anchor;
+            re.required = Optimizer.findRequired(root0);
+            re.program = new Program(root, root0);
+            Term.numberTerms(root0, root);
+            re.prepare();
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("malformed pattern encoding", e);
+        }
+    }
+
+    private static void collect(IntBitSet bits, IdentityHashMap<IntBitSet, Integer> ids, ArrayList<IntBitSet> list) {
+        if (bits == null || ids.containsKey(bits)) return;
+        list.add(bits);
+        ids.put(bits, list.size());
+    }
+
+    private static <T> int id(T value, IdentityHashMap<T, Integer> ids) {
+        return value == null ? 0 : ids.get(value);
+    }
+
+    private static <T> T get(T[] table, int id) {
+        return id == 0 ? null : table[id - 1];
+    }
+
+    private void writeByte(int b) {
+        if (pos == buf.length) {
+            byte[] grown = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, grown, 0, pos);
+            buf = grown;
+        }
+        buf[pos++] = (byte) b;
+    }
+
+    private int readByte() {
+        return buf[pos++] & 0xff;
+    }
+
+    private void writeInt(int v) {
+        v = (v << 1) ^ (v >> 31);
+        while ((v & ~0x7f) != 0) {
+            writeByte(v & 0x7f | 0x80);
+            v >>>= 7;
+        }
+        writeByte(v);
+    }
+
+    private int readInt() {
+        int v = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = readByte();
+            v |= (b & 0x7f) << shift;
+            if (b < 0x80) break;
+            if (shift > 28) throw new IllegalArgumentException("malformed pattern encoding");
+        }
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    /**
+     * Reads the length of what follows, or -1 for null; each element takes a byte at least, so a length that runs past
+     * the end can't be right, and is rejected before anything is allocated for it.
+     */
+    private int readCount() {
+        int n = readInt();
+        if (n < -1 || n > buf.length - pos) throw new IllegalArgumentException("malformed pattern encoding");
+        return n;
+    }
+
+    private void writeChars(char[] chars) {
+        if (chars == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(chars.length);
+        for (char c : chars) writeInt(c);
+    }
+
+    private char[] readChars() {
+        int n = readCount();
+        if (n < 0) return null;
+        char[] chars = new char[n];
+        for (int i = 0; i < n; i++) chars[i] = (char) readInt();
+        return chars;
+    }
+
+    private void writeString(String s) {
+        writeChars(s == null ? null : s.toCharArray());
+    }
+
+    private String readString() {
+        char[] chars = readChars();
+        return chars == null ? null : new String(chars);
+    }
+}
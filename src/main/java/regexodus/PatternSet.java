@@ -0,0 +1,289 @@
+/**
+ * Copyright (c) 2001, Sergey A. Samokhodkin
+ * All rights reserved.
+ * <br>
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * <br>
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * - Redistributions in binary form
+ * must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of jregex nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific prior
+ * written permission.
+ * <br>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version 1.2_01
+ */
+
+package regexodus;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+
+/**
+ * A fixed group of Patterns that are all searched for in a text at once, answering which of them match it.
+ * The patterns that the automaton-based engines can run are joined into one DFA, which goes over the text a single
+ * time for all of them, instead of each Pattern making its own pass; the patterns that need backtracking (those with
+ * backreferences, lookarounds and the like) are then searched one at a time as usual.
+ * <br>
+ * A pattern that can't match without one of a few literals, like "(?i)free (money|cash)" that needs "free " or
+ * "login\\.\\w+\\.php" that needs "login.", is indexed by those literals instead. All the literals of the set
+ * are looked for in one pass, and only the patterns whose literals are in the text are searched; with many
+ * thousands of patterns, that rules most of them out without running them.
+ * <pre>
+ * PatternSet rules=new PatternSet(Pattern.compile("[Aa][ae]"), Pattern.compile("(\\w)\\1\\1"), Pattern.compile("q$"));
+ * rules.findAny("Aaron");        //true
+ * rules.find("Aaron Iraq");      //{0, 2}
+ * rules.matches("aaa");          //{1}
+ * </pre>
+ * Once built, a PatternSet can be shared by any number of threads, like the Patterns in it; the Matchers that
+ * {@link #matchers(CharSequence)} returns, positioned on the first match of each pattern that matches, belong to the
+ * thread that asked for them, as any Matcher does.
+ *
+ * @see Pattern
+ */
+public class PatternSet {
+    private final Pattern[] patterns;
+
+    //the automaton over the joined programs, which are numbered by the index of their pattern; null if there's none,
+    //and the indices of the patterns it runs
+    private final DFA dfa;
+    private final int[] joined;
+
+    //the scanner for the literals of the indexed patterns, null if there's none, and the patterns with each literal
+    private final AhoCorasick atoms;
+    private final int[][] atomPatterns;
+
+    //the indices of the patterns that are left to the backtracking matcher
+    private final int[] others;
+
+    /**
+     * Groups the given patterns; the indices that the searches return are the positions of the patterns here.
+     *
+     * @param patterns the patterns to search for; the array isn't kept
+     */
+    public PatternSet(Pattern... patterns) {
+        this.patterns = patterns.clone();
+        NFA[] programs = new NFA[patterns.length];
+        boolean[] indexed = new boolean[patterns.length];
+        //the distinct literals, numbered in the order they are first found, and the patterns that have each
+        HashMap<String, Integer> literals = new HashMap<String, Integer>();
+        ArrayList<char[]> atoms = new ArrayList<char[]>();
+        ArrayList<ArrayList<Integer>> owners = new ArrayList<ArrayList<Integer>>();
+        for (int k = 0; k < patterns.length; k++) {
+            if (patterns[k] == null) throw new NullPointerException("pattern " + k + " is null");
+            ArrayList<char[]> found = Optimizer.findAtoms(patterns[k].root0);
+            if (found == null) {
+                programs[k] = patterns[k].nfa;
+                continue;
+            }
+            indexed[k] = true;
+            for (char[] chars : found) {
+                String key = new String(chars);
+                Integer id = literals.get(key);
+                if (id == null) {
+                    literals.put(key, id = atoms.size());
+                    atoms.add(chars);
+                    owners.add(new ArrayList<Integer>());
+                }
+                ArrayList<Integer> owner = owners.get(id);
+                if (owner.isEmpty() || owner.get(owner.size() - 1) != k) owner.add(k);
+            }
+        }
+        this.atoms = atoms.isEmpty() ? null : new AhoCorasick(atoms, false);
+        atomPatterns = new int[owners.size()][];
+        for (int a = 0; a < atomPatterns.length; a++) {
+            ArrayList<Integer> owner = owners.get(a);
+            int[] ks = atomPatterns[a] = new int[owner.size()];
+            for (int j = 0; j < ks.length; j++) {
+                ks[j] = owner.get(j);
+            }
+        }
+        NFA union = NFA.union(programs);
+        dfa = union == null ? null : new DFA(union);
+        int n = 0, m = 0;
+        int[] others = new int[patterns.length], joined = new int[patterns.length];
+        for (int k = 0; k < patterns.length; k++) {
+            if (programs[k] != null) joined[m++] = k;
+            else if (!indexed[k]) others[n++] = k;
+        }
+        this.others = new int[n];
+        System.arraycopy(others, 0, this.others, 0, n);
+        this.joined = new int[m];
+        System.arraycopy(joined, 0, this.joined, 0, m);
+    }
+
+    /**
+     * Groups the given patterns, in the order the collection iterates over them.
+     *
+     * @param patterns the patterns to search for
+     */
+    public PatternSet(Collection<Pattern> patterns) {
+        this(patterns.toArray(new Pattern[patterns.size()]));
+    }
+
+    /**
+     * @return how many patterns are in this set
+     */
+    public int size() {
+        return patterns.length;
+    }
+
+    /**
+     * @param index the position of a pattern in this set
+     * @return the pattern at index
+     */
+    public Pattern getPattern(int index) {
+        return patterns[index];
+    }
+
+    /**
+     * Tells which patterns occur somewhere in text, as Matcher.find() would.
+     *
+     * @param text the text to search
+     * @return the indices of the patterns that are found in text, in ascending order
+     */
+    public int[] find(CharSequence text) {
+        return indices(search(chars(text), false, false));
+    }
+
+    /**
+     * Tells which patterns match all of text, as Matcher.matches() would.
+     *
+     * @param text the text to match
+     * @return the indices of the patterns that match text, in ascending order
+     */
+    public int[] matches(CharSequence text) {
+        return indices(search(chars(text), true, false));
+    }
+
+    /**
+     * Tells whether any pattern occurs somewhere in text; this can stop at the first pattern found, so it's faster
+     * than checking if {@link #find(CharSequence)} returns an empty array.
+     *
+     * @param text the text to search
+     * @return true if some pattern is found in text
+     */
+    public boolean findAny(CharSequence text) {
+        return search(chars(text), false, true) != null;
+    }
+
+    /**
+     * Finds where the patterns occur in text.
+     *
+     * @param text the text to search
+     * @return an array as long as this set, with a Matcher that has found the first match of the pattern at the
+     * same index, or null where the pattern isn't found; the Matchers can go on to the next matches with find()
+     */
+    public Matcher[] matchers(CharSequence text) {
+        boolean[] found = search(chars(text), false, false);
+        Matcher[] matchers = new Matcher[patterns.length];
+        if (found == null) return matchers;
+        for (int k = 0; k < patterns.length; k++) {
+            if (!found[k]) continue;
+            Matcher m = patterns[k].matcher(text);
+            if (m.find()) matchers[k] = m;
+        }
+        return matchers;
+    }
+
+    private static char[] chars(CharSequence text) {
+        if (text instanceof String) return ((String) text).toCharArray();
+        int len = text.length();
+        char[] data = new char[len];
+        for (int i = 0; i < len; i++) {
+            data[i] = text.charAt(i);
+        }
+        return data;
+    }
+
+    /**
+     * @param whole if a pattern has to match the whole text
+     * @param first if the search may stop at the first pattern that matches
+     * @return which patterns match, by index, or null if none does
+     */
+    private boolean[] search(char[] data, boolean whole, boolean first) {
+        boolean[] found = new boolean[patterns.length];
+        boolean any = false;
+        if (dfa != null) {
+            int result = dfa.scan(data, 0, 0, data.length, whole, whole, found, first);
+            if (result == DFA.GAVE_UP) {
+                //the joined automaton grew too large for this text, so each pattern makes its own pass
+                for (int k : joined) {
+                    if (!found[k] && matches(k, data, whole)) {
+                        found[k] = true;
+                        if (first) return found;
+                    }
+                    any |= found[k];
+                }
+            } else any = result == DFA.MATCH;
+            if (any && first) return found;
+        }
+        if (atoms != null) {
+            boolean[] seen = new boolean[atomPatterns.length];
+            atoms.findAll(data, 0, data.length, true, seen);
+            //a pattern with several literals in the text is only searched once
+            boolean[] tried = new boolean[patterns.length];
+            for (int a = 0; a < seen.length; a++) {
+                if (!seen[a]) continue;
+                for (int k : atomPatterns[a]) {
+                    if (tried[k]) continue;
+                    tried[k] = true;
+                    if (matches(k, data, whole)) {
+                        found[k] = any = true;
+                        if (first) return found;
+                    }
+                }
+            }
+        }
+        for (int k : others) {
+            if (matches(k, data, whole)) {
+                found[k] = any = true;
+                if (first) return found;
+            }
+        }
+        return any ? found : null;
+    }
+
+    private boolean matches(int k, char[] data, boolean whole) {
+        Matcher m = patterns[k].matcher(data, 0, data.length);
+        return whole ? m.matches() : m.find();
+    }
+
+    private static int[] indices(boolean[] found) {
+        if (found == null) return new int[0];
+        int n = 0;
+        for (boolean f : found) {
+            if (f) n++;
+        }
+        int[] indices = new int[n];
+        n = 0;
+        for (int k = 0; k < found.length; k++) {
+            if (found[k]) indices[n++] = k;
+        }
+        return indices;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("PatternSet[");
+        for (int k = 0; k < patterns.length; k++) {
+            if (k > 0) sb.append(", ");
+            sb.append(patterns[k]);
+        }
+        return sb.append(']').toString();
+    }
+}
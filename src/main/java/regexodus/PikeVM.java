@@ -0,0 +1,208 @@
+/**
+ * Copyright (c) 2001, Sergey A. Samokhodkin
+ * All rights reserved.
+ * <br>
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * <br>
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * - Redistributions in binary form
+ * must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of jregex nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific prior
+ * written permission.
+ * <br>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version 1.2_01
+ */
+
+package regexodus;
+
+import java.util.Arrays;
+
+/**
+ * Runs an {@link NFA} program as a Pike VM: all the threads advance over the target together, one char at a time,
+ * so the time taken is linear in the length of the target whatever the pattern looks like.
+ * The threads are kept in priority order and the first one to reach the end wins, which gives the same match
+ * and the same groups as the backtracking search would.
+ * <br>
+ * A PikeVM holds the working memory of one Matcher, so it mustn't be shared between threads.
+ */
+class PikeVM {
+    private final NFA nfa;
+
+    //slot 0 holds the start of the thread's match, slots 2*k and 2*k+1 the bounds of the group k
+    private final int slots;
+
+    //the threads at the current and the next position, in priority order, with their slots
+    private int[] cpcs, npcs;
+    private int[] ccaps, ncaps;
+    private int ccount, ncount;
+
+    //the generation of the list each pc was last added to
+    private final int[] marks;
+    private int generation;
+
+    //the closure stack; a negative entry restores the slot -1-entry to the value kept beside it
+    private int[] stack, saved;
+
+    private final int[] caps;
+
+    /**
+     * The slots of the last match; match[0] is its start.
+     */
+    final int[] match;
+
+    /**
+     * The end of the last match.
+     */
+    int matchEnd;
+
+    PikeVM(NFA nfa) {
+        this.nfa = nfa;
+        int length = nfa.length;
+        slots = Math.max(2, nfa.groups * 2);
+        cpcs = new int[length];
+        npcs = new int[length];
+        ccaps = new int[length * slots];
+        ncaps = new int[length * slots];
+        marks = new int[length];
+        stack = new int[16];
+        saved = new int[16];
+        caps = new int[slots];
+        match = new int[slots];
+    }
+
+    /**
+     * Looks for the leftmost-first match starting at or after from (only at from if anchorStart is set).
+     *
+     * @return true if a match is found; its bounds are then in match[] and matchEnd
+     */
+    boolean search(char[] data, int offset, int from, int end, boolean anchorStart, boolean matchEnd) {
+        if (from > end) return false;
+        NFA nfa = this.nfa;
+        int[] op = nfa.op, next = nfa.next;
+        int slots = this.slots;
+        boolean found = false;
+
+        ccount = 0;
+        generation++;
+        Arrays.fill(caps, -1);
+        caps[0] = from;
+        add(data, offset, end, nfa.start, from, true);
+
+        for (int i = from; ccount > 0 || !(found || anchorStart); i++) {
+            generation++;
+            ncount = 0;
+            int[] cpcs = this.cpcs, ccaps = this.ccaps;
+            for (int t = 0; t < ccount; t++) {
+                int pc = cpcs[t];
+                if (op[pc] == NFA.MATCH) {
+                    if (matchEnd && i != end) continue;
+                    System.arraycopy(ccaps, t * slots, match, 0, slots);
+                    this.matchEnd = i;
+                    found = true;
+                    break; //the threads of lower priority are cut off
+                }
+                if (i < end && nfa.accepts(pc, data[i])) {
+                    System.arraycopy(ccaps, t * slots, caps, 0, slots);
+                    add(data, offset, end, next[pc], i + 1, false);
+                }
+            }
+            if (i >= end) break;
+            if (!found && !anchorStart) {
+                //a new thread starting at the next position comes last
+                Arrays.fill(caps, -1);
+                caps[0] = i + 1;
+                add(data, offset, end, nfa.start, i + 1, false);
+            }
+            swap();
+        }
+        return found;
+    }
+
+    private void swap() {
+        int[] t = cpcs;
+        cpcs = npcs;
+        npcs = t;
+        t = ccaps;
+        ccaps = ncaps;
+        ncaps = t;
+        ccount = ncount;
+    }
+
+    //follows the non-consuming instructions from pc at the position i and adds the threads it arrives at
+    //to the current list (if current is set) or to the next one; caps holds the thread's slots
+    private void add(char[] data, int offset, int end, int pc, int i, boolean current) {
+        NFA nfa = this.nfa;
+        int[] op = nfa.op, next = nfa.next, alt = nfa.alt;
+        int[] marks = this.marks, caps = this.caps;
+        int generation = this.generation;
+        int[] pcs = current ? cpcs : npcs;
+        int[] list = current ? ccaps : ncaps;
+        int count = current ? ccount : ncount;
+        int ctx = -1;
+        int c = i < end ? data[i] : -1;
+        int sp = 0;
+        push(sp++, pc, 0);
+        while (sp > 0) {
+            int entry = stack[--sp];
+            if (entry < 0) {
+                caps[-1 - entry] = saved[sp];
+                continue;
+            }
+            pc = entry;
+            if (marks[pc] == generation) continue;
+            marks[pc] = generation;
+            switch (op[pc]) {
+                case NFA.JUMP:
+                    push(sp++, next[pc], 0);
+                    break;
+                case NFA.SPLIT:
+                    push(sp++, alt[pc], 0);
+                    push(sp++, next[pc], 0);
+                    break;
+                case NFA.SAVE: {
+                    int slot = alt[pc];
+                    push(sp++, -1 - slot, caps[slot]);
+                    caps[slot] = i;
+                    push(sp++, next[pc], 0);
+                    break;
+                }
+                case NFA.ASSERT:
+                    if (ctx < 0) ctx = nfa.context(data, i, offset);
+                    if (nfa.assertion(pc, ctx, c)) push(sp++, next[pc], 0);
+                    break;
+                case NFA.END_EOL:
+                    if (NFA.endOfLine(data, i, end)) push(sp++, next[pc], 0);
+                    break;
+                default:
+                    pcs[count] = pc;
+                    System.arraycopy(caps, 0, list, count * slots, slots);
+                    count++;
+            }
+        }
+        if (current) ccount = count;
+        else ncount = count;
+    }
+
+    private void push(int sp, int entry, int value) {
+        if (sp == stack.length) {
+            stack = Arrays.copyOf(stack, sp << 1);
+            saved = Arrays.copyOf(saved, sp << 1);
+        }
+        stack[sp] = entry;
+        saved[sp] = value;
+    }
+}
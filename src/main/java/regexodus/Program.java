@@ -0,0 +1,469 @@
+/**
+ * Copyright (c) 2001, Sergey A. Samokhodkin
+ * All rights reserved.
+ * <br>
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * <br>
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * - Redistributions in binary form
+ * must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of jregex nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific prior
+ * written permission.
+ * <br>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version 1.2_01
+ */
+
+
+package regexodus;
+
+import regexodus.ds.IntBitSet;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+/**
+ * The Term graph of a Pattern lowered to the flat program that the backtracking matcher runs.
+ * Each term becomes a record of {@link #WIDTH} ints in one array, with the term type first; the terms it links to
+ * become the indices of their records, -1 standing for no term, which completes a match. Char classes and literals
+ * go to side tables that the records index, so the matcher follows array indices instead of object references.
+ * <br>
+ * The layout of a record is given by the OP...FLAGS offsets; ARG holds whatever single value the term type needs.
+ */
+class Program {
+    static final int OP = 0;
+    static final int NEXT = 1;
+    static final int FAIL = 2;      //failNext: the alternative to push, or where a failed test goes on
+    static final int TARGET = 3;    //the atom that is repeated or looked for
+    static final int ARG = 4;       //the char, group, counter, lookaround, memo id or side table index
+    static final int MIN = 5;
+    static final int MAX = 6;
+    static final int DISTANCE = 6;  //for the types that look ahead or behind by a fixed width; none of them has a MAX
+    static final int FLAGS = 7;
+    static final int WIDTH = 8;
+
+    //flag bits
+    static final int INVERSE = 1;
+    static final int EAT = 2;
+    static final int INSENSITIVE = 4;  //a backreference that ignores case, or compares in upper case
+    static final int REVERSE = 8;
+    static final int BRACKET = 16;
+
+    final int[] code;
+    final IntBitSet[] bitsets;
+    final IntBitSet[][] bitsets2;
+    final char[][] strings;
+
+    //the optimized root and the raw one
+    final int root, root0;
+
+    //the anchors an anchoring search falls back to after its first try, see Matcher.search()
+    final int startAnchor, lastMatchAnchor;
+
+    Program(Term root, Term root0) {
+        IdentityHashMap<Term, Integer> pcs = new IdentityHashMap<Term, Integer>();
+        ArrayList<Term> terms = new ArrayList<Term>();
+        startAnchor = index(new Term(Term.START), pcs, terms);
+        lastMatchAnchor = index(new Term(Term.LAST_MATCH_END), pcs, terms);
+        this.root = index(root, pcs, terms);
+        this.root0 = index(root0, pcs, terms);
+        for (int k = 0; k < terms.size(); k++) {
+            Term term = terms.get(k);
+            index(term.next, pcs, terms);
+            index(term.failNext, pcs, terms);
+            index(term.target, pcs, terms);
+        }
+        IdentityHashMap<Object, Integer> tables = new IdentityHashMap<Object, Integer>();
+        ArrayList<IntBitSet> bitsets = new ArrayList<IntBitSet>();
+        ArrayList<IntBitSet[]> bitsets2 = new ArrayList<IntBitSet[]>();
+        ArrayList<char[]> strings = new ArrayList<char[]>();
+        int[] code = new int[terms.size() * WIDTH];
+        for (int k = 0, pc = 0; k < terms.size(); k++, pc += WIDTH) {
+            Term term = terms.get(k);
+            int type = term.type;
+            code[pc + OP] = type;
+            code[pc + NEXT] = index(term.next, pcs, terms);
+            code[pc + FAIL] = index(term.failNext, pcs, terms);
+            code[pc + TARGET] = index(term.target, pcs, terms);
+            switch (type) {
+                case Term.CHAR:
+                    code[pc + ARG] = term.c;
+                    break;
+                case Term.STRING: case Term.STRING_I:
+                    code[pc + ARG] = entry(term.str, tables, strings);
+                    break;
+                case Term.BITSET: case Term.BOUNDARY: case Term.DIRECTION:
+                    code[pc + ARG] = entry(term.bitset, tables, bitsets);
+                    break;
+                case Term.BITSET2: case Term.UBOUNDARY: case Term.UDIRECTION:
+                    code[pc + ARG] = entry(term.bitset2, tables, bitsets2);
+                    break;
+                case Term.REG: case Term.REG_I: case Term.REPEAT_REG_MIN_INF: case Term.REPEAT_REG_MIN_MAX:
+                case Term.GROUP_IN: case Term.GROUP_OUT: case Term.MEMREG_CONDITION:
+                    code[pc + ARG] = term.memreg;
+                    break;
+                case Term.CRSTORE_CRINC: case Term.CR_SET_0: case Term.CR_LT: case Term.CR_GT_EQ:
+                    code[pc + ARG] = term.cntreg;
+                    break;
+                case Term.PLOOKAHEAD_IN: case Term.PLOOKAHEAD_OUT: case Term.NLOOKAHEAD_IN: case Term.NLOOKAHEAD_OUT:
+                case Term.PLOOKBEHIND_IN: case Term.PLOOKBEHIND_OUT: case Term.NLOOKBEHIND_IN: case Term.NLOOKBEHIND_OUT:
+                case Term.INDEPENDENT_IN: case Term.INDEPENDENT_OUT:
+                case Term.LOOKAHEAD_CONDITION_IN: case Term.LOOKAHEAD_CONDITION_OUT:
+                case Term.LOOKBEHIND_CONDITION_IN: case Term.LOOKBEHIND_CONDITION_OUT:
+                    code[pc + ARG] = term.lookaheadId;
+                    break;
+                case Term.REPEAT_0_INF: case Term.REPEAT_MIN_INF: case Term.REPEAT_MIN_MAX:
+                case Term.BACKTRACK_0: case Term.BACKTRACK_MIN:
+                case Term.BRANCH: case Term.BRANCH_STORE_CNT: case Term.BRANCH_STORE_CNT_AUX1:
+                    code[pc + ARG] = term.memoId;
+                    break;
+            }
+            code[pc + MIN] = term.minCount;
+            switch (type) {
+                case Term.FIND: case Term.FINDREG: case Term.BACKTRACK_FIND_MIN: case Term.BACKTRACK_FINDREG_MIN:
+                case Term.PLOOKBEHIND_IN: case Term.NLOOKBEHIND_IN: case Term.LOOKBEHIND_CONDITION_IN:
+                    code[pc + DISTANCE] = term.distance;
+                    break;
+                default:
+                    code[pc + MAX] = term.maxCount;
+            }
+            code[pc + FLAGS] = (term.inverse ? INVERSE : 0) | (term.eat ? EAT : 0)
+                    | (term.mode_insensitive || term.mode_upper ? INSENSITIVE : 0)
+                    | (term.mode_reverse ? REVERSE : 0) | (term.mode_bracket ? BRACKET : 0);
+        }
+        this.code = code;
+        this.bitsets = bitsets.toArray(new IntBitSet[bitsets.size()]);
+        this.bitsets2 = bitsets2.toArray(new IntBitSet[bitsets2.size()][]);
+        this.strings = strings.toArray(new char[strings.size()][]);
+    }
+
+    //the index of the record of a term, which is added to the list if it's new; -1 for no term
+    private static int index(Term term, IdentityHashMap<Term, Integer> pcs, ArrayList<Term> terms) {
+        if (term == null) return -1;
+        Integer pc = pcs.get(term);
+        if (pc == null) {
+            pcs.put(term, pc = terms.size() * WIDTH);
+            terms.add(term);
+        }
+        return pc;
+    }
+
+    //the index of a char class or literal in its side table, which it is added to if it's new
+    private static <T> int entry(T value, IdentityHashMap<Object, Integer> tables, ArrayList<T> table) {
+        if (value == null) return -1;
+        Integer k = tables.get(value);
+        if (k == null) {
+            tables.put(value, k = table.size());
+            table.add(value);
+        }
+        return k;
+    }
+
+    boolean compareRegions(char[] arr, int off1, int off2, int len, int out, int pc) {
+        if((code[pc + FLAGS] & REVERSE) != 0)
+        {
+            return compareRegionsReverse(arr, off1, off2, len, out, (code[pc + FLAGS] & INSENSITIVE) != 0, (code[pc + FLAGS] & BRACKET) != 0);
+        }
+        else
+        {
+            return compareRegionsForward(arr, off1, off2, len, out, (code[pc + FLAGS] & INSENSITIVE) != 0, (code[pc + FLAGS] & BRACKET) != 0);
+        }
+    }
+    private static boolean compareRegionsForward(char[] arr, int off1, int off2, int len, int out,
+                                                 boolean insensitive, boolean bracket) {
+        int p1 = off1 + len - 1;
+        int p2 = off2 + len - 1;
+        if (p1 >= out || p2 >= out) {
+            return false;
+        }
+        char a, b;
+        for (int c = len; c > 0; c--, p1--, p2--) {
+            a = arr[p1];
+            b = arr[p2];
+            if(insensitive)
+            {
+                a = Category.caseFold(a);
+                b = Category.caseFold(b);
+            }
+            if(bracket)
+            {
+                b = Category.matchBracket(b);
+            }
+            if (a != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+    private static boolean compareRegionsReverse(char[] arr, int off1, int off2, int len, int out,
+                                                 boolean insensitive, boolean bracket) {
+        int p1 = off1 + len - 1;
+        int p2 = off2;
+        if (p1 >= out || p2 >= out) {
+            return false;
+        }
+        char a, b;
+        for (int c = len; c > 0 && p2 < out; c--, p1--, p2++) {
+            a = arr[p1];
+            b = arr[p2];
+            if(insensitive)
+            {
+                a = Category.caseFold(a);
+                b = Category.caseFold(b);
+            }
+            if(bracket)
+            {
+                b = Category.matchBracket(b);
+            }
+            if (a != b) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //repeat while matches
+    int repeat(char[] data, int off, int out, int pc) {
+        switch (code[pc]) {
+            case Term.CHAR: {
+                char c = (char) code[pc + ARG];
+                int i = off;
+                while (i < out) {
+                    if (data[i] != c) break;
+                    i++;
+                }
+                return i - off;
+            }
+            case Term.ANY_CHAR: {
+                return out - off;
+            }
+            case Term.ANY_CHAR_NE: {
+                int i = off;
+                char c;
+                while (i < out) {
+                    if ((c = data[i]) == '\r' || c == '\n') break;
+                    i++;
+                }
+                return i - off;
+            }
+            case Term.BITSET: {
+                IntBitSet arr = bitsets[code[pc + ARG]];
+                int i = off;
+                char c;
+                if ((code[pc + FLAGS] & INVERSE) != 0) while (i < out) {
+                    c = data[i];
+                    if (c <= 255 && arr.get(c)) break;
+                    else i++;
+                }
+                else while (i < out) {
+                    c = data[i];
+                    if (c <= 255 && arr.get(c)) i++;
+                    else break;
+                }
+                return i - off;
+            }
+            case Term.BITSET2: {
+                int i = off;
+                IntBitSet[] bitset2 = bitsets2[code[pc + ARG]];
+                char c;
+                if ((code[pc + FLAGS] & INVERSE) != 0) while (i < out) {
+                    c = data[i];
+                    IntBitSet arr = bitset2[c >> 8];
+                    if (arr != null && arr.get(c & 0xff)) break;
+                    else i++;
+                }
+                else while (i < out) {
+                    c = data[i];
+                    IntBitSet arr = bitset2[c >> 8];
+                    if (arr != null && arr.get(c & 0xff)) i++;
+                    else break;
+                }
+                return i - off;
+            }
+        }
+        throw new Error("this kind of term can't be quantified:" + code[pc]);
+    }
+
+    //repeat while doesn't match
+    int find(char[] data, int off, int out, int pc) {
+        if (off >= out) return -1;
+        switch (code[pc]) {
+            case Term.STRING:
+            case Term.STRING_I: {
+                char[] str = strings[code[pc + ARG]];
+                boolean folded = code[pc] == Term.STRING_I;
+                char c = str[0];
+                int i = off, last = out - str.length;
+                for (; i <= last; i++) {
+                    if ((folded ? Category.caseFold(data[i]) : data[i]) == c && startsWith(data, i, out, str, folded))
+                        return i - off;
+                }
+                return out - off;
+            }
+            case Term.CHAR: {
+                char c = (char) code[pc + ARG];
+                int i = off;
+                while (i < out) {
+                    if (data[i] == c) break;
+                    i++;
+                }
+                return i - off;
+            }
+            case Term.BITSET: {
+                IntBitSet arr = bitsets[code[pc + ARG]];
+                int i = off;
+                char c;
+                if ((code[pc + FLAGS] & INVERSE) == 0) while (i < out) {
+                    c = data[i];
+                    if (c <= 255 && arr.get(c)) break;
+                    else i++;
+                }
+                else while (i < out) {
+                    c = data[i];
+                    if (c <= 255 && arr.get(c)) i++;
+                    else break;
+                }
+                return i - off;
+            }
+            case Term.BITSET2: {
+                int i = off;
+                IntBitSet[] bitset2 = bitsets2[code[pc + ARG]];
+                char c;
+                if ((code[pc + FLAGS] & INVERSE) == 0) while (i < out) {
+                    c = data[i];
+                    IntBitSet arr = bitset2[c >> 8];
+                    if (arr != null && arr.get(c & 0xff)) break;
+                    else i++;
+                }
+                else while (i < out) {
+                    c = data[i];
+                    IntBitSet arr = bitset2[c >> 8];
+                    if (arr != null && arr.get(c & 0xff)) i++;
+                    else break;
+                }
+                return i - off;
+            }
+        }
+        throw new IllegalArgumentException("can't seek this kind of term:" + code[pc]);
+    }
+
+
+    //does the literal str occur at i?
+    private static boolean startsWith(char[] data, int i, int out, char[] str, boolean folded) {
+        int len = str.length;
+        if (i + len > out) return false;
+        if (folded) {
+            for (int k = 0; k < len; k++) {
+                if (Category.caseFold(data[i + k]) != str[k]) return false;
+            }
+        } else {
+            for (int k = 0; k < len; k++) {
+                if (data[i + k] != str[k]) return false;
+            }
+        }
+        return true;
+    }
+
+    int findReg(char[] data, int off, int regOff, int regLen, int pc, int out) {
+        if (off >= out) return -1;
+        int i = off;
+        if (code[pc] == Term.REG || code[pc] == Term.REG_I) {
+            while (i < out) {
+                if (compareRegions(data, i, regOff, regLen, out, pc)) return i - off;
+                i++;
+            }
+        } else throw new IllegalArgumentException("wrong findReg() target:" + code[pc]);
+        return -1;
+    }
+
+    int findBack(char[] data, int off, int maxCount, int pc, int out) {
+        switch (code[pc]) {
+            case Term.STRING:
+            case Term.STRING_I: {
+                char[] str = strings[code[pc + ARG]];
+                int i = off;
+                int iMin = off - maxCount;
+                for (; ; ) {
+                    if (startsWith(data, --i, out, str, code[pc] == Term.STRING_I)) break;
+                    if (i <= iMin) return -1;
+                }
+                return off - i;
+            }
+            case Term.CHAR: {
+                char c = (char) code[pc + ARG];
+                int i = off;
+                int iMin = off - maxCount;
+                for (; ; ) {
+                    if (data[--i] == c) break;
+                    if (i <= iMin) return -1;
+                }
+                return off - i;
+            }
+            case Term.BITSET: {
+                IntBitSet arr = bitsets[code[pc + ARG]];
+                int i = off;
+                char c;
+                int iMin = off - maxCount;
+                if ((code[pc + FLAGS] & INVERSE) == 0) for (; ; ) {
+                    c = data[--i];
+                    if (c <= 255 && arr.get(c)) break;
+                    if (i <= iMin) return -1;
+                }
+                else for (; ; ) {
+                    c = data[--i];
+                    if (c > 255 || !arr.get(c)) break;
+                    if (i <= iMin) return -1;
+                }
+                return off - i;
+            }
+            case Term.BITSET2: {
+                IntBitSet[] bitset2 = bitsets2[code[pc + ARG]];
+                int i = off;
+                char c;
+                int iMin = off - maxCount;
+                if ((code[pc + FLAGS] & INVERSE) == 0) for (; ; ) {
+                    c = data[--i];
+                    IntBitSet arr = bitset2[c >> 8];
+                    if (arr != null && arr.get(c & 0xff)) break;
+                    if (i <= iMin) return -1;
+                }
+                else for (; ; ) {
+                    c = data[--i];
+                    IntBitSet arr = bitset2[c >> 8];
+                    if (arr == null || !arr.get(c & 0xff)) break;
+                    if (i <= iMin) return -1;
+                }
+                return off - i;
+            }
+        }
+        throw new IllegalArgumentException("can't find this kind of term:" + code[pc]);
+    }
+
+    int findBackReg(char[] data, int off, int regOff, int regLen, int maxCount, int pc, int out) {
+        //assume that the cases when regLen==0 or maxCount==0 are handled by caller
+        int i = off;
+        int iMin = off - maxCount;
+        if (code[pc] == Term.REG || code[pc] == Term.REG_I) {
+         /*@since 1.2*/
+            for (; ; ) {
+                i--;
+                if (compareRegions(data, i, regOff, regLen, out, pc)) break;
+                if (i <= iMin) return -1;
+            }
+        } else throw new IllegalArgumentException("wrong findBackReg() target type :" + code[pc]);
+        return off - i;
+    }
+}
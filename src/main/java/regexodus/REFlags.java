@@ -110,5 +110,30 @@ public interface REFlags {
      */
     int XML_SCHEMA = 1 << 5;
 
+    /**
+     * Makes the matcher run in time linear in the length of the text, simulating all the ways the pattern
+     * could match at once instead of trying them one by one. The matches and groups found are the same.
+     * Backreferences, lookarounds, independent groups and counted group repetitions can't be matched that way;
+     * patterns that use them are still matched by backtracking.
+     * <br>
+     * Patterns with nested or alternated repetitions, like "(a|aa)+", use the linear matcher even without this flag.
+     * <br>
+     * There is no Perl notation for it.
+     */
+    int LINEAR = 1 << 7;
+
+    /**
+     * Makes the backtracking search remember which alternatives and repetitions already failed at each position of
+     * the text, so it never tries them there again; this bounds the search by the length of the pattern times the
+     * length of the text, instead of letting it grow exponentially. The memory is a bit per alternative or
+     * repetition and char of the text, and is only used while it stays below a few megabytes.
+     * Patterns with backreferences, lookarounds or counted group repetitions are searched without it.
+     * <br>
+     * Patterns with nested or alternated repetitions, like "(a|aa)+", use it even without this flag, whenever the
+     * linear matcher can't take a search.
+     * <br>
+     * There is no Perl notation for it.
+     */
+    int MEMOIZE = 1 << 8;
 
 }
\ No newline at end of file
@@ -379,13 +379,8 @@ public class Replacer implements Serializable {
             String m = match.group(0);
             if(m == null)
                 return;
-            for (Map.Entry<String, String> kv : dictionary.entrySet()) {
-                if (kv.getKey().equals(m)) {
-                    dest.append(kv.getValue());
-                    return;
-                }
-            }
-            dest.append(m);
+            String value = dictionary.get(m);
+            dest.append(value != null || dictionary.containsKey(m) ? value : m);
         }
     }
 
@@ -0,0 +1,246 @@
+/**
+ * Copyright (c) 2001, Sergey A. Samokhodkin
+ * All rights reserved.
+ * <br>
+ * Redistribution and use in source and binary forms, with or without modification,
+ * are permitted provided that the following conditions are met:
+ * <br>
+ * - Redistributions of source code must retain the above copyright notice,
+ * this list of conditions and the following disclaimer.
+ * - Redistributions in binary form
+ * must reproduce the above copyright notice, this list of conditions and the following
+ * disclaimer in the documentation and/or other materials provided with the distribution.
+ * - Neither the name of jregex nor the names of its contributors may be used
+ * to endorse or promote products derived from this software without specific prior
+ * written permission.
+ * <br>
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY
+ * EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES
+ * OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED.
+ * IN NO EVENT SHALL THE REGENTS OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT,
+ * INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS;
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY
+ * WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * @version 1.2_01
+ */
+
+package regexodus;
+
+/**
+ * A bit-parallel (Shift-And over the Glushkov automaton) scanner for patterns of at most 64 char positions
+ * with no assertions and a bounded match length, like "[Tt]..?[Tt]" or "ab|c.{1,4}d".
+ * All the threads of the automaton are kept in one long, one bit per position, and each char of the target
+ * costs a few table lookups. The scan finds where the earliest match ends; as a match can't be longer than
+ * maxLength, the search can start right before that instead of trying every position on the way.
+ * <br>
+ * The tables are shared by all the Matchers of a Pattern; the char masks are filled lazily, a block of 256 chars
+ * at a time.
+ */
+class ShiftAnd {
+    private static final int MAX_POSITIONS = 64;
+
+    private final NFA nfa;
+
+    //the consuming instruction of each position
+    private final int[] pcs;
+
+    //the positions that may come first and the ones after which the pattern may end
+    private final long first, last;
+
+    //the positions that may follow a set of positions, looked up a byte of the set at a time
+    private final long[][] follow;
+
+    //per char, the positions that accept it; indexed by the high byte, then the low one. A block is added by
+    //replacing the whole array, so a scan on another thread that reads the array sees the blocks filled in
+    private volatile long[][] masks = new long[256][];
+
+    /**
+     * The length of the longest match.
+     */
+    final int maxLength;
+
+    private ShiftAnd(NFA nfa, int[] pcs, long first, long last, long[][] follow, int maxLength) {
+        this.nfa = nfa;
+        this.pcs = pcs;
+        this.first = first;
+        this.last = last;
+        this.follow = follow;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @return the scanner for the program, or null if it has too many positions, assertions, can match
+     * an empty string or can match strings of any length
+     */
+    static ShiftAnd compile(NFA nfa) {
+        int length = nfa.length;
+        int[] position = new int[length];
+        int[] pcs = new int[MAX_POSITIONS];
+        int count = 0;
+        for (int pc = 0; pc < length; pc++) {
+            position[pc] = -1;
+            if (nfa.op[pc] < NFA.SPLIT) {
+                if (count == MAX_POSITIONS) return null;
+                position[pc] = count;
+                pcs[count++] = pc;
+            }
+        }
+        if (count == 0) return null;
+        int[] stack = new int[length];
+        int[] marks = new int[length];
+        long[] closure = new long[2];
+
+        if (!close(nfa, nfa.start, position, stack, marks, 1, closure) || closure[1] != 0) return null;
+        long first = closure[0];
+        long last = 0;
+        long[] follows = new long[count];
+        for (int p = 0; p < count; p++) {
+            if (!close(nfa, nfa.next[pcs[p]], position, stack, marks, p + 2, closure)) return null;
+            follows[p] = closure[0];
+            if (closure[1] != 0) last |= 1L << p;
+        }
+
+        int maxLength = longest(first, follows, last, count);
+        if (maxLength < 0) return null;
+
+        int bytes = (count + 7) >> 3;
+        long[][] follow = new long[bytes][256];
+        for (int k = 0; k < bytes; k++) {
+            long[] table = follow[k];
+            for (int b = 1; b < 256; b++) {
+                int low = Integer.numberOfTrailingZeros(b);
+                int p = (k << 3) + low;
+                table[b] = table[b & (b - 1)] | (p < count ? follows[p] : 0);
+            }
+        }
+        int[] used = new int[count];
+        System.arraycopy(pcs, 0, used, 0, count);
+        return new ShiftAnd(nfa, used, first, last, follow, maxLength);
+    }
+
+    //collects into closure[0] the positions reached from pc without consuming, and into closure[1]
+    //whether the end of the pattern is; false if an assertion is in the way
+    private static boolean close(NFA nfa, int pc, int[] position, int[] stack, int[] marks, int mark, long[] closure) {
+        int[] op = nfa.op, next = nfa.next, alt = nfa.alt;
+        long found = 0, end = 0;
+        int sp = 0;
+        stack[sp++] = pc;
+        while (sp > 0) {
+            pc = stack[--sp];
+            if (marks[pc] == mark) continue;
+            marks[pc] = mark;
+            switch (op[pc]) {
+                case NFA.SPLIT:
+                    stack[sp++] = alt[pc];
+                    stack[sp++] = next[pc];
+                    break;
+                case NFA.JUMP:
+                case NFA.SAVE:
+                    stack[sp++] = next[pc];
+                    break;
+                case NFA.MATCH:
+                    end = 1;
+                    break;
+                case NFA.ASSERT:
+                case NFA.END_EOL:
+                    return false;
+                default:
+                    found |= 1L << position[pc];
+            }
+        }
+        closure[0] = found;
+        closure[1] = end;
+        return true;
+    }
+
+    //the most chars a match can take, or -1 if the positions make a loop
+    private static int longest(long first, long[] follows, long last, int count) {
+        int[] depth = new int[count];   //longest path from the position to the end, counting the position
+        int[] state = new int[count];   //0 unvisited, 1 on the path, 2 done
+        int[] path = new int[count];
+        long[] pending = new long[count];
+        int best = 0;
+        for (long roots = first; roots != 0; roots &= roots - 1) {
+            int root = Long.numberOfTrailingZeros(roots);
+            if (state[root] == 0) {
+                int top = 0;
+                path[top] = root;
+                pending[top] = follows[root];
+                state[root] = 1;
+                while (top >= 0) {
+                    int p = path[top];
+                    if (pending[top] != 0) {
+                        int q = Long.numberOfTrailingZeros(pending[top]);
+                        pending[top] &= pending[top] - 1;
+                        if (state[q] == 1) return -1;
+                        if (state[q] == 0) {
+                            path[++top] = q;
+                            pending[top] = follows[q];
+                            state[q] = 1;
+                        }
+                        continue;
+                    }
+                    int d = (last & (1L << p)) != 0 ? 1 : 0;
+                    for (long f = follows[p]; f != 0; f &= f - 1) {
+                        int q = Long.numberOfTrailingZeros(f);
+                        if (depth[q] + 1 > d) d = depth[q] + 1;
+                    }
+                    depth[p] = d;
+                    state[p] = 2;
+                    top--;
+                }
+            }
+            if (depth[root] > best) best = depth[root];
+        }
+        return best;
+    }
+
+    /**
+     * Scans data from from to end for the earliest end of a match that starts at from or after it.
+     *
+     * @return the end of the match, or -1 if there's none
+     */
+    int scan(char[] data, int from, int end) {
+        long first = this.first, last = this.last;
+        long[][] follow = this.follow, masks = this.masks;
+        int bytes = follow.length;
+        long d = 0;
+        for (int i = from; i < end; i++) {
+            char c = data[i];
+            long[] block = masks[c >> 8];
+            if (block == null) {
+                block = block(c >> 8);
+                masks = this.masks;
+            }
+            long f = first;
+            for (int k = 0; d != 0 && k < bytes; k++, d >>>= 8) {
+                f |= follow[k][(int) d & 255];
+            }
+            d = f & block[c & 255];
+            if ((d & last) != 0) return i + 1;
+        }
+        return -1;
+    }
+
+    private synchronized long[] block(int high) {
+        long[] block = masks[high];
+        if (block != null) return block;
+        block = new long[256];
+        int[] pcs = this.pcs;
+        for (int low = 0; low < 256; low++) {
+            char c = (char) (high << 8 | low);
+            long m = 0;
+            for (int p = 0; p < pcs.length; p++) {
+                if (nfa.accepts(pcs[p], c)) m |= 1L << p;
+            }
+            block[low] = m;
+        }
+        long[][] grown = masks.clone();
+        grown[high] = block;
+        masks = grown;
+        return block;
+    }
+}
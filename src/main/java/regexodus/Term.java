@@ -35,6 +35,7 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 
 public class Term implements REFlags, Serializable {
     private static final long serialVersionUID = 2528136757932720807L;
@@ -83,6 +84,10 @@ public class Term implements REFlags, Serializable {
     static final int LITERAL_START = 60;
     static final int LITERAL_END = 61;
 
+    //runtime types made from chains of CHAR terms, see mergeLiterals()
+    static final int STRING = 62;
+    static final int STRING_I = 63;
+
     /*optimization-nontransparent types*/
     static final int BRANCH = 32;
     static final int BRANCH_STORE_CNT = 33;
@@ -152,6 +157,9 @@ public class Term implements REFlags, Serializable {
     // used with type=CHAR
     char c;
 
+    // used with type=STRING,STRING_I; already folded for STRING_I
+    char[] str;
+
     // used with type=FIND
     int distance;
     boolean eat;
@@ -189,6 +197,9 @@ public class Term implements REFlags, Serializable {
     // lookahead group id;
     int lookaheadId;
 
+    // the index of the term in the failures the matcher remembers, or -1; see REFlags.MEMOIZE
+    int memoId = -1;
+
     // **** COMPILE HELPERS ****
 
     Term prev;
@@ -204,14 +215,10 @@ public class Term implements REFlags, Serializable {
     //protected  boolean newBranch=false,closed=false;
     //protected  boolean newBranch=false;
 
-    //for debugging
-    private static int instances;
+    //for debugging; set by numberTerms() once the pattern is built, so compiling keeps no shared counter
     private int instanceNum;
 
     Term() {
-        //for debugging
-        instanceNum = instances;
-        instances++;
         in = out = this;
     }
 
@@ -220,8 +227,20 @@ public class Term implements REFlags, Serializable {
         this.type = type;
     }
 
+    /**
+     * A copy of the char test or assertion of this term without its links, for the automata and scanners that are kept
+     * after the term graph is let go of; see Pattern.prepare().
+     */
+    Term detached() {
+        Term t = new Term(type);
+        t.inverse = inverse;
+        t.c = c;
+        t.bitset = bitset;
+        t.bitset2 = bitset2;
+        return t;
+    }
+
     static void makeTree(String s, int[] flags, Pattern re) throws PatternSyntaxException {
-        instances = 0;
         char[] data = s.toCharArray();
         makeTree(data, 0, data.length, flags, re);
     }
@@ -244,22 +263,190 @@ public class Term implements REFlags, Serializable {
         //throw out opening bracket
         Term first = term.next;
 
+        mergeLiterals(first, re.caseless);
+        if (re.caseless) foldCases(first);
+
         // Optimisation:
         Term optimized = first;
-        Optimizer opt = Optimizer.find(first);
+        Optimizer opt = Optimizer.findFirst(first);
         if (opt != null) optimized = opt.makeFirst(first);
+        else {
+            Term find = Optimizer.makeFirstChars(first);
+            if (find != null) optimized = find;
+        }
 
         for (TermIterator i : iterators) {
             i.optimize();
         }
 
         re.root = optimized;
-        re.root = first;
         re.root0 = first;
+        re.memoTerms = numberMemoTerms(optimized, first);
+        re.anchor = anchorOf(first, 0);
+        re.required = Optimizer.findRequired(first);
+        re.program = new Program(optimized, first);
         re.memregs = vars[MEMREG_COUNT];
         re.counters = vars[CNTREG_COUNT];
         re.lookaheads = vars[LOOKAHEAD_COUNT];
         re.namedGroupMap = groupNames;
+        numberTerms(first, optimized);
+    }
+
+    /**
+     * Numbers the terms of a pattern for toString(), in the order they are reached from the unoptimized root and then
+     * from the optimized one; the numbers only depend on the pattern, so every thread compiling it prints the same.
+     */
+    static void numberTerms(Term root0, Term root) {
+        int n = 0;
+        for (Term term : reachable(root0, root)) term.instanceNum = n++;
+    }
+
+    /**
+     * Lists every term that can be reached from either root, each once, in depth-first order from root0 and then from
+     * root.
+     */
+    static ArrayList<Term> reachable(Term root0, Term root) {
+        IdentityHashMap<Term, Boolean> seen = new IdentityHashMap<Term, Boolean>();
+        ArrayList<Term> pending = new ArrayList<Term>(), terms = new ArrayList<Term>();
+        pending.add(root);
+        pending.add(root0);
+        while (!pending.isEmpty()) {
+            Term term = pending.remove(pending.size() - 1);
+            if (seen.put(term, true) != null) continue;
+            terms.add(term);
+            Term[] links = {term.target, term.failNext, term.next};
+            for (Term link : links) {
+                if (link != null && !seen.containsKey(link)) pending.add(link);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Replaces each chain of two or more CHAR terms, that nothing jumps into the middle of, by a single STRING term
+     * (or STRING_I if the pattern is caseless), so the matcher compares the whole literal at once.
+     */
+    private static void mergeLiterals(Term first, boolean caseless) {
+        IdentityHashMap<Term, Integer> refs = countRefs(first);
+        //the iterated terms have to stay single chars
+        IdentityHashMap<Term, Boolean> targets = new IdentityHashMap<Term, Boolean>();
+        for (Term term : refs.keySet()) {
+            if (term.target != null) targets.put(term.target, true);
+        }
+        //the terms that continue a chain
+        IdentityHashMap<Term, Boolean> inner = new IdentityHashMap<Term, Boolean>();
+        for (Term term : refs.keySet()) {
+            if (term.type == CHAR && !targets.containsKey(term) && continuesChain(term.next, refs, targets))
+                inner.put(term.next, true);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Term term : refs.keySet()) {
+            if (term.type != CHAR || targets.containsKey(term) || inner.containsKey(term)) continue;
+            sb.setLength(0);
+            sb.append(term.c);
+            Term last = term;
+            while (continuesChain(last.next, refs, targets)) {
+                last = last.next;
+                sb.append(last.c);
+            }
+            if (last == term) continue;
+            term.type = caseless ? STRING_I : STRING;
+            term.str = sb.toString().toCharArray();
+            term.next = last.next;
+        }
+    }
+
+    /**
+     * Makes the single-char terms of a caseless pattern accept every case of their chars, see
+     * {@link CharacterClass#foldCases(Term)}; only STRING_I still folds the input when matching.
+     */
+    private static void foldCases(Term first) {
+        for (Term term : countRefs(first).keySet()) {
+            CharacterClass.foldCases(term);
+        }
+    }
+
+    /**
+     * Numbers the BRANCH, REPEAT and BACKTRACK terms, which the matcher remembers the failures of when memoizing.
+     * Whether such a term fails at a position can only depend on the position when nothing in the pattern looks at
+     * the groups, the counters or a lookaround's start.
+     * @return how many terms were numbered; 0 if the pattern can't be memoized
+     */
+    private static int numberMemoTerms(Term root, Term root0) {
+        IdentityHashMap<Term, Integer> all = countRefs(root0);
+        all.putAll(countRefs(root));
+        for (Term term : all.keySet()) {
+            switch (term.type) {
+                case CHAR: case BITSET: case BITSET2: case ANY_CHAR: case ANY_CHAR_NE: case STRING: case STRING_I:
+                case FIND: case SUCCESS: case BOUNDARY: case DIRECTION: case UBOUNDARY: case UDIRECTION:
+                case GROUP_IN: case GROUP_OUT: case VOID: case START: case END: case END_EOL: case LINE_START:
+                case LINE_END: case LAST_MATCH_END: case BRANCH: case REPEAT_0_INF: case REPEAT_MIN_INF:
+                case REPEAT_MIN_MAX: case BACKTRACK_0: case BACKTRACK_MIN: case BACKTRACK_FIND_MIN:
+                    break;
+                default:
+                    return 0;
+            }
+        }
+        int n = 0;
+        for (Term term : all.keySet()) {
+            switch (term.type) {
+                case BRANCH: case REPEAT_0_INF: case REPEAT_MIN_INF: case REPEAT_MIN_MAX: case BACKTRACK_0:
+                case BACKTRACK_MIN:
+                    term.memoId = n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Finds the anchor that every match has to start at: START, LINE_START or LAST_MATCH_END, when each way into the
+     * pattern passes it before any other test, as in "^abc", "(\Gx)y" or "^a|^b".
+     * @return the type of the anchor, or -1 if a match may start anywhere
+     */
+    private static int anchorOf(Term term, int depth) {
+        while (term != null && depth++ < 32) {
+            switch (term.type) {
+                case GROUP_IN:
+                case VOID:
+                    term = term.next;
+                    continue;
+                case START:
+                case LINE_START:
+                case LAST_MATCH_END:
+                    return term.type;
+                case BRANCH: {
+                    int anchor = anchorOf(term.next, depth);
+                    return anchor == anchorOf(term.failNext, depth) ? anchor : -1;
+                }
+                default:
+                    return -1;
+            }
+        }
+        return -1;
+    }
+
+    //the number of references to each term reachable from first
+    private static IdentityHashMap<Term, Integer> countRefs(Term first) {
+        IdentityHashMap<Term, Integer> refs = new IdentityHashMap<Term, Integer>();
+        ArrayList<Term> pending = new ArrayList<Term>();
+        pending.add(first);
+        refs.put(first, 1);
+        while (!pending.isEmpty()) {
+            Term term = pending.remove(pending.size() - 1);
+            Term[] links = {term.next, term.failNext, term.target};
+            for (Term link : links) {
+                if (link == null) continue;
+                Integer n = refs.get(link);
+                refs.put(link, n == null ? 1 : n + 1);
+                if (n == null) pending.add(link);
+            }
+        }
+        return refs;
+    }
+
+    private static boolean continuesChain(Term term, IdentityHashMap<Term, Integer> refs,
+                                          IdentityHashMap<Term, Boolean> targets) {
+        return term != null && term.type == CHAR && refs.get(term) == 1 && !targets.containsKey(term);
     }
 
     private static Term makeTree(Pretokenizer t, char[] data, int[] vars,
@@ -1309,6 +1496,8 @@ public class Term implements REFlags, Serializable {
         switch (t)
         {
             case CHAR: return "CHAR";
+            case STRING: return "STRING";
+            case STRING_I: return "STRING_I";
             case BITSET: return "BITSET";
             case BITSET2: return "BITSET2";
             case ANY_CHAR: return "ANY_CHAR";
@@ -1387,6 +1576,13 @@ public class Term implements REFlags, Serializable {
                 b.append(CharacterClass.stringValue(c));
                 b.append(" , ");
                 break;
+            case STRING:
+            case STRING_I:
+                b.append('"');
+                for (char ch : str) b.append(CharacterClass.stringValue(ch));
+                b.append('"');
+                b.append(" , ");
+                break;
             case ANY_CHAR:
                 b.append("dotall, ");
                 break;
@@ -1725,6 +1921,7 @@ public class Term implements REFlags, Serializable {
         if (type != term.type) return false;
         if (inverse != term.inverse) return false;
         if (c != term.c) return false;
+        if (!Arrays.equals(str, term.str)) return false;
         if (distance != term.distance) return false;
         if (eat != term.eat) return false;
         if (weight != term.weight) return false;
@@ -1745,6 +1942,7 @@ public class Term implements REFlags, Serializable {
         result = 31 * result + type;
         result = 31 * result + (inverse ? 1 : 0);
         result = 31 * result + (int) c;
+        result = 31 * result + Arrays.hashCode(str);
         result = 31 * result + distance;
         result = 31 * result + (eat ? 1 : 0);
         result = 31 * result + (bitset != null ? bitset.hashCode() : 0);
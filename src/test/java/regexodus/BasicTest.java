@@ -4,6 +4,11 @@ import org.junit.Assert;
 import org.junit.Test;
 import regexodus.ds.IntBitSet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -529,4 +534,726 @@ public class BasicTest {
             }
         }
     }
+
+    private static String allMatches(Matcher m)
+    {
+        StringBuilder sb = new StringBuilder();
+        while (m.find())
+            sb.append(m.start()).append('-').append(m.end()).append(' ');
+        return sb.toString();
+    }
+
+    private static String allMatches(java.util.regex.Matcher m)
+    {
+        StringBuilder sb = new StringBuilder();
+        while (m.find())
+            sb.append(m.start()).append('-').append(m.end()).append(' ');
+        return sb.toString();
+    }
+
+    private static String allGroups(Matcher m)
+    {
+        StringBuilder sb = new StringBuilder();
+        while (m.find()) {
+            for (int g = 0; g <= m.groupCount(); g++)
+                sb.append(m.start(g)).append('-').append(m.end(g)).append(g < m.groupCount() ? ',' : ' ');
+        }
+        return sb.toString();
+    }
+
+    //regexodus finds the same matches as java.util.regex, and the same ignoring case, also in the upper-cased targets
+    private static void assertSameAsJava(String regex, String... targets)
+    {
+        Pattern p = Pattern.compile(regex), pi = Pattern.compile(regex, "i");
+        java.util.regex.Pattern jp = java.util.regex.Pattern.compile(regex),
+                jpi = java.util.regex.Pattern.compile(regex, java.util.regex.Pattern.CASE_INSENSITIVE
+                        | java.util.regex.Pattern.UNICODE_CASE);
+        for (String t : targets) {
+            String upper = t.toUpperCase();
+            Assert.assertEquals(regex + " on " + t, allMatches(jp.matcher(t)), allMatches(p.matcher(t)));
+            Assert.assertEquals(regex + " (ignoring case) on " + t, allMatches(jpi.matcher(t)), allMatches(pi.matcher(t)));
+            Assert.assertEquals(regex + " (ignoring case) on " + upper, allMatches(jpi.matcher(upper)),
+                    allMatches(pi.matcher(upper)));
+        }
+    }
+
+    @Test
+    public void testFirstTermSearch()
+    {
+        // each of these starts with (or reaches through transparent terms) an atom the optimizer seeks with Find
+        String[] targets = {"xxabcABCabc", "zzxxxyXXY", "aa 12 b3", "  x foo bar endEND", "hello World 42! 7b",
+                "abbc ac abc", "\u0416\u0451z \u0436\u0436Z", ""};
+        for (String regex : new String[]{"abc", "(ab)c", "x{2,}y", "\\d\\d", ".b", "A+b", "[a-c]+d", "\\bfoo",
+                "(\\d)\\1", "\\s*x", ".*?end", "[^a]+b", "[\u0436\u0451]+z", "ab|cd", "^ab", ".*[^ a-z]"}) {
+            assertSameAsJava(regex, targets);
+        }
+        Assert.assertEquals(Term.FIND, Pattern.compile("abc").root.type);
+        Assert.assertNotSame(Pattern.compile("abc").root, Pattern.compile("abc").root0);
+    }
+
+    //the pattern without its automata and scanners, so that only the backtracking search runs it
+    private static Pattern backtracking(String regex, int flags)
+    {
+        Pattern p = new Pattern(regex, flags);
+        p.dfa = null;
+        p.linear = null;
+        p.shiftAnd = null;
+        p.literals = null;
+        return p;
+    }
+
+    //both patterns find the same matches with the same groups in each target, and agree on whether it matches whole
+    private static void assertSameMatches(Pattern expected, Pattern actual, String... targets)
+    {
+        for (String t : targets) {
+            Assert.assertEquals(actual + " on " + t, allGroups(expected.matcher(t)), allGroups(actual.matcher(t)));
+            Assert.assertEquals(actual + " matching " + t, expected.matcher(t).matches(), actual.matcher(t).matches());
+        }
+    }
+
+    //the set finds in each text the same patterns that are found one by one
+    private static void assertSameFinds(PatternSet set, String... texts)
+    {
+        for (String t : texts) {
+            ArrayList<Integer> expected = new ArrayList<Integer>(), actual = new ArrayList<Integer>();
+            for (int k = 0; k < set.size(); k++) {
+                if (set.getPattern(k).matcher(t).find()) expected.add(k);
+            }
+            for (int k : set.find(t)) actual.add(k);
+            Assert.assertEquals("set on " + t, expected, actual);
+        }
+    }
+
+    @Test
+    public void testDFA()
+    {
+        String[] targets = {"", "Hello", "cat\ndog\r\n", "12 345 6789", "aab abc aaabc", "x\r\n", "abba", "1a 2 34 5b6",
+                "aaaaaaaaaaaaaaaaaaaaaaaaaa"};
+        for (String regex : new String[]{"cat|dog|bird", "[A-Z][a-z]+", "\\d{2,4}", "^\\w+$", "(?:ab|a)+c", "\\bfo+\\b",
+                "x$", "(a|b)*?c", "\\Bb.", "[^\\s]+\\z", "(a|aa)+b", "\\d[a-z]?\\d"}) {
+            for (int flags : new int[]{REFlags.DEFAULT, REFlags.DEFAULT | REFlags.IGNORE_CASE,
+                    REFlags.DEFAULT | REFlags.MULTILINE, REFlags.DEFAULT | REFlags.DOTALL}) {
+                Pattern p = new Pattern(regex, flags);
+                Assert.assertNotNull(regex, p.dfa);
+                assertSameMatches(backtracking(regex, flags), p, targets);
+            }
+        }
+        Assert.assertNull(Pattern.compile("(a)\\1").dfa);
+        // the DFA tells where the first match to end does, and how long a match can be
+        Assert.assertEquals(6, Pattern.compile("x|a[bc]cd").dfa.scan("zzabcdx".toCharArray(), 0, 0, 7, false, false));
+        Assert.assertEquals(4, Pattern.compile("x|a[bc]cd").dfa.maxLength);
+        Assert.assertEquals(-1, Pattern.compile("ab*c").dfa.maxLength);
+
+        // a scan that flushes the state cache too often gives up by itself, later scans still use the DFA
+        Pattern thrash = Pattern.compile("[ab]*a[ab]{13}c");
+        java.util.Random random = new java.util.Random(7);
+        char[] ab = new char[60000];
+        for (int i = 0; i < ab.length; i++) {
+            ab[i] = random.nextBoolean() ? 'a' : 'b';
+        }
+        Assert.assertEquals(DFA.GAVE_UP, thrash.dfa.scan(ab, 0, 0, ab.length, false, false));
+        Assert.assertEquals(DFA.NO_MATCH, thrash.dfa.scan("abab".toCharArray(), 0, 0, 4, false, false));
+        Assert.assertTrue(thrash.matcher("babaaaaaaaaaaaaaac").find());
+    }
+
+    @Test
+    public void testLinear()
+    {
+        String[] targets = {"", "hello world", "abcd abd acd", "aaab aab b", "aaaaaaaac", "12-34 5-\n6-", "foobar foo\r\n"};
+        for (String regex : new String[]{"(\\w+)\\s(\\w+)", "(a|ab)(c|bcd)(d*)", "(a+)(b)?", "(?:(a)|b)+c", "x*",
+                "(\\d+)-(\\d*)$", "\\b(\\w)(\\w*)\\b", "((?:ab|a)+?)(c)", "([^\\n]*)$", "(foo|foobar)(bar)?"}) {
+            for (int flags : new int[]{REFlags.DEFAULT, REFlags.DEFAULT | REFlags.IGNORE_CASE,
+                    REFlags.DEFAULT | REFlags.MULTILINE, REFlags.DEFAULT | REFlags.DOTALL}) {
+                Pattern p = new Pattern(regex, flags | REFlags.LINEAR);
+                Assert.assertNotNull(regex, p.linear);
+                assertSameMatches(backtracking(regex, flags), p, targets);
+            }
+        }
+        // nested repetitions are matched in linear time without asking for it
+        Pattern nested = Pattern.compile("(?:a|aa)+b|a");
+        Assert.assertNotNull(nested.linear);
+        Matcher n = nested.matcher("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+        Assert.assertTrue(n.find());
+        Assert.assertEquals(1, n.end());
+        Assert.assertNull(Pattern.compile("(a)\\1", REFlags.LINEAR).linear);
+    }
+
+    @Test
+    public void testShiftAnd()
+    {
+        String[] targets = {"", "Tot tart TENT", "phone kick cocoa", "nfog nffg NFxxg", "abc cxyzd cd", "12-34 5-67 89-0",
+                "yz xyaz xxyabcz xyabcdz", "a b  c\nd"};
+        for (String regex : new String[]{"[Tt]..?[Tt]", "([Pp][Hh])|[KkFfDdCc].{1,4}[KkCcx]", "[Nn][Ff]..?g",
+                "ab|c.{1,4}d", "(\\d{2})-(\\d{2})", "x?y[a-z]{0,3}z", "\\w\\s\\w"}) {
+            for (int flags : new int[]{REFlags.DEFAULT, REFlags.DEFAULT | REFlags.IGNORE_CASE, REFlags.DEFAULT | REFlags.DOTALL}) {
+                Pattern p = new Pattern(regex, flags);
+                Assert.assertNotNull(regex, p.shiftAnd);
+                assertSameMatches(backtracking(regex, flags), p, targets);
+            }
+        }
+        Assert.assertEquals(6, Pattern.compile("ab|c.{1,4}d").shiftAnd.maxLength);
+        // unbounded, empty or anchored matches are left to the other searches
+        Assert.assertNull(Pattern.compile("a+b").shiftAnd);
+        Assert.assertNull(Pattern.compile("a?").shiftAnd);
+        Assert.assertNull(Pattern.compile("^ab").shiftAnd);
+    }
+
+    @Test
+    public void testLiteralString()
+    {
+        String[] targets = {"", "ERROR: disk WARN: net", "xabcd abcd cd", "hello world hello", "a.b axb",
+                "XERROR ERRORERROR", "xxfoo foo fooobar", "error: Warn: ErRoR"};
+        for (String regex : new String[]{"ERROR: ", "ERROR: (\\w+)", "[A-Z]+ERROR", "(?:ERROR|WARN): ", "(?<=ab)cd",
+                "(?<!ab)cd", "hello(?= world)", "\\Qa.b\\E", ".*ERROR", "x*foo", "foo|foobar", "(fo)o+bar"}) {
+            assertSameAsJava(regex, targets);
+        }
+        Pattern p = Pattern.compile("ERROR: ");
+        Assert.assertEquals(Term.STRING, p.root0.type);
+        Assert.assertEquals(Term.STRING_I, Pattern.compile("ERROR: ", "i").root0.type);
+        // backtracking \d+ seeks the whole literal
+        Term back = Pattern.compile("\\d+ERROR").root0.failNext;
+        Assert.assertEquals(Term.BACKTRACK_FIND_MIN, back.type);
+        Assert.assertEquals(Term.STRING, back.target.type);
+        // a text ending inside the literal is still a prefix of a match
+        Assert.assertTrue(p.matcher("ERR").matchesPrefix());
+        Assert.assertFalse(p.matcher("ERX").matchesPrefix());
+    }
+
+    @Test
+    public void testCaseTables()
+    {
+        Assert.assertEquals('a', Category.caseFold('A'));
+        Assert.assertEquals('\u0436', Category.caseFold('\u0416'));
+        Assert.assertEquals('\u0416', Category.caseUp('\u0436'));
+        Assert.assertEquals('1', Category.caseFold('1'));
+        Assert.assertEquals('\uFFFF', Category.caseUp('\uFFFF'));
+        char[] all = new char[0x10000], folded = new char[0x10000];
+        for (int i = 0; i < all.length; i++) {
+            all[i] = (char) i;
+        }
+        Category.caseFold(all, 0, folded, 0, all.length);
+        Category.caseFold(all, 0x100, all.length);
+        for (int i = 0; i < all.length; i++) {
+            char c = (char) i;
+            Assert.assertEquals(Category.caseFold(c), folded[i]);
+            Assert.assertEquals(Category.caseDown(c), folded[i]);
+            Assert.assertEquals(i < 0x100 ? c : folded[i], all[i]);
+        }
+    }
+
+    @Test
+    public void testCaseExpansion()
+    {
+        String[] targets = {"", "Cat CAT cAt", "ABCX abcx aBcX", "kK K1 m2 L3", "sSsS", "BaC"};
+        for (String regex : new String[]{"k", "[a-f]+x", "[^a-f]+", "\\bcat\\b", "\\w+", "[K-M]\\d", "a|B|c", "s*S"}) {
+            assertSameAsJava(regex, targets);
+        }
+        // the cases are expanded when compiling, and chars without cases stay plain
+        Term k = Pattern.compile("k", "i").root0;
+        Assert.assertEquals(Term.BITSET2, k.type);
+        Assert.assertTrue(k.bitset2[0].get('k') && k.bitset2[0].get('K'));
+        Assert.assertEquals(Term.CHAR, Pattern.compile("1", "i").root0.type);
+        Term range = Pattern.compile("[^a-f]", "i").root0;
+        Assert.assertTrue(range.inverse);
+        Assert.assertTrue(range.bitset.get('C'));
+    }
+
+    @Test
+    public void testMatchLimits()
+    {
+        // the backreference keeps this exponential pattern on the backtracking search,
+        // and the b lets it past the check for the literal every match needs
+        Pattern p = Pattern.compile("(a+)+b\\1");
+        String many = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaab";
+        Matcher m = p.matcher(many);
+        m.setStepLimit(10000);
+        try {
+            m.find();
+            Assert.fail("the step limit was ignored");
+        } catch (MatchLimitExceededException e) {
+            Assert.assertEquals(10001, e.getSteps());
+        }
+        // the matcher stays usable
+        m.setTarget("xaabaa");
+        Assert.assertTrue(m.find());
+        Assert.assertEquals("aabaa", m.group(0));
+
+        p.setTimeLimit(50);
+        m = p.matcher(many);
+        Assert.assertEquals(50, m.getTimeLimit());
+        try {
+            m.find();
+            Assert.fail("the time limit was ignored");
+        } catch (MatchLimitExceededException e) {
+            Assert.assertTrue(e.getSteps() > 0);
+        }
+        m.setTimeLimit(0);
+        m.setTarget("aab");
+        Assert.assertFalse(m.find());
+    }
+
+    @Test
+    public void testMemoize()
+    {
+        String many = "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa!";
+        for (String regex : new String[]{"\\w*\\w*\\w*\\w*\\w*c", "(a|aa)*c", "(?:a+)+b"}) {
+            Pattern p = new Pattern(regex, REFlags.MEMOIZE);
+            Assert.assertTrue(p.memoTerms > 0);
+            // each memoized term fails at most once per position
+            Matcher m = p.matcher(many);
+            m.setStepLimit(20000);
+            Assert.assertFalse(m.find());
+            assertSameMatches(backtracking(regex, REFlags.DEFAULT), p, "", "aac", "abab", "aaab", "wxyz c", "xaaacb");
+        }
+        // the outcome of a term depends on more than the position when a backreference looks at a group
+        Assert.assertEquals(0, new Pattern("(a+)+b\\1", REFlags.MEMOIZE).memoTerms);
+        Assert.assertEquals(0, new Pattern("\\w*c", REFlags.DEFAULT).memoTerms);
+    }
+    @Test
+    public void testBacktrackStack()
+    {
+        // every a pushes an alternative, far past the initial capacity of the stack
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 5000; i++) sb.append(i % 7 == 0 ? 'b' : 'a');
+        String text = sb.toString();
+        Matcher m = new Pattern("(?:(a)|(b))*c").matcher(text);
+        Assert.assertFalse(m.find());
+        m = new Pattern("(?:(a)|(b))*$").matcher(text);
+        Assert.assertTrue(m.find());
+        Assert.assertEquals(text.length(), m.end());
+        Assert.assertEquals(text.length() - 1, m.start(1));
+        Assert.assertEquals(text.lastIndexOf('b'), m.start(2));
+        // the stack is reused by the next search
+        m.setTarget("aab");
+        Assert.assertTrue(m.find());
+        Assert.assertEquals(1, m.start(1));
+        Assert.assertEquals(2, m.start(2));
+        // a group set inside a failed negative lookahead is rolled back with it
+        m = new Pattern("(?:ab|a)+(?!(b))(?=(a))").matcher(" bb a aabb");
+        Assert.assertTrue(m.find());
+        Assert.assertEquals(6, m.start());
+        Assert.assertFalse(m.isCaptured(1));
+        Assert.assertEquals(7, m.start(2));
+    }
+
+    @Test
+    public void testAnchoredSearch()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 2000; i++) sb.append("foo1\nbar22\r\n");
+        String text = sb.toString();
+        Assert.assertEquals(Term.START, new Pattern("^(\\w+)\\s\\1$").anchor);
+        Assert.assertEquals(Term.START, new Pattern("(?:\\Aa|^b)c").anchor);
+        Assert.assertEquals(Term.LINE_START, new Pattern("^(foo|bar)", REFlags.MULTILINE).anchor);
+        Assert.assertEquals(Term.LAST_MATCH_END, new Pattern("(\\Gx)y").anchor);
+        Assert.assertEquals(-1, new Pattern("^a|b").anchor);
+        // only the start is tried, so a few steps are enough to fail
+        Matcher m = new Pattern("^(\\w+)\\s\\1$").matcher(text);
+        m.setStepLimit(100);
+        Assert.assertFalse(m.find());
+        // only the line starts are tried
+        m = new Pattern("^(?:foo|bar)(\\d)\\1", REFlags.MULTILINE).matcher(text);
+        m.setStepLimit(10000);
+        int count = 0;
+        while (m.find()) {
+            Assert.assertEquals("bar22", m.group(0));
+            count++;
+        }
+        Assert.assertEquals(2000, count);
+        // \G moves along with the matches proceed() reports
+        m = new Pattern("\\G((a)|b){1,3}").matcher("babb");
+        String[] expected = new String[]{"bab", "ba", "b", "abb"};
+        for (String e : expected) {
+            Assert.assertTrue(m.proceed());
+            Assert.assertEquals(e, m.group(0));
+        }
+    }
+
+    @Test
+    public void testFirstCharsSearch()
+    {
+        // no single atom starts each of these, but every match begins with one of a few chars
+        String[] targets = {"", "POST /aa GET /ab PUT /cc", "foo1 bar2 baz3", " \t bar foox", "aab xb b",
+                "abcd cabd ccab", "z xz yyz", "abc bc"};
+        for (String regex : new String[]{"(?:GET|POST|PUT) /(\\w)\\1", "(foo|bar)\\d", "\\s*(foo|bar)", "a*b(x)",
+                "(?=[ab])\\w(a|b)", "(?:ab|c)+d", "(?:x|y)?z", "(?>ab|b)c"}) {
+            Assert.assertEquals(regex, Term.FIND, Pattern.compile(regex).root.type);
+            assertSameAsJava(regex, targets);
+        }
+        // a match may be empty, or may begin with any char
+        Assert.assertNotEquals(Term.FIND, Pattern.compile("(?:a|b)*").root.type);
+        Assert.assertNotEquals(Term.FIND, Pattern.compile("(?:a|.)b").root.type);
+        Assert.assertNotEquals(Term.FIND, Pattern.compile("(?:a|[^b])c").root.type);
+    }
+
+    @Test
+    public void testRequiredLiteral()
+    {
+        String[] targets = {"", "mail joe@ex.com or ann@web.org.com", "x=1; y=22; z=;", "aabaa abab",
+                "xxxfoo barfoo xfoo", "ababcend cend", "abcd xcd", "foofoo barfoo"};
+        for (String regex : new String[]{"[\\w.]+@[\\w.]+\\.com", "(\\w+)=(\\d+);", "(a+)+b\\1", "(?:x{1,3}|ba)foo",
+                "(?:ab|c)*?end", "(?<=ab)cd", "(?!foo)\\w+foo"}) {
+            Assert.assertNotNull(regex, Pattern.compile(regex).required);
+            assertSameAsJava(regex, targets);
+        }
+        Assert.assertEquals(3, Pattern.compile("(?:x{1,3}|ba)foo").required.reach);
+        Assert.assertEquals(-1, Pattern.compile("(\\w+)=(\\d+);").required.reach);
+        // a target without the literal is turned down before the exponential search starts
+        Matcher m = Pattern.compile("(a+)+b\\1").matcher("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa");
+        m.setStepLimit(100);
+        Assert.assertFalse(m.find());
+        // literals a match can go around, or that are only looked behind at, aren't required
+        Assert.assertNull(Pattern.compile("ab|cd").required);
+        Assert.assertNull(Pattern.compile("(?:foo)?x*").required);
+        Assert.assertNull(Pattern.compile("(?<=ab)\\w").required);
+    }
+
+    @Test
+    public void testSuffixLiteral()
+    {
+        String[] targets = {"", "/var/log/app.log /tmp/x.txt", "a.log.log b..log", ".c ab.c abc.c abcd.c",
+                "send\nthe end", "a.b ab.ba ...ba .bb", "/a/b/c.txt.log"};
+        for (String regex : new String[]{"[a-z0-9._]+\\.log", "(\\w+)\\.log", "[^/]*\\.txt", "\\w{3,}\\.c", ".+end",
+                "[ab.]{1,2}\\.b(a|b)"}) {
+            Assert.assertNotNull(regex, Pattern.compile(regex).required.run);
+            assertSameAsJava(regex, targets);
+        }
+        // the run before the literal is read backwards from it, but not past where the search starts
+        Matcher m = Pattern.compile("\\w+\\.log").matcher("one two.log");
+        m.setPosition(5);
+        Assert.assertTrue(m.find());
+        Assert.assertEquals("wo.log", m.group(0));
+        // something other than the run comes before the literal
+        Assert.assertNull(Pattern.compile("(\\w+)-(\\d*)\\.log").required.run);
+        Assert.assertNull(Pattern.compile("x*?end").required.run);
+    }
+
+    @Test
+    public void testProgram()
+    {
+        Pattern p = Pattern.compile("(\\w+)@x([a-z]{2,3})\\.com$");
+        Program prog = p.program;
+        int[] code = prog.code;
+        Assert.assertEquals(0, code.length % Program.WIDTH);
+        // the records follow the terms they were lowered from, and -1 ends the chain as null does
+        Term term = p.root0;
+        int pc = prog.root0;
+        for (; term != null; term = term.next, pc = code[pc + Program.NEXT]) {
+            Assert.assertEquals(term.type, code[pc + Program.OP]);
+            if (term.type == Term.CHAR) Assert.assertEquals(term.c, code[pc + Program.ARG]);
+            if (term.type == Term.STRING) Assert.assertArrayEquals(term.str, prog.strings[code[pc + Program.ARG]]);
+            if (term.type == Term.REPEAT_MIN_MAX) {
+                Assert.assertEquals(3, code[pc + Program.MAX]);
+                Assert.assertEquals(Term.BITSET, code[code[pc + Program.TARGET] + Program.OP]);
+            }
+        }
+        Assert.assertEquals(-1, pc);
+        Assert.assertEquals(Term.START, code[prog.startAnchor + Program.OP]);
+        Assert.assertEquals(-1, code[prog.startAnchor + Program.NEXT]);
+        Matcher m = p.matcher("mail bob@xyz.com");
+        Assert.assertTrue(m.find());
+        Assert.assertEquals("bob", m.group(1));
+        Assert.assertEquals("yz", m.group(2));
+    }
+
+    @Test
+    public void testBytecode()
+    {
+        String text = "Mail bob@xyz.com, or ann@abc.org; colour 42 color\n  1999 Quick\r\naaab";
+        String[] patterns = {"(\\w+)@(\\w+)\\.com", "colou?r", "(\\d+)\\s*(\\w+)?", "\\b[A-Z]\\w*\\b",
+                "(?:ann|bob)@([a-z]{2,3})\\.(com|org)", "a*b$", "(?m)^\\s*\\d+$", "(?i)QUICK", "[^\\w\\s]{1,2}"};
+        for (String regex : patterns) {
+            Pattern interpreted = Pattern.compile(regex), generated = Pattern.compile(regex);
+            Assert.assertTrue(regex, generated.compileToBytecode());
+            assertSameMatches(interpreted, generated, text, "aab", "");
+        }
+        // the alternatives of a match are still there to proceed to
+        Pattern p = Pattern.compile("a+");
+        Assert.assertTrue(p.compileToBytecode());
+        Matcher m = p.matcher("aaa");
+        StringBuilder found = new StringBuilder();
+        while (m.proceed()) found.append(m.group(0)).append(' ');
+        Assert.assertEquals("aaa aa a aa a a ", found.toString());
+        // loops are left to the interpreter
+        Assert.assertFalse(Pattern.compile("(ab)+").compileToBytecode());
+        Assert.assertFalse(Pattern.compile("a*?b").compileToBytecode());
+        Assert.assertTrue(Pattern.compile("a*?b").matcher("xaab").find());
+        // new flags make a new program, and the class generated for the old one is dropped
+        p = new Pattern("abc");
+        Assert.assertTrue(p.compileToBytecode());
+        p.setFlags("i");
+        Assert.assertNull(p.compiled);
+        Assert.assertTrue(p.matcher("xxABC").find());
+        Assert.assertTrue(p.compileToBytecode());
+        Assert.assertTrue(p.matcher("xxABC").find());
+    }
+
+    @Test
+    public void testLiteralAlternation()
+    {
+        // of the keys that start at a position, the first one given wins, even if a later one is longer
+        Replacer table = Replacer.makeTable("ab", "1", "abc", "2", "b", "3", "bc", "4");
+        Assert.assertNotNull(table.getPattern().literals);
+        Assert.assertEquals("1c3cx", table.replace("abcbcx"));
+        for (String regex : new String[]{"cat|category|dog", "ab|abc|b|bc", "(?:cat|category)", "dog|DOG|cat"}) {
+            Pattern p = Pattern.compile(regex);
+            Assert.assertNotNull(regex, p.literals);
+            assertSameMatches(backtracking(regex, REFlags.DEFAULT), p, "", "a category of dogs", "category", "abcbcx",
+                    "CatDog DOG", "bc");
+        }
+        Pattern p = Pattern.compile("cat|category|dog");
+        Assert.assertTrue(p.matcher("category").matches());
+        // an atomic group keeps the first literal, so nothing else is tried to reach the end
+        Assert.assertFalse(Pattern.compile("(?>cat|category)").matcher("category").matches());
+        // the other branches are still there to proceed to
+        Matcher m = p.matcher("category");
+        StringBuilder found = new StringBuilder();
+        while (m.proceed()) found.append(m.group()).append(' ');
+        Assert.assertEquals("cat category ", found.toString());
+        // anything but literals goes to the backtracking matcher
+        Assert.assertNull(Pattern.compile("cat|dog\\w").literals);
+        Assert.assertNull(Pattern.compile("(cat|dog)").literals);
+        Assert.assertNull(Pattern.compile("(?>cat|dog)s").literals);
+    }
+
+    @Test
+    public void testPatternSet()
+    {
+        PatternSet set = new PatternSet(Pattern.compile("[Aa][ae]"), Pattern.compile("(\\w)\\1\\1"),
+                Pattern.compile("q$"), Pattern.compile("\\bir"), Pattern.compile("a+", REFlags.IGNORE_CASE));
+        Assert.assertEquals(5, set.size());
+        Assert.assertArrayEquals(new int[]{0, 2, 4}, set.find("Aaron Iraq"));
+        Assert.assertArrayEquals(new int[]{3, 4}, set.find("A sir, ir"));
+        Assert.assertArrayEquals(new int[]{1}, set.find("zzz"));
+        Assert.assertArrayEquals(new int[0], set.find("moo"));
+        Assert.assertArrayEquals(new int[]{1, 4}, set.matches("aaa"));
+        Assert.assertArrayEquals(new int[]{4}, set.matches("AaA"));
+        Assert.assertTrue(set.findAny("Iraq"));
+        Assert.assertFalse(set.findAny("moo"));
+        Matcher[] matchers = set.matchers("sir, eeerie");
+        Assert.assertNull(matchers[0]);
+        Assert.assertEquals("eee", matchers[1].group());
+        Assert.assertNull(matchers[2]);
+        Assert.assertNull(matchers[3]);
+        Assert.assertNull(matchers[4]);
+        Assert.assertEquals(5, matchers[1].start());
+        assertSameFinds(set, "Aaron Iraq", "sir, eeerie", "iraq", "");
+    }
+
+    @Test
+    public void testLiteralIndex()
+    {
+        Assert.assertEquals(1, Optimizer.findAtoms(Pattern.compile("login\\.\\w+\\.php").root0).size());
+        Assert.assertEquals("free ", new String(Optimizer.findAtoms(Pattern.compile("FREE (money|cash)", "i").root0).get(0)));
+        Assert.assertEquals(3, Optimizer.findAtoms(Pattern.compile("\\d+(?:ab|cd\\s|ef)").root0).size());
+        // a match may go without a literal of two chars, or only has one in a lookbehind
+        Assert.assertNull(Optimizer.findAtoms(Pattern.compile("ab|c").root0));
+        Assert.assertNull(Optimizer.findAtoms(Pattern.compile("(?:ab)*c").root0));
+        Assert.assertNull(Optimizer.findAtoms(Pattern.compile("(?<=ab)c").root0));
+        String[] words = {"alpha", "beta", "gamma", "delta", "epsilon"};
+        ArrayList<Pattern> rules = new ArrayList<Pattern>();
+        for (String word : words) {
+            rules.add(Pattern.compile("\\b" + word + "\\s+\\d+"));
+            rules.add(Pattern.compile("(\\w)\\1" + word, "i"));
+            rules.add(Pattern.compile(word.substring(0, 3) + "|" + word.substring(2) + "$"));
+        }
+        PatternSet set = new PatternSet(rules);
+        assertSameFinds(set, "alpha 12, BeTTbeta", "ddDELTA and epsilon", "lta gam", "nothing", "");
+        Assert.assertArrayEquals(new int[]{0, 2, 4, 5}, set.find("alpha 12, BeTTbeta"));
+    }
+
+    @Test
+    public void testCategoryBulk()
+    {
+        Assert.assertTrue(Category.Lo.contains('\u4e2d'));
+        Assert.assertFalse(Category.Lo.contains('a'));
+        Assert.assertTrue(Category.So.contains('\u2603'));
+        Assert.assertTrue(Category.Cn.contains('\u0378'));
+        Assert.assertFalse(Category.L.contains('\uffff'));
+        char[] text = "ab12 \u0436\u0437, 3".toCharArray();
+        Assert.assertEquals(2, Category.L.span(text, 0, text.length));
+        Assert.assertEquals(4, Category.Nd.span(text, 2, text.length));
+        Assert.assertEquals(7, Category.L.span(text, 5, text.length));
+        Assert.assertEquals(2, Category.Nd.indexIn(text, 0, text.length));
+        Assert.assertEquals(-1, Category.Nd.indexIn(text, 4, 9));
+        Assert.assertEquals(3, Category.Nd.count(text, 0, text.length));
+        boolean[] spaces = new boolean[text.length];
+        Category.Space.contains(text, 0, text.length, spaces);
+        Assert.assertTrue(spaces[4]);
+        Assert.assertFalse(spaces[5]);
+        int[] classes = new int[text.length];
+        Category.classify(text, 0, text.length, new Category[]{Category.L, Category.Nd, Category.Space}, classes);
+        Assert.assertArrayEquals(new int[]{0, 0, 1, 1, 2, 0, 0, -1, 2, 1}, classes);
+        // the constant-time lookups agree with the ranges the categories are decoded from
+        for (char c = 0; c < 0x800; c++) {
+            Assert.assertEquals(Character.isDigit(c), Category.Nd.contains(c));
+        }
+    }
+
+    @Test
+    public void testLazyCategory()
+    {
+        // the lengths are known before the ranges are decoded, and agree with them
+        for (Category category : Category.categories.values()) {
+            char[] contents = category.contents();
+            Assert.assertEquals(category.length, contents.length);
+            Assert.assertEquals(contents.length, category.count(contents, 0, contents.length));
+        }
+        char[] others = Category.C.contents();
+        Assert.assertEquals('\uffff', others[others.length - 1]);
+        Assert.assertEquals(Category.categories.get("Zh"), Category.Horizontal);
+        Assert.assertEquals(Category.Horizontal.hashCode(), Category.categories.get("Gh").hashCode());
+        // the decoded tables agree with the JDK's on what each char is
+        for (String regex : new String[]{"\\p{Lu}+", "\\p{Lu}\\p{Ll}+", "\\p{Nd}+", "\\p{Zs}", "\\P{L}+"}) {
+            for (String t : new String[]{"", "\u0100B\u0410", "Hello World 42", "x\u00a0y \u0436\u0437 \u0661\u0662"}) {
+                Assert.assertEquals(regex + " on " + t, allMatches(java.util.regex.Pattern.compile(regex).matcher(t)),
+                        allMatches(Pattern.compile(regex).matcher(t)));
+            }
+        }
+    }
+
+    @Test
+    public void testNamedClassesConcurrently() throws InterruptedException
+    {
+        final String[] regexes = {"\\p{InGreek}+", "\\p{Lu}\\p{Ll}+", "\\p{IsCyrillic}\\P{L}", "\\p{Lower}+",
+                "\\p{XDigit}{4}", "\\p{Unassigned}", "\\p{Assigned}"};
+        final String[] texts = {"\u03b1\u03b2\u03b3", "Abc", "\u0436!", "abc", "00fF", "\u0378", "a"};
+        // each thread builds the named classes in its own order, racing the others to the first use of each name
+        final Pattern[][] built = new Pattern[8][regexes.length];
+        Thread[] threads = new Thread[built.length];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < regexes.length; i++) {
+                        int k = (i + offset) % regexes.length;
+                        built[offset][k] = Pattern.compile(regexes[k]);
+                    }
+                }
+            });
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        for (int k = 0; k < regexes.length; k++) {
+            Pattern p = Pattern.compile(regexes[k]);
+            Assert.assertTrue(regexes[k], p.matches(texts[k]));
+            Assert.assertFalse(regexes[k], p.matches(texts[(k + 1) % texts.length]));
+            for (Pattern[] patterns : built) assertSameMatches(p, patterns[k], texts);
+        }
+        Assert.assertTrue(Pattern.compile("\\p{Punct}\\p{Blank}\\p{Cntrl}").matches("! \u007f"));
+        try {
+            Pattern.compile("\\p{InKlingon}");
+            Assert.fail();
+        } catch (PatternSyntaxException expected) {
+        }
+    }
+
+    @Test
+    public void testCompileAll()
+    {
+        String[] parts = {"\\p{Lu}\\w+", "(a|bc)*d", "[\\p{InGreek}x-z]{2,}", "(?<n>\\d+)-\\k<n>", "foo(?=bar)|baz"};
+        String[] regexes = new String[500];
+        for (int i = 0; i < regexes.length; i++) {
+            regexes[i] = parts[i % parts.length] + "|" + i;
+        }
+        Pattern[] patterns = Pattern.compileAll(regexes, REFlags.IGNORE_CASE);
+        Assert.assertEquals(regexes.length, patterns.length);
+        for (int i = 0; i < regexes.length; i++) {
+            Pattern expected = Pattern.compile(regexes[i], REFlags.IGNORE_CASE);
+            Assert.assertEquals(regexes[i], patterns[i].toString());
+            // the terms are numbered the same whichever thread compiled them
+            Assert.assertEquals(expected.toString_d(), patterns[i].toString_d());
+            Assert.assertTrue(patterns[i].matches(String.valueOf(i)));
+        }
+        Assert.assertTrue(patterns[1].matches("BCBCaD"));
+        regexes[123] = "(unclosed";
+        regexes[321] = "[unclosed";
+        try {
+            Pattern.compileAll(regexes, 0);
+            Assert.fail();
+        } catch (PatternSyntaxException e) {
+            try {
+                Pattern.compile(regexes[123]);
+                Assert.fail();
+            } catch (PatternSyntaxException first) {
+                Assert.assertEquals(first.getMessage(), e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testPatternCache()
+    {
+        Pattern a = Pattern.compile("(\\w+)@(\\w+)\\.com", "i");
+        Pattern b = Pattern.compile("(\\w+)@(\\w+)\\.com", REFlags.DEFAULT | REFlags.IGNORE_CASE);
+        Assert.assertNotSame(a, b);
+        Assert.assertSame(a.program, b.program);
+        Assert.assertNotSame(a.program, Pattern.compile("(\\w+)@(\\w+)\\.com").program);
+        Assert.assertNotSame(a.program, new Pattern("(\\w+)@(\\w+)\\.com", "i").program);
+        // changing one copy leaves the others and the cache alone
+        a.setFlags(0);
+        a.setStepLimit(10);
+        Assert.assertFalse(a.matches("Me@Example.COM"));
+        Assert.assertEquals(10, a.matcher("x").getStepLimit());
+        Assert.assertTrue(b.matches("Me@Example.COM"));
+        Assert.assertEquals(0, b.getStepLimit());
+        Assert.assertTrue(Pattern.compile("(\\w+)@(\\w+)\\.com", "i").matches("Me@Example.COM"));
+        try {
+            Pattern.compile("(\\w+");
+            Assert.fail();
+        } catch (PatternSyntaxException expected) {
+        }
+        int size = Pattern.getCacheSize();
+        try {
+            Pattern.setCacheSize(0);
+            Assert.assertEquals(0, PatternCache.size());
+            Assert.assertNotSame(Pattern.compile("x+y").program, Pattern.compile("x+y").program);
+            Pattern.setCacheSize(32);
+            for (int i = 0; i < 1000; i++) {
+                Assert.assertTrue(Pattern.compile("x" + i).matches("x" + i));
+            }
+            Assert.assertTrue(PatternCache.size() <= 32);
+        } finally {
+            Pattern.setCacheSize(size);
+        }
+    }
+
+    @Test
+    public void testPatternBytes() throws Exception
+    {
+        Pattern p = new Pattern("(?<user>[\\w.]+)@(?<host>\\p{L}+)\\.(?:com|org)\\b|(a)\\3(?=b)", "i");
+        byte[] bytes = p.toBytes();
+        Assert.assertEquals('R', bytes[0]);
+        Pattern q = Pattern.fromBytes(bytes);
+        Assert.assertEquals(p, q);
+        Assert.assertEquals(p.toString_d(), q.toString_d());
+        Assert.assertArrayEquals(bytes, q.toBytes());
+        Matcher m = q.matcher("mail Ann.Lee@\u00c9cole.ORG now");
+        Assert.assertTrue(m.find());
+        Assert.assertEquals("Ann.Lee", m.group("user"));
+        Assert.assertEquals("\u00c9cole", m.group("host"));
+        Assert.assertTrue(q.matcher("xaab").find());
+        Assert.assertFalse(q.matcher("xaac").find());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ObjectOutputStream objects = new ObjectOutputStream(out);
+        objects.writeObject(p);
+        objects.close();
+        Pattern r = (Pattern) new ObjectInputStream(new ByteArrayInputStream(out.toByteArray())).readObject();
+        Assert.assertEquals(p.toString_d(), r.toString_d());
+        Assert.assertEquals("Ann", r.replacer("${host}").replace("Lee@Ann.com"));
+
+        bytes[2]++;
+        try {
+            Pattern.fromBytes(bytes);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            Pattern.fromBytes(Arrays.copyOf(q.toBytes(), bytes.length / 2));
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
 }